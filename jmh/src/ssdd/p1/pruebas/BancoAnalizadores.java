@@ -0,0 +1,105 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: BancoAnalizadores.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Comparacion del rendimiento (JMH) de los analizadores HTTP.
+ */
+
+package ssdd.p1.pruebas;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ssdd.p1.herramientas.BlockingHTTPParser;
+import ssdd.p1.herramientas.ByteLevelHTTPParser;
+import ssdd.p1.herramientas.NonBlockingHTTPParser;
+
+/**
+ * Compara el tiempo por peticion analizada de NonBlockingHTTPParser,
+ * ByteLevelHTTPParser y BlockingHTTPParser con las peticiones realistas de
+ * PruebaAnalizadores. Cada analizador se reutiliza para todas las peticiones,
+ * como hace el servidor en una conexion persistente. La memoria reservada por
+ * peticion se obtiene con el perfilador de JMH (-prof gc).
+ *
+ * Que ambos analizadores no bloqueantes den el mismo resultado lo comprueba
+ * PruebaAnalizadores.
+ *
+ * <pre>
+ * gradle jmh -PjmhArgs='BancoAnalizadores -prof gc'
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BancoAnalizadores {
+
+    @Param({ "curl", "navegador", "formulario" })
+    public String peticion;
+
+    private byte[] bytes;
+    private ByteBuffer entrada;
+
+    private NonBlockingHTTPParser noBloqueante;
+    private ByteLevelHTTPParser porBytes;
+    private BlockingHTTPParser bloqueante;
+
+    @Setup
+    public void prepara() {
+        if (peticion.equals("curl")) {
+            bytes = PruebaAnalizadores.GET_CURL.getBytes();
+        } else if (peticion.equals("navegador")) {
+            bytes = PruebaAnalizadores.GET_NAVEGADOR.getBytes();
+        } else {
+            bytes = PruebaAnalizadores.POST_FORMULARIO.getBytes();
+        }
+        entrada = ByteBuffer.wrap(bytes);
+        noBloqueante = new NonBlockingHTTPParser();
+        porBytes = new ByteLevelHTTPParser();
+        bloqueante = new BlockingHTTPParser();
+    }
+
+    @Benchmark
+    public int nonBlockingHTTPParser() {
+        noBloqueante.reset();
+        entrada.clear();
+        noBloqueante.parseRequest(entrada);
+        return noBloqueante.getMethod().length()
+                + noBloqueante.getPath().length();
+    }
+
+    @Benchmark
+    public int byteLevelHTTPParser() {
+        porBytes.reset();
+        entrada.clear();
+        porBytes.parseRequest(entrada);
+        return porBytes.getMethod().length() + porBytes.getPath().length();
+    }
+
+    @Benchmark
+    public int blockingHTTPParser() {
+        bloqueante.reset();
+        bloqueante.parseRequest(new ByteArrayInputStream(bytes));
+        return bloqueante.getMethod().length()
+                + bloqueante.getPath().length();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: BancoComponentes.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Pruebas de rendimiento (JMH) de las partes criticas del
+ *  servidor web (HTTP).
+ */
+
+package ssdd.p1.pruebas;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ssdd.p1.herramientas.DecodificadorFormulario;
+import ssdd.p1.herramientas.LineParser;
+import ssdd.p1.herramientas.Respuesta;
+import ssdd.p1.herramientas.Utiles;
+
+/**
+ * Pruebas de rendimiento de las partes criticas del servidor, para medir el
+ * efecto de cada cambio: LineParser, codificacion HTML, resolucion de rutas,
+ * generacion de respuestas y decodificacion de formularios, con las
+ * peticiones de PruebaAnalizadores y los ficheros de pruebasPR1. Las pruebas
+ * "anterior" miden la version previa de cada parte, como referencia. Los
+ * analizadores de peticiones se comparan en BancoAnalizadores.
+ *
+ * Cada prueba devuelve un valor que depende de su resultado, para que JMH lo
+ * consuma y el compilador no elimine el trabajo medido. La memoria reservada
+ * por operacion se obtiene con el perfilador de JMH (-prof gc).
+ *
+ * Se debe lanzar desde el directorio pruebasPR1 (la tarea jmh de Gradle ya
+ * lo hace):
+ *
+ * <pre>
+ * gradle jmh -PjmhArgs='BancoComponentes [-prof gc]'
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BancoComponentes {
+
+    /**
+     * Fichero de pruebasPR1 con el que se prueba (el Quijote con tildes, en
+     * ISO-8859-1; quijote1.txt no tiene ningun caracter fuera de ASCII)
+     */
+    private static final String FICHERO = "2donq10.txt";
+
+    /** Bytes del contenido de un formulario que se muestran en la respuesta */
+    private static final int PREVISTA = DecodificadorFormulario.TAMANO_PREVISTA;
+
+    /** Tamano del contenido del formulario de las pruebas */
+    private static final int TAMANO_FORMULARIO = 64 * 1024;
+
+    /** Texto del fichero y fragmento que se muestra de un formulario */
+    private String texto;
+    private String prevista;
+
+    /** Cabeceras de un navegador, para LineParser */
+    private ByteBuffer cabeceras;
+
+    /** Directorio de pruebasPR1, para la resolucion anterior de rutas */
+    private String raiz;
+
+    private File fichero;
+
+    /** Formulario que se decodifica y directorio en el que se escribe */
+    private File directorio;
+    private DecodificadorFormulario formulario;
+    private ByteBuffer cuerpo;
+
+    @Setup
+    public void prepara() throws IOException {
+
+        texto = new String(Files.readAllBytes(new File(FICHERO).toPath()),
+                "ISO-8859-1");
+        prevista = texto.substring(texto.length() / 2, texto.length() / 2
+                + PREVISTA);
+
+        // la codificacion actual solo se diferencia de la anterior en los
+        // caracteres reservados
+        if (!Utiles.codificarHTML(texto).replace("&lt;", "<")
+                .replace("&gt;", ">").equals(codificarHTMLAnterior(texto))) {
+            System.err.println("ERROR: codificarHTML no coincide con la "
+                    + "version anterior.");
+        }
+
+        cabeceras = ByteBuffer.wrap(PruebaAnalizadores.GET_NAVEGADOR
+                .getBytes());
+        raiz = new File("").getAbsolutePath();
+        fichero = new File(FICHERO);
+
+        directorio = Files.createTempDirectory("banco").toFile();
+        formulario = new DecodificadorFormulario(directorio);
+        cuerpo = ByteBuffer.wrap(("fname=banco.txt&content=" + URLEncoder
+                .encode(texto.substring(texto.length() / 2, texto.length()
+                        / 2 + TAMANO_FORMULARIO), "UTF-8")).getBytes());
+    }
+
+    @TearDown
+    public void termina() {
+        for (File f : directorio.listFiles()) {
+            f.delete();
+        }
+        directorio.delete();
+    }
+
+    // lectura linea a linea de las cabeceras de un navegador
+
+    @Benchmark
+    public long lineParserNavegador() {
+        cabeceras.clear();
+        LineParser lector = new LineParser(cabeceras);
+        long longitud = 0;
+        String linea;
+        while ((linea = lector.readLine()) != null) {
+            longitud += linea.length();
+        }
+        return longitud;
+    }
+
+    // codificacion HTML del contenido mostrado y de un fichero completo,
+    // comparada con la version anterior (una sustitucion por caracter)
+
+    @Benchmark
+    public String codificarHTML4KB() {
+        return Utiles.codificarHTML(prevista);
+    }
+
+    @Benchmark
+    public String codificarHTMLAnterior4KB() {
+        return codificarHTMLAnterior(prevista);
+    }
+
+    @Benchmark
+    public String codificarHTMLFichero() {
+        return Utiles.codificarHTML(texto);
+    }
+
+    @Benchmark
+    public String codificarHTMLAnteriorFichero() {
+        return codificarHTMLAnterior(texto);
+    }
+
+    // resolucion de una ruta que no existe (avalancha de 404), con la cache
+    // de rutas y consultando el disco como antes
+
+    @Benchmark
+    public int cacheRutas404() {
+        return Utiles.cacheRutas.resuelve("/no_existe.txt").getCodigo();
+    }
+
+    @Benchmark
+    public int resolucionAnterior404() {
+        File noExiste = new File(raiz + "/no_existe.txt");
+        return noExiste.exists() ? 200 : 404;
+    }
+
+    // generacion de respuestas
+
+    @Benchmark
+    public int generaRespuestaFormulario() {
+        return Utiles.generaRespuesta(200,
+                Utiles.generaCuerpoExito("prueba.txt", prevista)).length();
+    }
+
+    @Benchmark
+    public int generaRespuestaFichero() {
+        Respuesta respuesta = Utiles.generaRespuesta(200, fichero);
+        respuesta.cierra();
+        return respuesta.getCodigo();
+    }
+
+    @Benchmark
+    public int generaRespuestaCuerpoGzip() {
+        return Utiles.generaRespuestaCuerpo(200,
+                Utiles.generaCuerpoExito("prueba.txt", prevista), true)
+                .getCodigo();
+    }
+
+    @Benchmark
+    public int generaRespuestaError404() {
+        return Utiles.generaRespuestaError(404).getCodigo();
+    }
+
+    // decodificacion (y escritura) de un formulario
+
+    @Benchmark
+    public int decodificadorFormulario64KB() {
+        cuerpo.clear();
+        formulario.inicia("POST", cuerpo.remaining());
+        formulario.recibe(cuerpo);
+        formulario.termina();
+        return formulario.getCodigo();
+    }
+
+    /**
+     * Version anterior de Utiles.codificarHTML (una sustitucion sobre todo el
+     * texto por cada caracter, sin los caracteres reservados), como
+     * referencia
+     *
+     */
+    private static String codificarHTMLAnterior(String texto) {
+        texto = texto.replace("\u00f1", "&ntilde;");
+        texto = texto.replace("\u00d1", "&Ntilde;");
+        texto = texto.replace("\u00e1", "&aacute;");
+        texto = texto.replace("\u00e9", "&eacute;");
+        texto = texto.replace("\u00ed", "&iacute;");
+        texto = texto.replace("\u00f3", "&oacute;");
+        texto = texto.replace("\u00fa", "&uacute;");
+        texto = texto.replace("\u00e4", "&auml;");
+        texto = texto.replace("\u00eb", "&euml;");
+        texto = texto.replace("\u00ef", "&iuml;");
+        texto = texto.replace("\u00f6", "&ouml;");
+        texto = texto.replace("\u00fc", "&uuml;");
+        texto = texto.replace("\u00c1", "&Aacute;");
+        texto = texto.replace("\u00c9", "&Eacute;");
+        texto = texto.replace("\u00cd", "&Iacute;");
+        texto = texto.replace("\u00d3", "&Oacute;");
+        texto = texto.replace("\u00da", "&Uacute;");
+        texto = texto.replace("\u00c4", "&Auml;");
+        texto = texto.replace("\u00cb", "&Euml;");
+        texto = texto.replace("\u00cf", "&Iuml;");
+        texto = texto.replace("\u00d6", "&Ouml;");
+        texto = texto.replace("\u00dc", "&Uuml;");
+        texto = texto.replace("\u00a1", "&iexcl;");
+        texto = texto.replace("\u00bf", "&iquest;");
+        texto = texto.replace("\u00bb", "&raquo;");
+        texto = texto.replace("\u00ab", "&laquo;");
+        return texto;
+    }
+}
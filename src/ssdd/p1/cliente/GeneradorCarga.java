@@ -0,0 +1,611 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: GeneradorCarga.java
+ * TIEMPO: 4 horas
+ * DESCRIPCION: Generador de carga de ritmo constante para el servidor web
+ *  (HTTP).
+ */
+
+package ssdd.p1.cliente;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ssdd.p1.herramientas.HistogramaLatencias;
+
+/**
+ * Generador de carga en bucle abierto: lanza [ritmo] peticiones por segundo a
+ * intervalos regulares durante [segundos] segundos, sin esperar a que el
+ * servidor conteste las anteriores, repartidas entre [conexiones] conexiones
+ * persistentes. Un [post] por ciento de las peticiones son POST como las del
+ * formulario post_form.html (sobre el fichero carga.txt); el resto son GET de
+ * /post_form.html (el servidor se debe lanzar desde pruebasPR1).
+ *
+ * El tiempo de cada peticion se mide desde el instante en que deberia haberse
+ * enviado segun el ritmo, no desde que se envia de verdad: si el servidor se
+ * retrasa y todas las conexiones estan ocupadas, las peticiones que esperan
+ * acumulan ese retraso (correccion de la omision coordinada). Asi los
+ * percentiles reflejan lo que veria un cliente real que no espera al
+ * servidor para hacer sus peticiones.
+ *
+ * Las conexiones se gestionan con un unico selector (nio) o con un hilo
+ * virtual por conexion (virtual, Java 21 o superior):
+ *
+ * <pre>
+ * cd pruebasPR1; java ssdd.p1.servidor.Lanzador -s 8000
+ * java ssdd.p1.cliente.GeneradorCarga localhost 8000 5000 10 64 10 nio
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class GeneradorCarga {
+
+    /** Ruta de las peticiones GET */
+    private static final String RUTA_GET = "/post_form.html";
+
+    /** Cuerpo de las peticiones POST (formulario de post_form.html) */
+    private static final String FORMULARIO = "fname=carga.txt&content="
+            + "Prueba+de+carga%3A+%C3%B1+%26+%25";
+
+    /**
+     * Tiempo maximo (en milisegundos) que se espera a las peticiones
+     * pendientes al terminar
+     *
+     */
+    private static final long ESPERA_FINAL = 10000;
+
+    /** Peticiones GET y POST ya codificadas */
+    private static final byte[] peticionGet = ("GET " + RUTA_GET
+            + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes();
+    private static final byte[] peticionPost = ("POST / HTTP/1.1\r\n"
+            + "Host: localhost\r\nContent-Length: " + FORMULARIO.length()
+            + "\r\n\r\n" + FORMULARIO).getBytes();
+
+    /** Direccion del servidor */
+    private final InetSocketAddress direccion;
+
+    /** Instante (System.nanoTime) previsto para la primera peticion */
+    private long inicio;
+
+    /** Nanosegundos entre dos peticiones consecutivas */
+    private final double periodo;
+
+    /** Numero total de peticiones que se deben lanzar */
+    private final long total;
+
+    /** Porcentaje de peticiones POST */
+    private final int post;
+
+    /** Tiempo (en microsegundos) de cada peticion, desde su instante previsto */
+    private final HistogramaLatencias latencias;
+
+    /** Respuestas recibidas que no son 200 */
+    private final AtomicLong errores;
+
+    /** Peticiones que no han obtenido respuesta (conexiones caidas) */
+    private final AtomicLong fallos;
+
+    /**
+     * Metodo constructor de la clase
+     *
+     */
+    private GeneradorCarga(InetSocketAddress direccion, int ritmo,
+            int segundos, int post) {
+        this.direccion = direccion;
+        this.periodo = 1e9 / ritmo;
+        this.total = (long) ritmo * segundos;
+        this.post = post;
+        this.latencias = new HistogramaLatencias();
+        this.errores = new AtomicLong();
+        this.fallos = new AtomicLong();
+    }
+
+    /**
+     * Imprime por pantalla las opciones de ejecucion disponibles.
+     *
+     */
+    private static void uso() {
+        System.out.println("Uso: <servidor> <puerto> <peticiones/s> "
+                + "[<segundos>] [<conexiones>] [<% POST>] [nio|virtual]");
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length < 3 || args.length > 7) {
+            System.err.println("ERROR: Numero de parametros incorrecto.");
+            uso();
+            return;
+        }
+
+        try {
+            InetSocketAddress direccion = new InetSocketAddress(args[0],
+                    Integer.parseInt(args[1]));
+            int ritmo = Integer.parseInt(args[2]);
+            int segundos = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+            int conexiones = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+            int post = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+            String modo = args.length > 6 ? args[6] : "nio";
+
+            if (ritmo <= 0 || segundos <= 0 || conexiones <= 0 || post < 0
+                    || post > 100) {
+                System.err.println("ERROR: Parametro fuera de rango.");
+                uso();
+                return;
+            }
+
+            if (!modo.equals("nio") && !modo.equals("virtual")) {
+                System.err.println("ERROR: Modo no valido.");
+                uso();
+                return;
+            }
+
+            // una primera ronda corta sirve de calentamiento
+            new GeneradorCarga(direccion, ritmo, 2, post).lanza(conexiones,
+                    modo);
+
+            GeneradorCarga generador = new GeneradorCarga(direccion, ritmo,
+                    segundos, post);
+            long comienzo = System.nanoTime();
+            generador.lanza(conexiones, modo);
+            double duracion = (System.nanoTime() - comienzo) / 1e9;
+
+            generador.muestraResultados(ritmo, segundos, conexiones, modo,
+                    duracion);
+
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: Parametro numerico no valido.");
+            uso();
+        } catch (Exception e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Lanza la carga con [conexiones] conexiones en el modo [modo] (nio o
+     * virtual)
+     *
+     */
+    private void lanza(int conexiones, String modo) throws Exception {
+        if (modo.equals("nio")) {
+            nio(conexiones);
+        } else {
+            virtual(conexiones);
+        }
+    }
+
+    /**
+     * Devuelve el instante (System.nanoTime) previsto para la peticion
+     * numero [i]
+     *
+     */
+    private long previsto(long i) {
+        return inicio + (long) (i * periodo);
+    }
+
+    /**
+     * Devuelve la peticion numero [i] (GET o POST segun el porcentaje, con
+     * los POST repartidos uniformemente)
+     *
+     */
+    private byte[] peticion(long i) {
+        return (i + 1) * post / 100 > i * post / 100 ? peticionPost
+                : peticionGet;
+    }
+
+    /**
+     * Registra la respuesta a una peticion prevista para el instante
+     * [previsto]
+     *
+     */
+    private void registra(long previsto, int codigo) {
+        latencias.registra((System.nanoTime() - previsto) / 1000);
+        if (codigo != 200) {
+            errores.incrementAndGet();
+        }
+    }
+
+    // MODO NIO
+
+    /**
+     * Estado de una conexion del modo nio
+     *
+     */
+    private static class Conexion {
+
+        /** Canal asociado a la conexion (null si esta cerrada) */
+        SocketChannel canal;
+
+        /** Instante previsto de la peticion en curso (-1 si esta libre) */
+        long previsto = -1;
+
+        /** Peticion pendiente de enviar */
+        ByteBuffer salida;
+
+        /** Respuesta recibida hasta ahora */
+        final LectorRespuesta lector = new LectorRespuesta();
+    }
+
+    /**
+     * Lanza la carga desde un unico hilo con un selector que gestiona todas
+     * las conexiones
+     *
+     * @param numConexiones : Numero de conexiones persistentes
+     *
+     */
+    private void nio(int numConexiones) throws IOException {
+
+        Selector selector = Selector.open();
+        ArrayDeque<Conexion> libres = new ArrayDeque<Conexion>();
+        ByteBuffer bufer = ByteBuffer.allocate(64 * 1024);
+
+        for (int i = 0; i < numConexiones; i++) {
+            Conexion c = new Conexion();
+            abre(c, selector);
+            libres.add(c);
+        }
+
+        inicio = System.nanoTime();
+        long siguiente = 0;
+        long pendientes = 0;
+        long limite = previsto(total) + ESPERA_FINAL * 1000000L;
+
+        while ((siguiente < total || pendientes > 0)
+                && System.nanoTime() < limite) {
+
+            // asignar a las conexiones libres las peticiones que ya
+            // deberian haberse enviado (el resto espera, acumulando retraso)
+            long ahora = System.nanoTime();
+            while (siguiente < total && previsto(siguiente) <= ahora
+                    && !libres.isEmpty()) {
+                Conexion c = libres.poll();
+                c.previsto = previsto(siguiente);
+                c.salida = ByteBuffer.wrap(peticion(siguiente));
+                siguiente++;
+                pendientes++;
+                envia(c, selector);
+            }
+
+            // esperar como mucho hasta la siguiente peticion prevista
+            long espera = siguiente < total && !libres.isEmpty()
+                    ? (previsto(siguiente) - System.nanoTime()) / 1000000
+                    : 1;
+            if (espera > 0) {
+                selector.select(espera);
+            } else {
+                selector.selectNow();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey op = it.next();
+                it.remove();
+                Conexion c = (Conexion) op.attachment();
+
+                try {
+                    if (op.isValid() && op.isWritable()) {
+                        envia(c, selector);
+                    }
+                    if (op.isValid() && op.isReadable()) {
+                        bufer.clear();
+                        int leidos = c.canal.read(bufer);
+                        if (leidos < 0) {
+                            throw new IOException("Conexion cerrada");
+                        }
+                        bufer.flip();
+                        if (c.lector.recibe(bufer)) {
+                            registra(c.previsto, c.lector.getCodigo());
+                            pendientes--;
+                            c.previsto = -1;
+                            if (c.lector.isCerrar()) {
+                                c.canal.close();
+                                abre(c, selector);
+                            }
+                            c.lector.reinicia();
+                            libres.add(c);
+                        }
+                    }
+                } catch (IOException e) {
+
+                    // la peticion en curso se pierde; se reabre la conexion
+                    if (c.previsto >= 0) {
+                        fallos.incrementAndGet();
+                        pendientes--;
+                        c.previsto = -1;
+                        libres.add(c);
+                    }
+                    c.canal.close();
+                    c.lector.reinicia();
+                    abre(c, selector);
+                }
+            }
+        }
+
+        fallos.addAndGet(pendientes + total - siguiente);
+        selector.close();
+    }
+
+    /**
+     * Metodo auxiliar que abre (o reabre) la conexion [c]
+     *
+     */
+    private void abre(Conexion c, Selector selector) throws IOException {
+        c.canal = SocketChannel.open(direccion);
+        c.canal.socket().setTcpNoDelay(true);
+        c.canal.configureBlocking(false);
+        c.canal.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    /**
+     * Metodo auxiliar que envia lo que admita el canal de la peticion en
+     * curso de la conexion [c]
+     *
+     */
+    private void envia(Conexion c, Selector selector) throws IOException {
+        c.canal.write(c.salida);
+        c.canal.keyFor(selector).interestOps(c.salida.hasRemaining()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    // MODO HILOS VIRTUALES
+
+    /**
+     * Lanza la carga con un hilo virtual por conexion. Cada hilo toma el
+     * siguiente numero de peticion en cuanto termina la anterior, espera a su
+     * instante previsto (si aun no ha llegado) y la envia por su conexion.
+     *
+     * @param numConexiones : Numero de conexiones persistentes
+     *
+     */
+    private void virtual(int numConexiones) throws Exception {
+
+        ExecutorService ejecutor;
+
+        try {
+            // se obtiene por reflexion para poder compilar con versiones
+            // anteriores de Java
+            Method fabrica = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            ejecutor = (ExecutorService) fabrica.invoke(null);
+        } catch (Exception e) {
+            throw new Exception("Esta version de Java no dispone de hilos "
+                    + "virtuales (se necesita Java 21 o superior).");
+        }
+
+        final AtomicLong siguiente = new AtomicLong();
+        inicio = System.nanoTime();
+
+        for (int i = 0; i < numConexiones; i++) {
+            ejecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    conexion(siguiente);
+                }
+            });
+        }
+
+        ejecutor.shutdown();
+        long espera = (previsto(total) - System.nanoTime()) / 1000000
+                + ESPERA_FINAL;
+        if (!ejecutor.awaitTermination(espera, TimeUnit.MILLISECONDS)) {
+            ejecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Metodo auxiliar que atiende una conexion del modo de hilos virtuales
+     * hasta que se hayan lanzado todas las peticiones
+     *
+     * @param siguiente : Numero de la siguiente peticion (compartido)
+     *
+     */
+    private void conexion(AtomicLong siguiente) {
+
+        Socket socket = null;
+        LectorRespuesta lector = new LectorRespuesta();
+        byte[] bufer = new byte[64 * 1024];
+
+        long i = siguiente.getAndIncrement();
+
+        while (i < total) {
+
+            long previsto = previsto(i);
+            try {
+                long espera = previsto - System.nanoTime();
+                if (espera > 0) {
+                    Thread.sleep(espera / 1000000, (int) (espera % 1000000));
+                }
+
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(direccion);
+                }
+                OutputStream salida = socket.getOutputStream();
+                InputStream entrada = new BufferedInputStream(
+                        socket.getInputStream());
+
+                salida.write(peticion(i));
+
+                // leer hasta completar la respuesta
+                boolean completa = false;
+                while (!completa) {
+                    int leidos = entrada.read(bufer);
+                    if (leidos < 0) {
+                        throw new IOException("Conexion cerrada");
+                    }
+                    completa = lector.recibe(ByteBuffer.wrap(bufer, 0,
+                            leidos));
+                }
+                registra(previsto, lector.getCodigo());
+
+                if (lector.isCerrar()) {
+                    socket.close();
+                    socket = null;
+                }
+                lector.reinicia();
+
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                fallos.incrementAndGet();
+                lector.reinicia();
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException e2) {
+                    // ya esta cerrada
+                }
+                socket = null;
+            }
+
+            i = siguiente.getAndIncrement();
+        }
+
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // ya esta cerrada
+        }
+    }
+
+    /**
+     * Analizador incremental de las respuestas del servidor: linea de estado,
+     * cabeceras (terminadas en una linea vacia, con o sin \r) y tantos bytes
+     * de cuerpo como indique Content-Length.
+     *
+     */
+    private static class LectorRespuesta {
+
+        /** Cabeceras recibidas hasta ahora */
+        private final StringBuilder cabeceras = new StringBuilder();
+
+        /** Bytes del cuerpo que faltan (-1 mientras llegan las cabeceras) */
+        private long restantes = -1;
+
+        /** Codigo HTTP de la respuesta */
+        private int codigo;
+
+        /** Cierto si el servidor va a cerrar la conexion */
+        private boolean cerrar;
+
+        /**
+         * Recibe un fragmento de la respuesta. Supone que el servidor no
+         * envia nada mas hasta recibir la siguiente peticion.
+         *
+         * @return cierto si y solo si la respuesta esta completa
+         *
+         */
+        boolean recibe(ByteBuffer datos) throws IOException {
+
+            while (restantes < 0 && datos.hasRemaining()) {
+                char c = (char) (datos.get() & 0xff);
+                if (c == '\r') {
+                    continue;
+                }
+                cabeceras.append(c);
+                int n = cabeceras.length();
+                if (c == '\n' && n >= 2 && cabeceras.charAt(n - 2) == '\n') {
+                    analizaCabeceras();
+                }
+            }
+
+            if (restantes > 0) {
+                int consumidos = (int) Math.min(restantes, datos.remaining());
+                datos.position(datos.position() + consumidos);
+                restantes -= consumidos;
+            }
+
+            return restantes == 0;
+        }
+
+        /**
+         * Metodo auxiliar que obtiene el codigo, la longitud del cuerpo y si
+         * se va a cerrar la conexion a partir de las cabeceras completas
+         *
+         */
+        private void analizaCabeceras() throws IOException {
+            String[] lineas = cabeceras.toString().split("\n");
+            try {
+                codigo = Integer.parseInt(lineas[0].split(" ")[1]);
+            } catch (RuntimeException e) {
+                throw new IOException("Respuesta no valida: " + lineas[0]);
+            }
+            restantes = 0;
+            for (String linea : lineas) {
+                String minusculas = linea.toLowerCase();
+                if (minusculas.startsWith("content-length:")) {
+                    restantes = Long.parseLong(linea.substring(15).trim());
+                } else if (minusculas.startsWith("connection:")) {
+                    cerrar = minusculas.contains("close");
+                }
+            }
+
+            // el servidor cierra la conexion tras un error de la peticion
+            if (codigo == 400 || codigo == 408) {
+                cerrar = true;
+            }
+        }
+
+        int getCodigo() {
+            return codigo;
+        }
+
+        boolean isCerrar() {
+            return cerrar;
+        }
+
+        void reinicia() {
+            cabeceras.setLength(0);
+            restantes = -1;
+            codigo = 0;
+            cerrar = false;
+        }
+    }
+
+    /**
+     * Muestra por pantalla el resumen de la prueba.
+     *
+     */
+    private void muestraResultados(int ritmo, int segundos, int conexiones,
+            String modo, double duracion) {
+
+        long completadas = latencias.getCuenta();
+
+        System.out.println("Ritmo: " + ritmo + " peticiones/s durante "
+                + segundos + " s, " + conexiones + " conexiones (" + modo
+                + "), " + post + "% POST");
+        System.out.printf("Completadas: %d (%.0f/s)  No 200: %d  Fallos: %d%n",
+                completadas, completadas / duracion, errores.get(),
+                fallos.get());
+        System.out.printf(
+                "Latencia corregida (ms): p50=%.2f p90=%.2f p99=%.2f "
+                        + "p999=%.2f max=%.2f%n",
+                latencias.percentil(0.50) / 1e3,
+                latencias.percentil(0.90) / 1e3,
+                latencias.percentil(0.99) / 1e3,
+                latencias.percentil(0.999) / 1e3,
+                latencias.getMaximo() / 1e3);
+    }
+}
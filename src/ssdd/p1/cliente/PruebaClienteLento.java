@@ -0,0 +1,287 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: PruebaClienteLento.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Prueba de carga del servidor web (HTTP) con clientes que leen
+ *  sus respuestas lentamente.
+ */
+
+package ssdd.p1.cliente;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prueba de carga con [clientes] clientes lentos: cada uno envia de golpe
+ * [peticiones] peticiones encadenadas del fichero [ruta] (la ultima con
+ * "Connection: close") y despues lee las respuestas a [velocidad] KB/s con un
+ * bufer de recepcion pequeno, de forma que el servidor no puede enviarlas tan
+ * rapido como las genera. Mientras tanto un cliente rapido mide el tiempo de
+ * respuesta de peticiones sueltas de /post_form.html.
+ *
+ * Comprueba que cada cliente lento recibe todas sus respuestas completas
+ * (exactamente [peticiones] veces la respuesta de referencia) y que los
+ * clientes lentos no retrasan al rapido.
+ *
+ * Los ficheros por defecto son los del directorio pruebasPR1, desde el que se
+ * debe lanzar el servidor:
+ *
+ * <pre>
+ * cd pruebasPR1; java ssdd.p1.servidor.Lanzador -s 8000
+ * java ssdd.p1.cliente.PruebaClienteLento localhost 8000 50 4 1024 /quijote1.txt
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class PruebaClienteLento {
+
+    /** Tamano (en bytes) de cada lectura de los clientes lentos */
+    private static final int TAMANO_LECTURA = 4096;
+
+    /**
+     * Imprime por pantalla las opciones de ejecucion disponibles.
+     *
+     */
+    private static void uso() {
+        System.out.println("Uso: <servidor> <puerto> <clientes> "
+                + "[<peticiones por cliente>] [<KB/s por cliente>] [<ruta>]");
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length < 3 || args.length > 6) {
+            System.err.println("ERROR: Numero de parametros incorrecto.");
+            uso();
+            return;
+        }
+
+        try {
+            InetSocketAddress direccion = new InetSocketAddress(args[0],
+                    Integer.parseInt(args[1]));
+            int clientes = Integer.parseInt(args[2]);
+            int peticiones = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+            int velocidad = args.length > 4 ? Integer.parseInt(args[4]) : 1024;
+            String ruta = args.length > 5 ? args[5] : "/quijote1.txt";
+
+            prueba(direccion, clientes, peticiones, velocidad, ruta);
+
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: Parametro numerico no valido.");
+            uso();
+        } catch (Exception e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ejecuta la prueba y muestra los resultados por pantalla.
+     *
+     */
+    private static void prueba(final InetSocketAddress direccion,
+            int clientes, final int peticiones, final int velocidad,
+            String ruta) throws Exception {
+
+        // respuesta de referencia: todas las demas deben medir lo mismo
+        final long longitud = pide(direccion, peticion(ruta, true));
+        final byte[] envio = peticiones(ruta, peticiones);
+
+        final AtomicInteger completos = new AtomicInteger();
+        final AtomicInteger incompletos = new AtomicInteger();
+        final AtomicInteger fallos = new AtomicInteger();
+
+        long inicio = System.nanoTime();
+
+        Thread[] hilos = new Thread[clientes];
+        for (int i = 0; i < clientes; i++) {
+            hilos[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        long recibidos = lentamente(direccion, envio,
+                                velocidad);
+                        if (recibidos == longitud * peticiones) {
+                            completos.incrementAndGet();
+                        } else {
+                            System.err.println("AVISO: Recibidos "
+                                    + recibidos + " bytes de "
+                                    + longitud * peticiones);
+                            incompletos.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        System.err.println("ERROR: " + e.getMessage());
+                        fallos.incrementAndGet();
+                    }
+                }
+            };
+            hilos[i].start();
+        }
+
+        // cliente rapido: peticiones sueltas mientras duren los lentos
+        final AtomicBoolean terminar = new AtomicBoolean();
+        final List<Long> latencias = new ArrayList<Long>();
+        Thread rapido = new Thread() {
+            @Override
+            public void run() {
+                byte[] envio = peticion("/post_form.html", true);
+                while (!terminar.get()) {
+                    try {
+                        long t = System.nanoTime();
+                        pide(direccion, envio);
+                        latencias.add(System.nanoTime() - t);
+                        Thread.sleep(10);
+                    } catch (Exception e) {
+                        System.err.println("ERROR: " + e.getMessage());
+                        return;
+                    }
+                }
+            }
+        };
+        rapido.start();
+
+        for (Thread hilo : hilos) {
+            hilo.join();
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+
+        terminar.set(true);
+        rapido.join();
+
+        System.out.println("Clientes lentos: " + clientes + " x "
+                + peticiones + " peticiones de " + ruta + " a " + velocidad
+                + " KB/s");
+        System.out.println("Completos: " + completos.get() + "  Incompletos: "
+                + incompletos.get() + "  Fallos: " + fallos.get());
+        System.out.printf("Duracion: %.1f s  (%.1f MB recibidos)%n", segundos,
+                completos.get() * longitud * peticiones / 1e6);
+
+        long[] ordenadas = new long[latencias.size()];
+        for (int i = 0; i < ordenadas.length; i++) {
+            ordenadas[i] = latencias.get(i);
+        }
+        Arrays.sort(ordenadas);
+        if (ordenadas.length > 0) {
+            System.out.printf("Cliente rapido (%d peticiones, ms): p50=%.2f "
+                    + "p99=%.2f max=%.2f%n", ordenadas.length,
+                    percentil(ordenadas, 0.50) / 1e6,
+                    percentil(ordenadas, 0.99) / 1e6,
+                    ordenadas[ordenadas.length - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Envia [envio] por una conexion nueva, lee la respuesta a [velocidad]
+     * KB/s hasta que el servidor cierra la conexion y devuelve el numero de
+     * bytes recibidos
+     *
+     */
+    private static long lentamente(InetSocketAddress direccion, byte[] envio,
+            int velocidad) throws IOException {
+
+        Socket socket = new Socket();
+
+        // bufer de recepcion pequeno para que el servidor note la lentitud
+        socket.setReceiveBufferSize(TAMANO_LECTURA);
+        socket.connect(direccion);
+
+        try {
+            OutputStream salida = socket.getOutputStream();
+            salida.write(envio);
+            salida.flush();
+
+            InputStream entrada = socket.getInputStream();
+            byte[] bufer = new byte[TAMANO_LECTURA];
+            long recibidos = 0;
+            long inicio = System.nanoTime();
+            int leidos;
+
+            while ((leidos = entrada.read(bufer)) >= 0) {
+                recibidos += leidos;
+
+                // esperar hasta el instante en que, a [velocidad] KB/s, ya
+                // se habrian recibido [recibidos] bytes
+                long espera = recibidos * 1000000L / (velocidad * 1024L)
+                        - (System.nanoTime() - inicio) / 1000;
+                if (espera > 0) {
+                    try {
+                        Thread.sleep(espera / 1000, (int) (espera % 1000));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            return recibidos;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Envia [envio] por una conexion nueva y devuelve el numero de bytes
+     * recibidos hasta que el servidor cierra la conexion
+     *
+     */
+    private static long pide(InetSocketAddress direccion, byte[] envio)
+            throws IOException {
+
+        Socket socket = new Socket();
+        socket.connect(direccion);
+
+        try {
+            socket.getOutputStream().write(envio);
+
+            InputStream entrada = socket.getInputStream();
+            byte[] bufer = new byte[64 * 1024];
+            long recibidos = 0;
+            int leidos;
+            while ((leidos = entrada.read(bufer)) >= 0) {
+                recibidos += leidos;
+            }
+            return recibidos;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Devuelve [numero] peticiones encadenadas del fichero [ruta], la ultima
+     * de las cuales pide cerrar la conexion
+     *
+     */
+    private static byte[] peticiones(String ruta, int numero) {
+        StringBuilder texto = new StringBuilder();
+        for (int i = 0; i < numero; i++) {
+            texto.append(new String(peticion(ruta, i == numero - 1)));
+        }
+        return texto.toString().getBytes();
+    }
+
+    /**
+     * Devuelve una peticion GET del fichero [ruta]
+     *
+     */
+    private static byte[] peticion(String ruta, boolean cerrar) {
+        return ("GET " + ruta + " HTTP/1.1\r\nHost: localhost\r\n"
+                + (cerrar ? "Connection: close\r\n" : "") + "\r\n")
+                .getBytes();
+    }
+
+    /**
+     * Devuelve el percentil [p] (entre 0 y 1) de un vector ordenado
+     *
+     */
+    private static long percentil(long[] ordenadas, double p) {
+        int i = (int) Math.ceil(p * ordenadas.length) - 1;
+        return ordenadas[Math.max(0, Math.min(i, ordenadas.length - 1))];
+    }
+}
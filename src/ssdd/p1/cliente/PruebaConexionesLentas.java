@@ -0,0 +1,298 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: PruebaConexionesLentas.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Prueba de rendimiento del servidor web (HTTP) con muchos
+ *  clientes lentos simultaneos.
+ */
+
+package ssdd.p1.cliente;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Prueba de rendimiento que abre [conexiones] conexiones simultaneas contra el
+ * servidor y en cada una envia la peticion en dos partes separadas por
+ * [retardo] milisegundos, simulando clientes lentos que mantienen ocupada la
+ * conexion. Todas las conexiones se gestionan desde un unico selector, por lo
+ * que el cliente no limita el numero de conexiones simultaneas. Las
+ * conexiones cuya respuesta no es un 200 (por ejemplo, las rechazadas por el
+ * control de admision) cuentan como fallos.
+ *
+ * Sirve para comparar los modos -t, -v y -s del servidor, por ejemplo con
+ * 1000 y 10000 conexiones (puede ser necesario aumentar el limite de
+ * descriptores abiertos con 'ulimit -n' en ambos extremos):
+ *
+ * <pre>
+ * java ssdd.p1.servidor.Lanzador -v 8000
+ * java ssdd.p1.cliente.PruebaConexionesLentas localhost 8000 10000 1000
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class PruebaConexionesLentas {
+
+    /** Tiempo maximo (en milisegundos) que puede durar la prueba */
+    private static final long TIEMPO_MAXIMO = 120000;
+
+    /** Comienzo de la linea de estado de una respuesta correcta */
+    private static final byte[] ESTADO_OK = "HTTP/1.1 200".getBytes();
+
+    /**
+     * Estado de una conexion de la prueba
+     *
+     */
+    private static class Conexion {
+
+        /** Canal asociado a la conexion */
+        SocketChannel canal;
+
+        /** Instante (ns) en el que se debe enviar el resto de la peticion */
+        long envioPendiente = -1;
+
+        /** Instante (ns) en el que se termina de enviar la peticion */
+        long finPeticion;
+
+        /** Numero de bytes de respuesta recibidos */
+        long recibidos;
+
+        /** Comienzo de la linea de estado de la respuesta */
+        byte[] estado = new byte[ESTADO_OK.length];
+    }
+
+    /**
+     * Imprime por pantalla las opciones de ejecucion disponibles.
+     *
+     */
+    private static void uso() {
+        System.out.println("Uso: <servidor> <puerto> <conexiones> "
+                + "[<retardo ms>] [<ruta>]");
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("ERROR: Numero de parametros incorrecto.");
+            uso();
+            return;
+        }
+
+        try {
+            InetSocketAddress direccion = new InetSocketAddress(args[0],
+                    Integer.parseInt(args[1]));
+            int numConexiones = Integer.parseInt(args[2]);
+            long retardo = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+            String ruta = args.length > 4 ? args[4] : "/peers.txt";
+
+            prueba(direccion, numConexiones, retardo, ruta);
+
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: Parametro numerico no valido.");
+            uso();
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ejecuta la prueba y muestra los resultados por pantalla.
+     *
+     * @param direccion : Direccion del servidor
+     * @param numConexiones : Numero de conexiones simultaneas
+     * @param retardo : Milisegundos entre las dos partes de la peticion
+     * @param ruta : Ruta del fichero que se solicita
+     *
+     */
+    private static void prueba(InetSocketAddress direccion, int numConexiones,
+            long retardo, String ruta) throws IOException {
+
+        byte[] primeraParte = ("GET " + ruta + " HTTP/1.1\r\n").getBytes();
+        // el servidor mantiene abiertas las conexiones: se le pide que cierre
+        // tras responder, para medir la respuesta y no el plazo de
+        // inactividad
+        byte[] segundaParte = ("Host: " + direccion.getHostName()
+                + "\r\nConnection: close\r\n\r\n").getBytes();
+
+        Selector selector = Selector.open();
+        List<Conexion> esperando = new ArrayList<Conexion>();
+        List<Long> latencias = new ArrayList<Long>();
+        ByteBuffer bufer = ByteBuffer.allocateDirect(64 * 1024);
+        int fallos = 0;
+        int pendientes = numConexiones;
+        long bytesRecibidos = 0;
+
+        long inicioPrueba = System.nanoTime();
+
+        // abrir todas las conexiones de golpe
+        for (int i = 0; i < numConexiones; i++) {
+            Conexion c = new Conexion();
+            c.canal = SocketChannel.open();
+            c.canal.configureBlocking(false);
+            c.canal.connect(direccion);
+            c.canal.register(selector, SelectionKey.OP_CONNECT, c);
+        }
+
+        while (pendientes > 0) {
+
+            selector.select(10);
+
+            long ahora = System.nanoTime();
+
+            if ((ahora - inicioPrueba) / 1000000 > TIEMPO_MAXIMO) {
+                System.err.println("AVISO: Tiempo maximo agotado, quedan "
+                        + pendientes + " conexiones sin terminar");
+                fallos += pendientes;
+                break;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+
+                SelectionKey op = it.next();
+                it.remove();
+                Conexion c = (Conexion) op.attachment();
+
+                try {
+
+                    // conexion establecida: enviar la primera parte
+                    if (op.isConnectable()) {
+                        c.canal.finishConnect();
+                        c.canal.write(ByteBuffer.wrap(primeraParte));
+                        c.envioPendiente = System.nanoTime() + retardo
+                                * 1000000;
+                        op.interestOps(0);
+                        esperando.add(c);
+                    }
+
+                    // recibir la respuesta hasta que el servidor cierre
+                    else if (op.isReadable()) {
+                        bufer.clear();
+                        int leidos = c.canal.read(bufer);
+                        if (leidos > 0) {
+
+                            // guardar el comienzo de la linea de estado
+                            int guardados = (int) Math.min(c.recibidos,
+                                    ESTADO_OK.length);
+                            bufer.flip();
+                            bufer.get(c.estado, guardados, Math.min(leidos,
+                                    ESTADO_OK.length - guardados));
+                            c.recibidos += leidos;
+
+                        } else if (leidos < 0) {
+                            if (esOk(c.estado, c.recibidos)) {
+                                latencias.add(
+                                        System.nanoTime() - c.finPeticion);
+                            } else {
+                                fallos++;
+                            }
+                            bytesRecibidos += c.recibidos;
+                            c.canal.close();
+                            pendientes--;
+                        }
+                    }
+
+                } catch (IOException e) {
+                    fallos++;
+                    pendientes--;
+                    esperando.remove(c);
+                    c.canal.close();
+                }
+            }
+
+            // enviar la segunda parte de las peticiones cuyo retardo ha vencido
+            Iterator<Conexion> itEsperando = esperando.iterator();
+            while (itEsperando.hasNext()) {
+                Conexion c = itEsperando.next();
+                if (ahora - c.envioPendiente >= 0) {
+                    itEsperando.remove();
+                    try {
+                        c.canal.write(ByteBuffer.wrap(segundaParte));
+                        c.finPeticion = System.nanoTime();
+                        c.canal.keyFor(selector).interestOps(
+                                SelectionKey.OP_READ);
+                    } catch (IOException e) {
+                        fallos++;
+                        pendientes--;
+                        c.canal.close();
+                    }
+                }
+            }
+        }
+
+        long duracion = System.nanoTime() - inicioPrueba;
+        selector.close();
+
+        muestraResultados(numConexiones, retardo, duracion, latencias,
+                fallos, bytesRecibidos);
+    }
+
+    /**
+     * Muestra por pantalla el resumen de la prueba.
+     *
+     */
+    private static void muestraResultados(int numConexiones, long retardo,
+            long duracion, List<Long> latencias, int fallos,
+            long bytesRecibidos) {
+
+        long[] ordenadas = new long[latencias.size()];
+        for (int i = 0; i < ordenadas.length; i++) {
+            ordenadas[i] = latencias.get(i);
+        }
+        Arrays.sort(ordenadas);
+
+        System.out.println("Conexiones: " + numConexiones + " (retardo "
+                + retardo + " ms)");
+        System.out.println("Completadas: " + ordenadas.length + "  Fallos: "
+                + fallos);
+        System.out.printf("Duracion total: %.1f ms%n", duracion / 1e6);
+        System.out.println("Bytes recibidos: " + bytesRecibidos);
+
+        if (ordenadas.length > 0) {
+            System.out.printf(
+                    "Respuesta (ms): p50=%.2f p90=%.2f p99=%.2f max=%.2f%n",
+                    percentil(ordenadas, 0.50) / 1e6,
+                    percentil(ordenadas, 0.90) / 1e6,
+                    percentil(ordenadas, 0.99) / 1e6,
+                    ordenadas[ordenadas.length - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Comprueba si los [recibidos] primeros bytes de una respuesta, guardados
+     * en [estado], empiezan por la linea de estado de un 200
+     *
+     */
+    private static boolean esOk(byte[] estado, long recibidos) {
+        if (recibidos < ESTADO_OK.length) {
+            return false;
+        }
+        for (int i = 0; i < ESTADO_OK.length; i++) {
+            if (estado[i] != ESTADO_OK[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Devuelve el percentil [p] (entre 0 y 1) de un vector ordenado
+     *
+     */
+    private static long percentil(long[] ordenadas, double p) {
+        int i = (int) Math.ceil(p * ordenadas.length) - 1;
+        return ordenadas[Math.max(0, Math.min(i, ordenadas.length - 1))];
+    }
+}
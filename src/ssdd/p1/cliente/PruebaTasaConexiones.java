@@ -0,0 +1,226 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: PruebaTasaConexiones.java
+ * TIEMPO: 45 minutos
+ * DESCRIPCION: Prueba de rendimiento del servidor web (HTTP) con conexiones
+ *  de una sola peticion.
+ */
+
+package ssdd.p1.cliente;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prueba de rendimiento que, desde [hilos] hilos y durante [segundos]
+ * segundos, abre conexiones con el servidor y en cada una envia una unica
+ * peticion con "Connection: close" (como ClienteHTTP), lee la respuesta hasta
+ * que el servidor cierra y vuelve a empezar. Muestra las conexiones atendidas
+ * por segundo y el tiempo de cada una (desde que se abre hasta que se cierra).
+ * Las conexiones cuya respuesta no es un 200 (por ejemplo, las rechazadas por
+ * el control de admision) cuentan como fallos.
+ *
+ * Sirve para comparar el aceptador unico (-m) con los sockets SO_REUSEPORT
+ * (-r), por ejemplo:
+ *
+ * <pre>
+ * java ssdd.p1.servidor.Lanzador -r 4 8000
+ * java ssdd.p1.cliente.PruebaTasaConexiones localhost 8000 32 10
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class PruebaTasaConexiones {
+
+    /** Numero maximo de tiempos que guarda cada hilo */
+    private static final int MAX_MUESTRAS = 1 << 20;
+
+    /** Comienzo de la linea de estado de una respuesta correcta */
+    private static final byte[] ESTADO_OK = "HTTP/1.1 200".getBytes();
+
+    /**
+     * Imprime por pantalla las opciones de ejecucion disponibles.
+     *
+     */
+    private static void uso() {
+        System.out.println("Uso: <servidor> <puerto> [<hilos>] [<segundos>] "
+                + "[<ruta>]");
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length < 2 || args.length > 5) {
+            System.err.println("ERROR: Numero de parametros incorrecto.");
+            uso();
+            return;
+        }
+
+        try {
+            InetSocketAddress direccion = new InetSocketAddress(args[0],
+                    Integer.parseInt(args[1]));
+            int hilos = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+            int segundos = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+            String ruta = args.length > 4 ? args[4] : "/peers.txt";
+
+            // una primera ronda corta sirve de calentamiento
+            prueba(direccion, hilos, 2, ruta, false);
+            prueba(direccion, hilos, segundos, ruta, true);
+
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: Parametro numerico no valido.");
+            uso();
+        } catch (InterruptedException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ejecuta la prueba y, si [mostrar], muestra los resultados por pantalla.
+     *
+     */
+    private static void prueba(final InetSocketAddress direccion, int hilos,
+            int segundos, String ruta, boolean mostrar)
+            throws InterruptedException {
+
+        final byte[] peticion = ("GET " + ruta + " HTTP/1.1\r\n"
+                + "Host: localhost\r\nConnection: close\r\n\r\n").getBytes();
+        final long fin = System.nanoTime() + segundos * 1000000000L;
+        final AtomicLong fallos = new AtomicLong();
+        final long[][] tiempos = new long[hilos][];
+        final int[] numTiempos = new int[hilos];
+
+        Thread[] clientes = new Thread[hilos];
+        for (int i = 0; i < hilos; i++) {
+            final int id = i;
+            tiempos[id] = new long[1024];
+            clientes[i] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] bufer = new byte[16 * 1024];
+                    while (System.nanoTime() < fin) {
+                        long inicio = System.nanoTime();
+                        try {
+                            if (!conecta(direccion, peticion, bufer)) {
+                                fallos.incrementAndGet();
+                                continue;
+                            }
+                        } catch (IOException e) {
+                            fallos.incrementAndGet();
+                            continue;
+                        }
+                        long tiempo = System.nanoTime() - inicio;
+
+                        // guardar el tiempo, ampliando el vector si hace falta
+                        if (numTiempos[id] == tiempos[id].length
+                                && tiempos[id].length < MAX_MUESTRAS) {
+                            tiempos[id] = Arrays.copyOf(tiempos[id],
+                                    2 * tiempos[id].length);
+                        }
+                        if (numTiempos[id] < tiempos[id].length) {
+                            tiempos[id][numTiempos[id]++] = tiempo;
+                        }
+                    }
+                }
+            };
+            clientes[i].start();
+        }
+
+        for (Thread cliente : clientes) {
+            cliente.join();
+        }
+
+        if (!mostrar) {
+            return;
+        }
+
+        int total = 0;
+        for (int n : numTiempos) {
+            total += n;
+        }
+        long[] ordenados = new long[total];
+        int pos = 0;
+        for (int i = 0; i < hilos; i++) {
+            System.arraycopy(tiempos[i], 0, ordenados, pos, numTiempos[i]);
+            pos += numTiempos[i];
+        }
+        Arrays.sort(ordenados);
+
+        System.out.println("Hilos: " + hilos + "  Duracion: " + segundos
+                + " s  Ruta: " + ruta);
+        System.out.printf("Conexiones: %d (%.0f/s)  Fallos: %d%n", total,
+                total / (double) segundos, fallos.get());
+        if (total > 0) {
+            System.out.printf(
+                    "Conexion (ms): p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+                    percentil(ordenados, 0.50) / 1e6,
+                    percentil(ordenados, 0.99) / 1e6,
+                    percentil(ordenados, 0.999) / 1e6,
+                    ordenados[total - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Abre una conexion, envia [peticion] y lee la respuesta hasta que el
+     * servidor cierra la conexion
+     *
+     * @return cierto si y solo si la respuesta es un 200 (OK)
+     *
+     */
+    private static boolean conecta(InetSocketAddress direccion,
+            byte[] peticion, byte[] bufer) throws IOException {
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(direccion);
+            socket.getOutputStream().write(peticion);
+
+            // descartar la respuesta, conservando al principio del bufer el
+            // comienzo de la linea de estado
+            InputStream entrada = socket.getInputStream();
+            int recibidos = 0;
+            int leidos = entrada.read(bufer);
+            while (leidos >= 0) {
+                recibidos += leidos;
+                int desde = Math.min(recibidos, ESTADO_OK.length);
+                leidos = entrada.read(bufer, desde, bufer.length - desde);
+            }
+
+            return esOk(bufer, recibidos);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Comprueba si los [recibidos] primeros bytes de una respuesta, guardados
+     * en [estado], empiezan por la linea de estado de un 200
+     *
+     */
+    private static boolean esOk(byte[] estado, long recibidos) {
+        if (recibidos < ESTADO_OK.length) {
+            return false;
+        }
+        for (int i = 0; i < ESTADO_OK.length; i++) {
+            if (estado[i] != ESTADO_OK[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Devuelve el percentil [p] (entre 0 y 1) de un vector ordenado
+     *
+     */
+    private static long percentil(long[] ordenadas, double p) {
+        int i = (int) Math.ceil(p * ordenadas.length) - 1;
+        return ordenadas[Math.max(0, Math.min(i, ordenadas.length - 1))];
+    }
+}
@@ -8,13 +8,23 @@
  * Anteriormente se realizaba una unica lectura, que en los mencionados casos 
  * de sobrecarga de datos entrantes, no era suficiente para procesar 
  * toda la entrada.
+ * Tambien se ha modificado la lectura de lineas para que lea del flujo en
+ * bloques sobre un bufer reutilizable, en lugar de hacer una lectura (y una
+ * llamada al sistema) por cada byte.
+ * Por ultimo, el cuerpo puede entregarse por fragmentos a un ReceptorCuerpo
+ * en lugar de guardarse completo en memoria; el que el receptor rechaza se
+ * descarta sin guardarlo.
  */
 
 package ssdd.p1.herramientas;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -36,6 +46,33 @@ public class BlockingHTTPParser implements HTTPParser<InputStream> {
         return state == BAD_REQUEST;
     }
 
+    /*
+     * isStarted, isReadingBody y getBodyRead pueden consultarse desde otro
+     * hilo mientras este analiza la peticion (p. ej. para vigilar sus plazos)
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    public boolean isReadingBody() {
+        return readingBody;
+    }
+
+    /*
+     * Devuelve el numero de bytes del cuerpo recibidos hasta ahora
+     */
+    public long getBodyRead() {
+        return bodyRead;
+    }
+
+    /*
+     * Devuelve el instante (System.nanoTime) en el que se recibio el primer
+     * byte de la peticion (0 si aun no ha empezado)
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
     public String getMethod() {
         return method;
     }
@@ -44,27 +81,102 @@ public class BlockingHTTPParser implements HTTPParser<InputStream> {
         return path;
     }
 
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
     public ByteBuffer getBody() {
         return body;
     }
 
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setBodyReceiver(ReceptorCuerpo receiver) {
+        this.receiver = receiver;
+    }
+
+    public void reset() {
+        state = START;
+        body = null;
+        contentLength = -1;
+        method = "";
+        path = "";
+        keepAlive = true;
+        headers.clear();
+        endOfStream = false;
+        started = false;
+        startTime = 0;
+        readingBody = false;
+        bodyRead = 0;
+    }
+
+    /*
+     * Indica si el flujo se ha cerrado (o ha vencido su plazo de lectura)
+     * antes de recibir ningun byte de la peticion, es decir, si el cliente
+     * ha terminado la conexion en lugar de enviar una peticion erronea
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
     private final int START = 0;
     private final int COMPLETE = 1;
     private final int BAD_REQUEST = 2;
 
     private int state = START;
     private ByteBuffer body;
+    private int contentLength = -1;
+    // receptor al que se entrega el cuerpo a medida que se lee (o null)
+    private ReceptorCuerpo receiver;
     private String method = "";
     private String path = "";
+    private boolean keepAlive = true;
+    // cabeceras recibidas, por nombre en minusculas
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private boolean endOfStream = false;
+    private volatile boolean started = false;
+    private long startTime = 0;
+    private volatile boolean readingBody = false;
+    private volatile long bodyRead = 0;
+    // cierto si la ultima llamada a readLine termino sin leer ningun byte
+    private boolean nothingRead = true;
+
+    /*
+     * Bufer de entrada reutilizable: se lee del flujo en bloques de hasta
+     * INPUT_SIZE bytes en lugar de byte a byte. Lo que sobra tras una peticion
+     * pertenece a la siguiente, por lo que en conexiones persistentes se debe
+     * usar el mismo analizador (con reset) y el mismo flujo para todas ellas
+     */
+    private static final int INPUT_SIZE = 8192;
+    private static final int MAX_LINE = 1000;
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+    private final byte[] input = new byte[INPUT_SIZE];
+    private int inputPos = 0;
+    private int inputLimit = 0;
+    private final byte[] line = new byte[MAX_LINE];
     // private String remnant = "";
 
     private Pattern methodPattern = Pattern
             .compile("\\s*(\\w+)\\s+(\\S+)\\s+HTTP/1.1\\s*");
     private Pattern bodyLengthPattern = Pattern
             .compile("\\s*Content-Length:\\s*(\\d+)\\s*");
+    private Pattern connectionClosePattern = Pattern.compile(
+            "\\s*Connection:\\s*close\\s*", Pattern.CASE_INSENSITIVE);
 
     private boolean readMethod(InputStream stream) {
         String firstLine = readLine(stream);
+        /*
+         * Se ignoran las lineas vacias previas a la peticion (conexiones
+         * persistentes)
+         */
+        while (firstLine != null && firstLine.equals("")) {
+            firstLine = readLine(stream);
+        }
+        if (firstLine == null && nothingRead) {
+            endOfStream = true;
+        }
         if (firstLine != null) {
             Matcher matcher = methodPattern.matcher(firstLine);
             if (matcher.matches()) {
@@ -84,44 +196,90 @@ public class BlockingHTTPParser implements HTTPParser<InputStream> {
         while (line != null && !line.equals("")) {
             Matcher matcher = bodyLengthPattern.matcher(line);
             if (matcher.matches()) {
-                body = ByteBuffer.allocate(Integer.parseInt(matcher.group(1)));
+                try {
+                    contentLength = Integer.parseInt(matcher.group(1));
+                } catch (NumberFormatException e) {
+                    // longitud que no cabe en un int: peticion erronea
+                    return false;
+                }
+            } else if (connectionClosePattern.matcher(line).matches()) {
+                keepAlive = false;
             }
+            storeHeader(line);
             line = readLine(stream);
         }
         return line != null;
     }
 
+    /*
+     * Guarda la cabecera "nombre: valor" de la linea [line] (las lineas sin
+     * ':' se ignoran). Los valores de una cabecera repetida se unen con comas
+     */
+    private void storeHeader(String line) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = line.substring(0, colon).trim().toLowerCase();
+        String value = line.substring(colon + 1).trim();
+        String previous = headers.get(name);
+        headers.put(name, previous == null ? value : previous + ", " + value);
+    }
+
     /**
      * Metodo encargado de leer el cuerpo de la peticion. Se ha modificado con
      * respecto al original para que sea capaz de atender peticiones
-     * extremadamente largas
+     * extremadamente largas. Primero se toma lo que ya se habia leido junto
+     * con las cabeceras y el resto se lee directamente sobre el cuerpo.
+     * Sin receptor, los cuerpos de mas de MAX_BODY bytes se rechazan en lugar
+     * de reservar la longitud que indica el cliente.
      * 
      */
     private boolean readBody(InputStream stream) {
+        readingBody = contentLength > 0;
+        try {
+            return readBodyContent(stream);
+        } finally {
+            readingBody = false;
+        }
+    }
+
+    private boolean readBodyContent(InputStream stream) {
+        long length = Math.max(contentLength, 0);
+        if (receiver != null) {
+            if (receiver.inicia(method, length)) {
+                return streamBody(stream, length, receiver);
+            }
+            return streamBody(stream, length, null);
+        }
+        if (contentLength > MAX_BODY) {
+            return false;
+        }
+        if (contentLength >= 0) {
+            body = ByteBuffer.allocate(contentLength);
+        }
         if (body != null) {
             try {
-                int pos = 0;
-                int len = body.array().length;
-                int numLeidos;
-                int numBytesTmp;
-
-                if (len >= 1024) {
-                    numBytesTmp = 1024;
-                } else {
-                    numBytesTmp = len;
-                }
+                byte[] dest = body.array();
+                int len = dest.length;
 
-                // crea bufer intermedio
-                byte[] tmp = new byte[numBytesTmp];
+                // bytes del cuerpo que ya estan en el bufer de entrada
+                int pos = Math.min(len, inputLimit - inputPos);
+                System.arraycopy(input, inputPos, dest, 0, pos);
+                inputPos += pos;
+                bodyRead = pos;
 
-                // rellena el cuerpo en varias iteraciones (si es necesario)
-                // hasta haber leido toda la entrada
+                // rellena el resto del cuerpo en varias iteraciones (si es
+                // necesario) hasta haber leido toda la entrada
                 while (pos < len) {
-                    numLeidos = stream.read(tmp, 0, tmp.length);
-                    body.put(tmp, 0, numLeidos);
-
+                    int numLeidos = stream.read(dest, pos, len - pos);
+                    if (numLeidos < 0) {
+                        return false;
+                    }
                     pos += numLeidos;
+                    bodyRead = pos;
                 }
+                body.position(len);
 
             } catch (IOException e) {
                 e.printStackTrace();
@@ -131,24 +289,87 @@ public class BlockingHTTPParser implements HTTPParser<InputStream> {
         return true;
     }
 
-    private static String readLine(InputStream stream) {
-        String result = new String("");
-        do {
-            int nextChar = -1;
-            try {
-                nextChar = stream.read();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /*
+     * Entrega el cuerpo al receptor [destino] por fragmentos, pasando por el
+     * bufer de entrada, de forma que la memoria usada no depende de su
+     * longitud (si [destino] es null, el cuerpo se descarta). Lo que se lea
+     * despues del cuerpo se queda en el bufer de entrada
+     */
+    private boolean streamBody(InputStream stream, long length,
+            ReceptorCuerpo destino) {
+        long remaining = length;
+        while (remaining > 0) {
+            if (inputPos == inputLimit) {
+                int numLeidos = -1;
+                try {
+                    numLeidos = stream.read(input, 0, input.length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (numLeidos <= 0) {
+                    return false;
+                }
+                inputPos = 0;
+                inputLimit = numLeidos;
+            }
+            int n = (int) Math.min(remaining, inputLimit - inputPos);
+            if (destino != null) {
+                destino.recibe(ByteBuffer.wrap(input, inputPos, n));
             }
+            inputPos += n;
+            remaining -= n;
+            bodyRead = length - remaining;
+        }
+        if (destino != null) {
+            destino.termina();
+        }
+        return true;
+    }
+
+    /*
+     * Lee una linea (sin el final de linea) del bufer de entrada, que se
+     * rellena con lecturas en bloque del flujo cuando se agota
+     */
+    private String readLine(InputStream stream) {
+        int length = 0;
+        nothingRead = true;
+        do {
+            int nextChar = nextByte(stream);
             if (nextChar == -1)
                 return null;
-            char actualChar = (char) nextChar;
-            if (actualChar == '\n')
-                return result;
-            if (actualChar != '\r') {
-                result += actualChar;
+            nothingRead = false;
+            if (nextChar == '\n')
+                return new String(line, 0, length, LATIN_1);
+            if (nextChar != '\r') {
+                line[length++] = (byte) nextChar;
+                if (!started) {
+                    startTime = System.nanoTime();
+                    started = true;
+                }
             }
-        } while (result.length() < 1000);
+        } while (length < MAX_LINE);
         return null;
     }
+
+    /*
+     * Devuelve el siguiente byte de la entrada, o -1 si el flujo se ha
+     * cerrado (o ha vencido su plazo de lectura)
+     */
+    private int nextByte(InputStream stream) {
+        if (inputPos == inputLimit) {
+            int numLeidos = -1;
+            try {
+                numLeidos = stream.read(input, 0, input.length);
+            } catch (SocketTimeoutException e) {
+                // plazo de inactividad vencido: se trata como fin del flujo
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (numLeidos <= 0)
+                return -1;
+            inputPos = 0;
+            inputLimit = numLeidos;
+        }
+        return input[inputPos++] & 0xff;
+    }
 }
@@ -0,0 +1,672 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: ByteLevelHTTPParser.java
+ * TIEMPO: 4 horas
+ * DESCRIPCION: Analizador HTTP no bloqueante que trabaja byte a byte, sin
+ *  expresiones regulares ni objetos intermedios por cada linea.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Analizador HTTP no bloqueante implementado como una maquina de estados que
+ * consume la entrada byte a byte. Acepta y rechaza las mismas peticiones que
+ * NonBlockingHTTPParser, pero no crea cadenas ni objetos por cada linea ni
+ * usa expresiones regulares: el metodo y la ruta se copian a un vector
+ * reutilizable y las cabeceras que interesan (Content-Length y Connection) se
+ * interpretan segun llegan. El resto de cabeceras se copian tal cual a otro
+ * vector reutilizable y solo se interpretan si se piden con getHeader. Las
+ * unicas reservas de memoria por peticion son la ruta y las cabeceras (al
+ * pedirlas) y el cuerpo, que solo se guarda si no hay receptor (y como mucho
+ * MAX_BODY bytes).
+ *
+ * Las diferencias con NonBlockingHTTPParser son deliberadas: el nombre de las
+ * cabeceras no distingue mayusculas de minusculas, un final de linea "\r\n"
+ * partido entre dos lecturas se trata como uno solo, y una linea de peticion
+ * de mas de MAX_LINE bytes o un Content-Length que no cabe en un int se
+ * rechazan como peticion erronea.
+ *
+ * Igual que NonBlockingHTTPParser, deja en el bufer los bytes que siguen a una
+ * peticion completa (peticiones encadenadas).
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class ByteLevelHTTPParser implements HTTPParser<ByteBuffer> {
+
+    // ESTADOS DE LA LINEA DE PETICION
+
+    /** Antes del metodo (se ignoran las lineas vacias) */
+    private static final int METHOD_START = 0;
+    /** Espacios antes del metodo */
+    private static final int METHOD_SPACE = 1;
+    /** Dentro del metodo */
+    private static final int METHOD = 2;
+    /** Espacios entre el metodo y la ruta */
+    private static final int BEFORE_PATH = 3;
+    /** Dentro de la ruta */
+    private static final int PATH = 4;
+    /** Espacios entre la ruta y la version */
+    private static final int BEFORE_VERSION = 5;
+    /** Dentro de la version */
+    private static final int VERSION = 6;
+    /** Espacios tras la version */
+    private static final int AFTER_VERSION = 7;
+
+    // ESTADOS DE LAS CABECERAS
+
+    /** Principio de una linea de cabecera */
+    private static final int HEADER_START = 8;
+    /** Dentro del nombre de una cabecera */
+    private static final int HEADER_NAME = 9;
+    /** Dentro del valor de una cabecera */
+    private static final int HEADER_VALUE = 10;
+    /** Resto de una linea que no interesa */
+    private static final int HEADER_IGNORE = 11;
+
+    // ESTADOS FINALES (a partir de READ_BODY ya no se analiza byte a byte)
+
+    private static final int READ_BODY = 12;
+    private static final int COMPLETE = 13;
+    private static final int BAD_REQUEST = 14;
+
+    // CABECERAS RECONOCIDAS
+
+    private static final int OTHER = 0;
+    private static final int CONTENT_LENGTH = 1;
+    private static final int CONNECTION = 2;
+
+    private static final byte[] CONTENT_LENGTH_NAME = "content-length"
+            .getBytes();
+    private static final byte[] CONNECTION_NAME = "connection".getBytes();
+    private static final byte[] CLOSE_VALUE = "close".getBytes();
+    private static final byte[] VERSION_TEXT = "HTTP/1.1".getBytes();
+    private static final byte[] GET_TEXT = "GET".getBytes();
+    private static final byte[] POST_TEXT = "POST".getBytes();
+
+    // ESTADO DEL VALOR DE UNA CABECERA
+
+    private static final int VALUE_START = 0;
+    private static final int VALUE_TOKEN = 1;
+    private static final int VALUE_END = 2;
+    private static final int VALUE_INVALID = 3;
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    /** Longitud maxima del metodo mas la ruta */
+    public static final int MAX_LINE = 8192;
+
+    /**
+     * Longitud maxima del total de las lineas de cabecera que se guardan para
+     * getHeader (las que no caben se descartan)
+     */
+    public static final int MAX_HEADERS = 8192;
+
+    /** Longitud maxima del nombre de una cabecera reconocida */
+    private static final int MAX_NAME = 32;
+
+    private int state = METHOD_START;
+
+    /** Metodo y ruta, uno a continuacion del otro */
+    private final byte[] line = new byte[MAX_LINE];
+    private int methodLength;
+    private int lineLength;
+
+    /**
+     * Lineas de cabecera recibidas, terminadas cada una en '\n', y comienzo
+     * de la linea en curso (que se descarta si no cabe)
+     */
+    private final byte[] headers = new byte[MAX_HEADERS];
+    private int headersLength;
+    private int headerStart;
+    private boolean headerOverflow;
+
+    /** Nombre (en minusculas) de la cabecera en curso */
+    private final byte[] name = new byte[MAX_NAME];
+    private int nameLength;
+
+    /** Cabecera en curso y estado de su valor */
+    private int header;
+    private int valueState;
+    private long valueNumber;
+    private int valueLength;
+
+    /** Posicion dentro de "HTTP/1.1" */
+    private int versionIndex;
+
+    /** Cierto si el ultimo byte fue '\r' (un '\n' a continuacion se ignora) */
+    private boolean pendingLF;
+
+    private int contentLength = -1;
+    private boolean keepAlive = true;
+    private ByteBuffer body;
+
+    /**
+     * Receptor del cuerpo, si lo esta recibiendo (o si se esta descartando) y
+     * bytes del cuerpo que faltan por recibir
+     */
+    private ReceptorCuerpo receiver;
+    private boolean streaming;
+    private boolean discarding;
+    private long bodyRemaining;
+
+    private String method;
+    private String path;
+
+    public void parseRequest(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int limit = buffer.limit();
+
+        while (pos < limit && state < READ_BODY) {
+            byte c = buffer.get(pos++);
+            if (pendingLF) {
+                pendingLF = false;
+                if (c == '\n') {
+                    continue;
+                }
+            }
+            if (state == HEADER_IGNORE) {
+                // camino rapido: copiar hasta el final de la linea
+                while (c != '\r' && c != '\n' && pos < limit) {
+                    keep(c);
+                    c = buffer.get(pos++);
+                }
+                if (c != '\r' && c != '\n') {
+                    keep(c);
+                    break;
+                }
+            }
+            step(c);
+        }
+
+        // consumir el '\n' que sigue al '\r' de la linea vacia
+        if (pendingLF && state >= READ_BODY && pos < limit
+                && buffer.get(pos) == '\n') {
+            pendingLF = false;
+            pos++;
+        }
+
+        buffer.position(pos);
+
+        if (state == READ_BODY) {
+            readBody(buffer);
+        }
+    }
+
+    public boolean isComplete() {
+        return state == COMPLETE;
+    }
+
+    public boolean failed() {
+        return state == BAD_REQUEST;
+    }
+
+    public boolean isStarted() {
+        return state != METHOD_START;
+    }
+
+    public boolean isReadingBody() {
+        return state == READ_BODY;
+    }
+
+    public String getMethod() {
+        if (method == null) {
+            if (equals(line, 0, methodLength, GET_TEXT)) {
+                method = "GET";
+            } else if (equals(line, 0, methodLength, POST_TEXT)) {
+                method = "POST";
+            } else {
+                method = new String(line, 0, methodLength);
+            }
+        }
+        return method;
+    }
+
+    public String getPath() {
+        if (path == null) {
+            path = new String(line, methodLength, lineLength - methodLength);
+        }
+        return path;
+    }
+
+    public String getHeader(String name) {
+        String value = null;
+        int start = 0;
+        for (int end = 0; end < headersLength; end++) {
+            if (headers[end] != '\n') {
+                continue;
+            }
+            int colon = start;
+            while (colon < end && headers[colon] != ':') {
+                colon++;
+            }
+            if (colon < end && equalsIgnoreCase(start, colon, name)) {
+                int from = trimStart(colon + 1, end);
+                String current = new String(headers, from,
+                        trimEnd(from, end) - from, LATIN_1);
+                value = value == null ? current : value + ", " + current;
+            }
+            start = end + 1;
+        }
+        return value;
+    }
+
+    public ByteBuffer getBody() {
+        return body;
+    }
+
+    public void setBodyReceiver(ReceptorCuerpo receiver) {
+        this.receiver = receiver;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void reset() {
+        state = METHOD_START;
+        methodLength = 0;
+        lineLength = 0;
+        nameLength = 0;
+        header = OTHER;
+        versionIndex = 0;
+        contentLength = -1;
+        keepAlive = true;
+        body = null;
+        streaming = false;
+        discarding = false;
+        method = null;
+        path = null;
+        headersLength = 0;
+        headerOverflow = false;
+        // pendingLF se conserva: el '\n' de la peticion anterior puede
+        // llegar en la siguiente lectura
+    }
+
+    /**
+     * Avanza la maquina de estados con el byte [c]
+     *
+     */
+    private void step(byte c) {
+        boolean endOfLine = c == '\r' || c == '\n';
+        if (c == '\r') {
+            pendingLF = true;
+        }
+
+        switch (state) {
+
+        case METHOD_START:
+            if (endOfLine) {
+                // linea vacia antes de la peticion: se ignora
+            } else if (isSpace(c)) {
+                state = METHOD_SPACE;
+            } else if (isWordChar(c)) {
+                state = METHOD;
+                store(c);
+            } else {
+                state = BAD_REQUEST;
+            }
+            break;
+
+        case METHOD_SPACE:
+            if (isWordChar(c)) {
+                state = METHOD;
+                store(c);
+            } else if (!isSpace(c)) {
+                state = BAD_REQUEST;
+            }
+            break;
+
+        case METHOD:
+            if (isWordChar(c)) {
+                store(c);
+            } else if (isSpace(c)) {
+                methodLength = lineLength;
+                state = BEFORE_PATH;
+            } else {
+                state = BAD_REQUEST;
+            }
+            break;
+
+        case BEFORE_PATH:
+            if (endOfLine) {
+                state = BAD_REQUEST;
+            } else if (!isSpace(c)) {
+                state = PATH;
+                store(c);
+            }
+            break;
+
+        case PATH:
+            if (endOfLine) {
+                state = BAD_REQUEST;
+            } else if (isSpace(c)) {
+                state = BEFORE_VERSION;
+            } else {
+                store(c);
+            }
+            break;
+
+        case BEFORE_VERSION:
+            if (c == VERSION_TEXT[0]) {
+                versionIndex = 1;
+                state = VERSION;
+            } else if (!isSpace(c)) {
+                state = BAD_REQUEST;
+            }
+            break;
+
+        case VERSION:
+            if (c == VERSION_TEXT[versionIndex]) {
+                versionIndex++;
+                if (versionIndex == VERSION_TEXT.length) {
+                    state = AFTER_VERSION;
+                }
+            } else {
+                state = BAD_REQUEST;
+            }
+            break;
+
+        case AFTER_VERSION:
+            if (endOfLine) {
+                state = HEADER_START;
+            } else if (!isSpace(c)) {
+                state = BAD_REQUEST;
+            }
+            break;
+
+        case HEADER_START:
+            if (endOfLine) {
+                endHeaders();
+                break;
+            }
+            nameLength = 0;
+            header = OTHER;
+            state = HEADER_NAME;
+            headerStart = headersLength;
+            keep(c);
+            headerName(c);
+            break;
+
+        case HEADER_NAME:
+            if (endOfLine) {
+                endHeaderLine();
+                state = HEADER_START;
+            } else {
+                keep(c);
+                headerName(c);
+            }
+            break;
+
+        case HEADER_VALUE:
+            if (endOfLine) {
+                endHeaderValue();
+                endHeaderLine();
+                state = HEADER_START;
+            } else {
+                keep(c);
+                headerValue(c);
+            }
+            break;
+
+        case HEADER_IGNORE:
+            if (endOfLine) {
+                endHeaderLine();
+                state = HEADER_START;
+            } else {
+                keep(c);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Procesa un byte del nombre de una cabecera
+     *
+     */
+    private void headerName(byte c) {
+        if (c == ':') {
+            header = identify();
+            valueState = VALUE_START;
+            valueNumber = 0;
+            valueLength = 0;
+            state = header == OTHER ? HEADER_IGNORE : HEADER_VALUE;
+        } else if (isSpace(c)) {
+            // se admiten espacios antes del nombre, pero no dentro
+            if (nameLength > 0) {
+                state = HEADER_IGNORE;
+            }
+        } else if (nameLength < MAX_NAME) {
+            name[nameLength++] = toLower(c);
+        } else {
+            state = HEADER_IGNORE;
+        }
+    }
+
+    /**
+     * Procesa un byte del valor de una cabecera reconocida
+     *
+     */
+    private void headerValue(byte c) {
+        if (isSpace(c)) {
+            if (valueState == VALUE_TOKEN) {
+                valueState = VALUE_END;
+            }
+        } else if (valueState == VALUE_END || valueState == VALUE_INVALID) {
+            valueState = VALUE_INVALID;
+        } else if (header == CONTENT_LENGTH) {
+            if (c >= '0' && c <= '9') {
+                valueState = VALUE_TOKEN;
+                valueNumber = valueNumber * 10 + (c - '0');
+                if (valueNumber > Integer.MAX_VALUE) {
+                    state = BAD_REQUEST;
+                }
+            } else {
+                valueState = VALUE_INVALID;
+            }
+        } else if (header == CONNECTION) {
+            if (valueLength < CLOSE_VALUE.length
+                    && toLower(c) == CLOSE_VALUE[valueLength]) {
+                valueState = VALUE_TOKEN;
+                valueLength++;
+            } else {
+                valueState = VALUE_INVALID;
+            }
+        }
+    }
+
+    /**
+     * Aplica el valor de la cabecera reconocida al llegar al final de linea
+     *
+     */
+    private void endHeaderValue() {
+        if (valueState == VALUE_TOKEN || valueState == VALUE_END) {
+            if (header == CONTENT_LENGTH) {
+                contentLength = (int) valueNumber;
+            } else if (header == CONNECTION
+                    && valueLength == CLOSE_VALUE.length) {
+                keepAlive = false;
+            }
+        }
+    }
+
+    /**
+     * Fin de las cabeceras: se pasa a leer el cuerpo (si lo hay)
+     *
+     */
+    private void endHeaders() {
+        if (receiver != null) {
+            // el cuerpo se entrega al receptor sin guardarlo o, si no lo
+            // quiere, se descarta segun llega
+            streaming = receiver.inicia(getMethod(),
+                    Math.max(contentLength, 0));
+            discarding = !streaming;
+            bodyRemaining = Math.max(contentLength, 0);
+            if (bodyRemaining > 0) {
+                state = READ_BODY;
+            } else {
+                if (streaming) {
+                    receiver.termina();
+                }
+                state = COMPLETE;
+            }
+        } else if (contentLength > MAX_BODY) {
+            // sin receptor, el cuerpo se guarda en memoria: no se reserva
+            // lo que pida el cliente
+            state = BAD_REQUEST;
+        } else if (contentLength >= 0) {
+            body = ByteBuffer.allocate(contentLength);
+            state = READ_BODY;
+        } else {
+            state = COMPLETE;
+        }
+    }
+
+    private void readBody(ByteBuffer buffer) {
+        // el '\n' de la linea vacia puede llegar en esta lectura
+        if (pendingLF && buffer.hasRemaining()) {
+            pendingLF = false;
+            if (buffer.get(buffer.position()) == '\n') {
+                buffer.get();
+            }
+        }
+        if (streaming || discarding) {
+            int n = (int) Math.min(buffer.remaining(), bodyRemaining);
+            if (streaming) {
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + n);
+                receiver.recibe(buffer);
+                buffer.limit(limit);
+            } else {
+                buffer.position(buffer.position() + n);
+            }
+            bodyRemaining -= n;
+            if (bodyRemaining == 0) {
+                if (streaming) {
+                    receiver.termina();
+                }
+                state = COMPLETE;
+            }
+            return;
+        }
+        int n = Math.min(buffer.remaining(), body.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + n);
+        body.put(buffer);
+        buffer.limit(limit);
+        if (!body.hasRemaining()) {
+            body.flip();
+            state = COMPLETE;
+        }
+    }
+
+    /**
+     * Copia el byte [c] de la linea de cabecera en curso
+     *
+     */
+    private void keep(byte c) {
+        if (headersLength < MAX_HEADERS) {
+            headers[headersLength++] = c;
+        } else {
+            headerOverflow = true;
+        }
+    }
+
+    /**
+     * Termina la linea de cabecera en curso, o la descarta si no ha cabido
+     *
+     */
+    private void endHeaderLine() {
+        if (headerOverflow || headersLength == MAX_HEADERS) {
+            headersLength = headerStart;
+            headerOverflow = false;
+        } else {
+            headers[headersLength++] = '\n';
+        }
+    }
+
+    /*
+     * Compara el nombre de cabecera guardado en [from, to) (sin los espacios
+     * de los lados) con [name], sin distinguir mayusculas de minusculas
+     */
+    private boolean equalsIgnoreCase(int from, int to, String name) {
+        from = trimStart(from, to);
+        to = trimEnd(from, to);
+        if (to - from != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c > 0x7f || toLower(headers[from + i]) != toLower((byte) c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && isSpace(headers[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && isSpace(headers[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+
+    private int identify() {
+        if (equals(name, 0, nameLength, CONTENT_LENGTH_NAME)) {
+            return CONTENT_LENGTH;
+        } else if (equals(name, 0, nameLength, CONNECTION_NAME)) {
+            return CONNECTION;
+        }
+        return OTHER;
+    }
+
+    private void store(byte c) {
+        if (lineLength < MAX_LINE) {
+            line[lineLength++] = c;
+        } else {
+            state = BAD_REQUEST;
+        }
+    }
+
+    private static boolean equals(byte[] a, int from, int length, byte[] b) {
+        if (length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[from + i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Espacio en blanco dentro de una linea (\s salvo los finales de linea)
+     */
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == 0x0B || c == '\f';
+    }
+
+    /*
+     * Caracter de palabra (\w): letras, digitos y '_'
+     */
+    private static boolean isWordChar(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static byte toLower(byte c) {
+        return c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: CacheFicheros.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Cache en memoria de las respuestas a peticiones GET.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Cache en memoria de las respuestas completas (cabecera y cuerpo, ya
+ * codificadas en bytes) a las peticiones GET de ficheros. Esta acotada por el
+ * numero total de bytes que ocupa: cuando se llena, se descartan las entradas
+ * usadas hace mas tiempo (LRU). Cada vez que se consulta una entrada se
+ * comprueba que el fichero no haya cambiado (fecha de modificacion y
+ * longitud); si ha cambiado se vuelve a leer.
+ *
+ * Junto a cada respuesta se guarda, la primera vez que la pide un cliente que
+ * admite gzip, su variante comprimida (con el maximo nivel de compresion, ya
+ * que solo se comprime una vez por version del fichero). Si la compresion no
+ * reduce el cuerpo al menos un 10% se recuerda que no compensa y se envia
+ * siempre la original.
+ *
+ * Los ficheros demasiado grandes no se guardan: se envian directamente desde
+ * disco (sin comprimir). En cambio, la version (y los validadores HTTP) de cada fichero se
+ * guardan siempre, hasta MAX_VERSIONES ficheros, para no recalcularlos en
+ * cada peticion.
+ *
+ * Puede usarse desde varios hilos a la vez.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class CacheFicheros {
+
+    /**
+     * Respuesta guardada en la cache y version del fichero a partir de la
+     * que se genero
+     *
+     */
+    private static class Entrada {
+
+        /** Fecha de modificacion del fichero */
+        long modificado;
+
+        /** Longitud del fichero */
+        long longitud;
+
+        /** Respuesta completa (solo lectura) */
+        ByteBuffer datos;
+
+        /** Cierto si ya se ha intentado comprimir la respuesta */
+        boolean comprimida;
+
+        /**
+         * Respuesta completa con el cuerpo comprimido con gzip (solo
+         * lectura), o null si no compensa o aun no se ha comprimido
+         */
+        ByteBuffer datosGzip;
+    }
+
+    /** Numero maximo de ficheros cuya version se guarda */
+    private static final int MAX_VERSIONES = 4096;
+
+    /**
+     * Proporcion maxima (en decimas) entre el cuerpo comprimido y el original
+     * para que se guarde la variante comprimida
+     */
+    private static final int MAX_PROPORCION_GZIP = 9;
+
+    /** Numero maximo de bytes que pueden ocupar las respuestas guardadas */
+    private final long capacidad;
+
+    /** Tamano maximo de un fichero para que se guarde en la cache */
+    private final long tamanoMaximo;
+
+    /** Numero de bytes que ocupan las respuestas guardadas */
+    private long ocupado;
+
+    /**
+     * Entradas de la cache indexadas por la ruta absoluta del fichero, en
+     * orden de acceso (la primera es la usada hace mas tiempo)
+     *
+     */
+    private final LinkedHashMap<String, Entrada> entradas;
+
+    /**
+     * Version actual de cada fichero consultado, indexadas por su ruta
+     * absoluta, en orden de acceso
+     *
+     */
+    private final LinkedHashMap<String, VersionFichero> versiones;
+
+    /**
+     * Metodo constructor de la clase. Crea una cache vacia.
+     *
+     * @param capacidad : Numero maximo de bytes que puede ocupar la cache
+     * @param tamanoMaximo : Tamano maximo (en bytes) de un fichero para que se
+     *            guarde en la cache
+     *
+     */
+    public CacheFicheros(long capacidad, long tamanoMaximo) {
+        this.capacidad = capacidad;
+        this.tamanoMaximo = tamanoMaximo;
+        this.ocupado = 0;
+        this.entradas = new LinkedHashMap<String, Entrada>(16, 0.75f, true);
+        this.versiones = new LinkedHashMap<String, VersionFichero>(16, 0.75f,
+                true);
+    }
+
+    /**
+     * Devuelve la version actual del fichero [fichero], con sus validadores
+     * HTTP. Solo se calcula de nuevo si el fichero ha cambiado desde la
+     * ultima consulta.
+     *
+     * @param fichero : Fichero solicitado
+     * @return version actual del fichero
+     *
+     */
+    public VersionFichero version(File fichero) {
+
+        String ruta = fichero.getAbsolutePath();
+        long modificado = fichero.lastModified();
+        long longitud = fichero.length();
+
+        synchronized (this) {
+            VersionFichero version = versiones.get(ruta);
+            if (version != null && version.getModificado() == modificado
+                    && version.getLongitud() == longitud) {
+                return version;
+            }
+        }
+
+        VersionFichero nueva = new VersionFichero(modificado, longitud);
+
+        synchronized (this) {
+            versiones.put(ruta, nueva);
+
+            // descartar la consultada hace mas tiempo si no cabe
+            if (versiones.size() > MAX_VERSIONES) {
+                Iterator<String> it = versiones.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+
+        return nueva;
+    }
+
+    /**
+     * Devuelve una respuesta 200 (OK) con el contenido del fichero [fichero]
+     * y los validadores de su version [version], sacada de la cache si la
+     * version guardada sigue siendo esa, o leyendo el fichero (y guardandolo)
+     * en caso contrario.
+     *
+     * @param fichero : Fichero solicitado
+     * @param version : Version actual del fichero (ver version)
+     * @return respuesta HTTP completa, o null si el fichero es demasiado
+     *         grande para la cache o no se ha podido leer
+     *
+     */
+    public Respuesta obtiene(File fichero, VersionFichero version) {
+
+        Entrada entrada = entrada(fichero, version);
+
+        if (entrada == null) {
+            return null;
+        }
+
+        return new Respuesta(entrada.datos.duplicate(), null);
+    }
+
+    /**
+     * Devuelve una respuesta 200 (OK) con el contenido del fichero [fichero]
+     * comprimido con gzip y las cabeceras de esa variante de su version
+     * [version]. La variante se genera (y se guarda junto a la original) la
+     * primera vez que se pide para cada version; si varios clientes la piden
+     * a la vez, solo uno la genera y el resto la espera.
+     *
+     * @param fichero : Fichero solicitado
+     * @param version : Version actual del fichero (ver version)
+     * @return respuesta HTTP completa, o null si el fichero es demasiado
+     *         grande para la cache, no se ha podido leer o no compensa
+     *         comprimirlo (se debe enviar sin comprimir)
+     *
+     */
+    public Respuesta obtieneGzip(File fichero, VersionFichero version) {
+
+        Entrada entrada = entrada(fichero, version);
+
+        if (entrada == null) {
+            return null;
+        }
+
+        ByteBuffer datosGzip;
+
+        synchronized (this) {
+            datosGzip = entrada.datosGzip;
+        }
+
+        // comprimir fuera del cerrojo de la cache, pero una sola vez por
+        // entrada
+        if (datosGzip == null) {
+            synchronized (entrada) {
+                if (!entrada.comprimida) {
+                    ByteBuffer nuevos = comprime(entrada, version);
+
+                    synchronized (this) {
+                        entrada.datosGzip = nuevos;
+                        entrada.comprimida = true;
+
+                        // si la entrada sigue guardada, ahora ocupa mas
+                        if (nuevos != null && entradas.get(
+                                fichero.getAbsolutePath()) == entrada) {
+                            ocupado += nuevos.capacity();
+                            recorta();
+                        }
+                    }
+                }
+            }
+
+            synchronized (this) {
+                datosGzip = entrada.datosGzip;
+            }
+        }
+
+        if (datosGzip == null) {
+            return null;
+        }
+
+        return new Respuesta(datosGzip.duplicate(), null);
+    }
+
+    /**
+     * Descarta la respuesta guardada para el fichero [fichero], si la hay.
+     * Debe invocarse siempre que se modifique un fichero.
+     *
+     * @param fichero : Fichero modificado
+     *
+     */
+    public synchronized void invalida(File fichero) {
+        elimina(fichero.getAbsolutePath());
+        versiones.remove(fichero.getAbsolutePath());
+    }
+
+    /**
+     * Metodo auxiliar que devuelve la entrada del fichero [fichero] si la
+     * version guardada sigue siendo [version], o lee el fichero (y lo guarda)
+     * en caso contrario.
+     *
+     * @return entrada actual, o null si el fichero es demasiado grande para
+     *         la cache o no se ha podido leer
+     *
+     */
+    private Entrada entrada(File fichero, VersionFichero version) {
+
+        String ruta = fichero.getAbsolutePath();
+        long modificado = version.getModificado();
+        long longitud = version.getLongitud();
+
+        synchronized (this) {
+            Entrada entrada = entradas.get(ruta);
+
+            // si esta guardada y el fichero no ha cambiado
+            if (entrada != null && entrada.modificado == modificado
+                    && entrada.longitud == longitud) {
+                return entrada;
+            }
+
+            // si ha cambiado, la version guardada ya no sirve
+            if (entrada != null) {
+                elimina(ruta);
+            }
+        }
+
+        if (longitud > tamanoMaximo) {
+            return null;
+        }
+
+        // leer el fichero fuera del cerrojo para no bloquear al resto
+        Entrada nueva = lee(fichero, version);
+
+        if (nueva == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            inserta(ruta, nueva);
+        }
+
+        return nueva;
+    }
+
+    /**
+     * Metodo auxiliar que guarda una entrada y descarta las usadas hace mas
+     * tiempo hasta que la cache vuelva a caber en su capacidad.
+     *
+     */
+    private void inserta(String ruta, Entrada nueva) {
+
+        elimina(ruta);
+        entradas.put(ruta, nueva);
+        ocupado += ocupa(nueva);
+
+        recorta();
+    }
+
+    /**
+     * Metodo auxiliar que descarta las entradas usadas hace mas tiempo hasta
+     * que la cache vuelva a caber en su capacidad.
+     *
+     */
+    private void recorta() {
+        Iterator<Map.Entry<String, Entrada>> it = entradas.entrySet()
+                .iterator();
+        while (ocupado > capacidad && it.hasNext()) {
+            Entrada antigua = it.next().getValue();
+            ocupado -= ocupa(antigua);
+            it.remove();
+        }
+    }
+
+    /**
+     * Metodo auxiliar que descarta la entrada de la ruta [ruta], si la hay.
+     *
+     */
+    private void elimina(String ruta) {
+        Entrada antigua = entradas.remove(ruta);
+        if (antigua != null) {
+            ocupado -= ocupa(antigua);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que devuelve el numero de bytes que ocupa la entrada
+     * [entrada] (la respuesta original y, si la hay, la comprimida).
+     *
+     */
+    private static long ocupa(Entrada entrada) {
+        long bytes = entrada.datos.capacity();
+        if (entrada.datosGzip != null) {
+            bytes += entrada.datosGzip.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Metodo auxiliar que comprime el cuerpo de la respuesta de la entrada
+     * [entrada] y genera la respuesta de la variante comprimida.
+     *
+     * @return respuesta comprimida, o null si no compensa
+     *
+     */
+    private static ByteBuffer comprime(Entrada entrada,
+            VersionFichero version) {
+
+        ByteBuffer cuerpo = entrada.datos.duplicate();
+        cuerpo.position(cuerpo.limit() - (int) entrada.longitud);
+
+        byte[] comprimido = CompresionGzip.comprime(cuerpo,
+                Deflater.BEST_COMPRESSION);
+
+        if (comprimido.length * 10L > entrada.longitud
+                * MAX_PROPORCION_GZIP) {
+            return null;
+        }
+
+        byte[] cabecera = Utiles.generaCabeceraBytes(200, comprimido.length,
+                version.getCabecerasGzip());
+        ByteBuffer datos = ByteBuffer
+                .allocateDirect(cabecera.length + comprimido.length);
+        datos.put(cabecera);
+        datos.put(comprimido);
+        datos.flip();
+
+        return datos.asReadOnlyBuffer();
+    }
+
+    /**
+     * Metodo auxiliar que lee el fichero completo y genera su respuesta.
+     *
+     * @return entrada con la respuesta, o null si el fichero no se ha podido
+     *         leer o ha cambiado de longitud mientras se leia
+     *
+     */
+    private static Entrada lee(File fichero, VersionFichero version) {
+
+        long longitud = version.getLongitud();
+        byte[] cabecera = Utiles.generaCabeceraBytes(200, longitud,
+                version.getCabeceras());
+        ByteBuffer datos = ByteBuffer
+                .allocateDirect(cabecera.length + (int) longitud);
+        datos.put(cabecera);
+
+        try {
+            FileChannel canal = new FileInputStream(fichero).getChannel();
+            try {
+                while (datos.hasRemaining()) {
+                    if (canal.read(datos) < 0) {
+                        return null;
+                    }
+                }
+
+                // si el fichero ha crecido mientras se leia
+                if (canal.size() != longitud) {
+                    return null;
+                }
+            } finally {
+                canal.close();
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            return null;
+        }
+
+        datos.flip();
+
+        Entrada entrada = new Entrada();
+        entrada.modificado = version.getModificado();
+        entrada.longitud = longitud;
+        entrada.datos = datos.asReadOnlyBuffer();
+        return entrada;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: CacheRutas.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Cache de la resolucion de las rutas pedidas por GET.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache de la resolucion de las rutas de las peticiones GET: para cada ruta
+ * guarda si no existe (404), si no se puede servir (403, por ser un
+ * directorio o estar fuera de la zona permitida) o el fichero que le
+ * corresponde junto con su version. Asi las peticiones repetidas, y en
+ * especial las avalanchas de errores (enlaces rotos, rastreadores), no
+ * consultan el sistema de ficheros ni evaluan la expresion regular de
+ * patronRutaFichero.
+ *
+ * Cada resolucion caduca a los [duracion] milisegundos, por lo que los
+ * cambios hechos en el disco desde fuera del servidor se ven como mucho con
+ * ese retraso. Los ficheros que escribe el propio servidor (POST) invalidan
+ * su ruta en el momento.
+ *
+ * Esta acotada por el numero de rutas: si se llena, se descartan las
+ * caducadas y, si sigue llena, las nuevas resoluciones no se guardan (se
+ * resuelven como si no hubiera cache).
+ *
+ * Puede usarse desde varios hilos a la vez sin bloquearse.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class CacheRutas {
+
+    /**
+     * Resultado de resolver una ruta. Es inmutable, por lo que puede
+     * compartirse entre varios hilos.
+     *
+     */
+    public static class Resolucion {
+
+        /** Codigo HTTP que corresponde a la ruta (200, 403 o 404) */
+        private final int codigo;
+
+        /** Fichero que corresponde a la ruta */
+        private final File fichero;
+
+        /** Version del fichero (solo si el codigo es 200) */
+        private final VersionFichero version;
+
+        /** Instante (en milisegundos) en el que caduca */
+        private final long caducidad;
+
+        /**
+         * Metodo constructor de la clase
+         *
+         */
+        private Resolucion(int codigo, File fichero, VersionFichero version,
+                long caducidad) {
+            this.codigo = codigo;
+            this.fichero = fichero;
+            this.version = version;
+            this.caducidad = caducidad;
+        }
+
+        /**
+         * Devuelve el codigo HTTP que corresponde a la ruta
+         *
+         * @return 200 si se puede servir, 403 si no se permite o 404 si no
+         *         existe
+         *
+         */
+        public int getCodigo() {
+            return codigo;
+        }
+
+        /**
+         * Devuelve el fichero que corresponde a la ruta
+         *
+         * @return fichero (con ruta absoluta)
+         *
+         */
+        public File getFichero() {
+            return fichero;
+        }
+
+        /**
+         * Devuelve la version del fichero en el momento de resolver la ruta
+         *
+         * @return version del fichero, o null si el codigo no es 200
+         *
+         */
+        public VersionFichero getVersion() {
+            return version;
+        }
+    }
+
+    /** Numero maximo de rutas guardadas */
+    private final int capacidad;
+
+    /** Tiempo (en milisegundos) durante el que es valida una resolucion */
+    private final long duracion;
+
+    /** Ruta absoluta del directorio desde el que se sirven los ficheros */
+    private final String raiz;
+
+    /**
+     * Instante (en milisegundos) a partir del que se puede volver a purgar,
+     * para que una avalancha de rutas distintas con la cache llena no la
+     * recorra entera en cada peticion
+     */
+    private volatile long siguientePurga;
+
+    /** Resoluciones indexadas por la ruta de la peticion */
+    private final ConcurrentHashMap<String, Resolucion> resoluciones;
+
+    /** Numero de rutas resueltas con una resolucion guardada */
+    private final LongAdder aciertos;
+
+    /** Numero de rutas resueltas consultando el sistema de ficheros */
+    private final LongAdder fallos;
+
+    /**
+     * Metodo constructor de la clase. Crea una cache vacia para los ficheros
+     * del directorio actual.
+     *
+     * @param capacidad : Numero maximo de rutas guardadas
+     * @param duracion : Tiempo (en milisegundos) durante el que es valida
+     *            una resolucion
+     *
+     */
+    public CacheRutas(int capacidad, long duracion) {
+        this.capacidad = capacidad;
+        this.duracion = duracion;
+        this.raiz = new File("").getAbsolutePath();
+        this.resoluciones = new ConcurrentHashMap<String, Resolucion>();
+        this.aciertos = new LongAdder();
+        this.fallos = new LongAdder();
+    }
+
+    /**
+     * Resuelve la ruta [ruta] de una peticion GET: de la cache si se resolvio
+     * hace menos de [duracion] milisegundos, o consultando el sistema de
+     * ficheros (y guardando el resultado) en caso contrario.
+     *
+     * @param ruta : Ruta de la peticion
+     * @return resolucion de la ruta
+     *
+     */
+    public Resolucion resuelve(String ruta) {
+
+        long ahora = System.currentTimeMillis();
+
+        Resolucion resolucion = resoluciones.get(ruta);
+        if (resolucion != null && ahora < resolucion.caducidad) {
+            aciertos.increment();
+            return resolucion;
+        }
+
+        fallos.increment();
+        resolucion = calcula(ruta, ahora);
+
+        // si esta llena, hacer sitio descartando las caducadas (como mucho
+        // cada cuarto de [duracion])
+        if (resoluciones.size() >= capacidad && ahora >= siguientePurga) {
+            siguientePurga = ahora + duracion / 4;
+            purga(ahora);
+        }
+        if (resoluciones.size() < capacidad) {
+            resoluciones.put(ruta, resolucion);
+        }
+
+        return resolucion;
+    }
+
+    /**
+     * Descarta la resolucion de la ruta del fichero [fichero], del directorio
+     * desde el que se sirven los ficheros. Debe invocarse siempre que se cree
+     * o se modifique un fichero. (Las rutas escritas de otra forma, como
+     * "//fichero", no se descartan: caducan a su tiempo.)
+     *
+     * @param fichero : Fichero creado o modificado
+     *
+     */
+    public void invalida(File fichero) {
+        resoluciones.remove("/" + fichero.getName());
+        resoluciones.remove(fichero.getName());
+    }
+
+    /**
+     * Devuelve el numero de rutas resueltas con una resolucion guardada
+     *
+     * @return aciertos de la cache
+     *
+     */
+    public long getAciertos() {
+        return aciertos.sum();
+    }
+
+    /**
+     * Devuelve el numero de rutas resueltas consultando el sistema de
+     * ficheros
+     *
+     * @return fallos de la cache
+     *
+     */
+    public long getFallos() {
+        return fallos.sum();
+    }
+
+    /**
+     * Metodo auxiliar que resuelve la ruta consultando el sistema de ficheros
+     *
+     */
+    private Resolucion calcula(String ruta, long ahora) {
+
+        File fichero = new File(raiz + ruta);
+        long caducidad = ahora + duracion;
+
+        // NO ENCONTRADO (NOT FOUND - 404)
+        if (!fichero.exists()) {
+            return new Resolucion(404, fichero, null, caducidad);
+        }
+
+        // si es un fichero (y no un directorio) y ademas esta alojado en la
+        // zona permitida
+        if (fichero.isFile()
+                && Utiles.patronRutaFichero.matcher(ruta).matches()) {
+
+            // CORRECTO (OK - 200)
+            return new Resolucion(200, fichero,
+                    Utiles.cacheFicheros.version(fichero), caducidad);
+        }
+
+        // NO PERMITIDO (FORBIDDEN - 403)
+        return new Resolucion(403, fichero, null, caducidad);
+    }
+
+    /**
+     * Metodo auxiliar que descarta las resoluciones caducadas
+     *
+     */
+    private void purga(long ahora) {
+        Iterator<Resolucion> it = resoluciones.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().caducidad <= ahora) {
+                it.remove();
+            }
+        }
+    }
+}
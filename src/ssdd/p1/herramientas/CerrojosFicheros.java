@@ -0,0 +1,59 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: CerrojosFicheros.java
+ * TIEMPO: 30 minutos
+ * DESCRIPCION: Cerrojos por fichero repartidos en franjas.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.io.File;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conjunto fijo de cerrojos repartidos en franjas (lock striping): cada
+ * fichero se asocia, segun su ruta, a uno de ellos. Dos escritores del mismo
+ * fichero usan siempre el mismo cerrojo, mientras que los de ficheros
+ * distintos casi nunca coinciden, sin necesidad de guardar un cerrojo por
+ * cada fichero.
+ *
+ * Puede usarse desde varios hilos a la vez.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class CerrojosFicheros {
+
+    /** Cerrojos de cada franja */
+    private final ReentrantLock[] cerrojos;
+
+    /**
+     * Metodo constructor de la clase
+     *
+     * @param numFranjas : Numero de cerrojos (potencia de dos)
+     *
+     */
+    public CerrojosFicheros(int numFranjas) {
+        cerrojos = new ReentrantLock[numFranjas];
+        for (int i = 0; i < numFranjas; i++) {
+            cerrojos[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Devuelve el cerrojo asociado al fichero [fichero]
+     *
+     * @param fichero : Fichero
+     * @return cerrojo de la franja del fichero
+     *
+     */
+    public ReentrantLock cerrojo(File fichero) {
+        int hash = fichero.getAbsolutePath().hashCode();
+
+        // mezclar los bits altos para repartir mejor rutas parecidas
+        hash ^= hash >>> 16;
+
+        return cerrojos[hash & (cerrojos.length - 1)];
+    }
+}
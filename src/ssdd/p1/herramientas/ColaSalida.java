@@ -0,0 +1,207 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: ColaSalida.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Cola de respuestas pendientes de enviar por una conexion.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Cola de las respuestas pendientes de enviar por una conexion no bloqueante,
+ * en el orden en que se reciben las peticiones. Conserva lo que el canal no
+ * admite en cada escritura para enviarlo en la siguiente, y lleva la cuenta
+ * de la memoria que ocupan las respuestas encoladas para que el servidor deje
+ * de leer peticiones de un cliente que no lee sus respuestas.
+ *
+ * Las respuestas consecutivas con el cuerpo en memoria (p. ej. peticiones
+ * encadenadas) se envian juntas con una unica escritura agrupada.
+ *
+ * NO puede usarse desde varios hilos a la vez.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class ColaSalida {
+
+    /** Numero maximo de respuestas que se envian en una escritura agrupada */
+    private static final int MAX_AGRUPADAS = 16;
+
+    /** Respuestas pendientes, la primera quiza enviada en parte */
+    private final ArrayDeque<Respuesta> respuestas;
+
+    /** Bytes en memoria a partir de los que la cola se considera llena */
+    private final long maxBytes;
+
+    /** Numero de respuestas a partir del que la cola se considera llena */
+    private final int maxRespuestas;
+
+    /** Buferes de la ultima escritura agrupada (se reutiliza) */
+    private final ByteBuffer[] partes;
+
+    /**
+     * Metodo constructor de la clase. Crea una cola vacia.
+     *
+     * @param maxBytes : Bytes en memoria a partir de los que esta llena
+     * @param maxRespuestas : Respuestas a partir de las que esta llena (las
+     *            de fichero mantienen un descriptor abierto cada una)
+     *
+     */
+    public ColaSalida(long maxBytes, int maxRespuestas) {
+        this.respuestas = new ArrayDeque<Respuesta>();
+        this.maxBytes = maxBytes;
+        this.maxRespuestas = maxRespuestas;
+        this.partes = new ByteBuffer[2 * MAX_AGRUPADAS];
+    }
+
+    /**
+     * Anade la respuesta [respuesta] al final de la cola. Siempre se admite,
+     * aunque la cola ya este llena: es el servidor quien debe dejar de
+     * generar respuestas mientras lo este.
+     *
+     * @param respuesta : Respuesta para el cliente
+     *
+     */
+    public void anade(Respuesta respuesta) {
+        respuestas.addLast(respuesta);
+    }
+
+    /**
+     * Envia por el canal [canal] todo lo que este admita de las respuestas
+     * pendientes, liberando las que se terminan de enviar.
+     *
+     * @param canal : Canal asociado al cliente
+     * @return cierto si y solo si la cola ha quedado vacia
+     * @throws IOException si falla la escritura
+     *
+     */
+    public boolean escribe(WritableByteChannel canal) throws IOException {
+
+        while (!respuestas.isEmpty()) {
+
+            Respuesta primera = respuestas.peekFirst();
+
+            // varias respuestas en memoria: una sola escritura agrupada
+            if (respuestas.size() > 1 && primera.isEnMemoria()
+                    && canal instanceof GatheringByteChannel) {
+                if (!escribeAgrupadas((GatheringByteChannel) canal)) {
+                    return false;
+                }
+            }
+
+            // una sola respuesta, o con el cuerpo en fichero
+            else {
+                if (!primera.escribe(canal)) {
+                    return false;
+                }
+                quitaPrimera();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Metodo auxiliar que envia con una unica escritura agrupada las
+     * respuestas en memoria del principio de la cola y libera las enviadas
+     *
+     * @return falso si el canal no ha admitido nada (esta lleno)
+     *
+     */
+    private boolean escribeAgrupadas(GatheringByteChannel canal)
+            throws IOException {
+
+        int numPartes = 0;
+        int numRespuestas = 0;
+        for (Respuesta respuesta : respuestas) {
+            if (!respuesta.isEnMemoria() || numRespuestas == MAX_AGRUPADAS) {
+                break;
+            }
+            numPartes = respuesta.anadePartes(partes, numPartes);
+            numRespuestas++;
+        }
+
+        long escritos = canal.write(partes, 0, numPartes);
+
+        // no retener los buferes de respuestas ya liberadas
+        for (int i = 0; i < numPartes; i++) {
+            partes[i] = null;
+        }
+
+        while (!respuestas.isEmpty() && respuestas.peekFirst().isEnviada()) {
+            quitaPrimera();
+        }
+
+        return escritos > 0;
+    }
+
+    /**
+     * Metodo auxiliar que quita y libera la primera respuesta de la cola,
+     * que ya se ha enviado
+     *
+     */
+    private void quitaPrimera() {
+        Respuesta respuesta = respuestas.removeFirst();
+        Utiles.metricas.respuesta(respuesta, true);
+        respuesta.cierra();
+    }
+
+    /**
+     * Devuelve cierto si y solo si no queda ninguna respuesta por enviar
+     *
+     * @return cierto si la cola esta vacia
+     *
+     */
+    public boolean isVacia() {
+        return respuestas.isEmpty();
+    }
+
+    /**
+     * Devuelve cierto si y solo si la cola ocupa tanta memoria (o tiene
+     * tantas respuestas) que no se deben generar mas respuestas hasta que se
+     * envien las pendientes
+     *
+     * @return cierto si la cola esta llena
+     *
+     */
+    public boolean isLlena() {
+        return respuestas.size() >= maxRespuestas
+                || getBytesEnMemoria() >= maxBytes;
+    }
+
+    /**
+     * Devuelve los bytes en memoria que ocupan las respuestas pendientes (la
+     * cola nunca tiene mas de [maxRespuestas] respuestas, por lo que
+     * recorrerla es barato)
+     *
+     * @return bytes en memoria pendientes de enviar
+     *
+     */
+    public long getBytesEnMemoria() {
+        long bytes = 0;
+        for (Respuesta respuesta : respuestas) {
+            bytes += respuesta.getBytesEnMemoria();
+        }
+        return bytes;
+    }
+
+    /**
+     * Descarta todas las respuestas pendientes liberando sus recursos (p. ej.
+     * al cerrar la conexion)
+     *
+     */
+    public void vacia() {
+        for (Respuesta respuesta : respuestas) {
+            Utiles.metricas.respuesta(respuesta, false);
+            respuesta.cierra();
+        }
+        respuestas.clear();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: CompresionGzip.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Negociacion (Accept-Encoding) y compresion gzip de los cuerpos
+ *  de las respuestas.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Negociacion de la codificacion gzip a partir de la cabecera Accept-Encoding
+ * de una peticion ("gzip", "gzip;q=0.5", "*", "identity, gzip;q=0"...) y
+ * compresion de los cuerpos de las respuestas en formato gzip (RFC 1952).
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class CompresionGzip {
+
+    /**
+     * Cabecera de un fichero gzip sin nombre ni fecha: identificador, metodo
+     * deflate, sin indicadores, fecha 0, sin indicadores extra y sistema
+     * desconocido
+     */
+    private static final byte[] CABECERA = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0,
+            0, 0, (byte) 0xff };
+
+    /** Longitud del final de un fichero gzip (CRC-32 y longitud original) */
+    private static final int LONGITUD_FINAL = 8;
+
+    /**
+     * Comprueba si el cliente admite respuestas comprimidas con gzip segun el
+     * valor [cabecera] de la cabecera Accept-Encoding de su peticion. Una
+     * codificacion con calidad 0 ("gzip;q=0") se considera rechazada, y el
+     * comodin "*" solo se tiene en cuenta si gzip no aparece expresamente.
+     *
+     * @param cabecera : Valor de Accept-Encoding (o null)
+     * @return cierto si y solo si se puede responder con gzip
+     *
+     */
+    public static boolean acepta(String cabecera) {
+
+        if (cabecera == null) {
+            return false;
+        }
+
+        boolean comodin = false;
+        for (String elemento : cabecera.split(",")) {
+            String[] partes = elemento.split(";");
+            String codificacion = partes[0].trim();
+            boolean aceptada = calidad(partes) > 0;
+
+            if (codificacion.equalsIgnoreCase("gzip")
+                    || codificacion.equalsIgnoreCase("x-gzip")) {
+                return aceptada;
+            } else if (codificacion.equals("*")) {
+                comodin = aceptada;
+            }
+        }
+
+        return comodin;
+    }
+
+    /**
+     * Comprime los bytes restantes de [datos] en formato gzip con el nivel de
+     * compresion [nivel] (de Deflater.BEST_SPEED a Deflater.BEST_COMPRESSION).
+     * La posicion de [datos] no se modifica.
+     *
+     * @param datos : Datos que se comprimen
+     * @param nivel : Nivel de compresion
+     * @return datos comprimidos en formato gzip
+     *
+     */
+    public static byte[] comprime(ByteBuffer datos, int nivel) {
+
+        int longitud = datos.remaining();
+
+        CRC32 crc = new CRC32();
+        crc.update(datos.duplicate());
+
+        // sin envoltorio zlib: la cabecera y el final son los de gzip
+        Deflater compresor = new Deflater(nivel, true);
+        try {
+            compresor.setInput(datos.duplicate());
+            compresor.finish();
+
+            byte[] comprimido = new byte[CABECERA.length + longitud / 2 + 64];
+            System.arraycopy(CABECERA, 0, comprimido, 0, CABECERA.length);
+            int escritos = CABECERA.length;
+
+            while (!compresor.finished()) {
+                if (escritos == comprimido.length) {
+                    comprimido = Arrays.copyOf(comprimido,
+                            comprimido.length * 2);
+                }
+                escritos += compresor.deflate(comprimido, escritos,
+                        comprimido.length - escritos);
+            }
+
+            comprimido = Arrays.copyOf(comprimido, escritos + LONGITUD_FINAL);
+            escribeEntero(comprimido, escritos, (int) crc.getValue());
+            escribeEntero(comprimido, escritos + 4, longitud);
+            return comprimido;
+
+        } finally {
+            compresor.end();
+        }
+    }
+
+    /**
+     * Metodo auxiliar que devuelve la calidad ("q=") de una codificacion de
+     * Accept-Encoding, dados sus parametros [partes] (el primero es el nombre
+     * de la codificacion)
+     *
+     * @return calidad entre 0 y 1 (1 si no se indica, 0 si no es valida)
+     *
+     */
+    private static double calidad(String[] partes) {
+        for (int i = 1; i < partes.length; i++) {
+            String parametro = partes[i].trim();
+            if (parametro.startsWith("q=") || parametro.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parametro.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Metodo auxiliar que escribe el entero [valor] en [destino] a partir de
+     * la posicion [posicion], en orden little-endian (el de gzip)
+     *
+     */
+    private static void escribeEntero(byte[] destino, int posicion,
+            int valor) {
+        for (int i = 0; i < 4; i++) {
+            destino[posicion + i] = (byte) (valor >>> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: ControlAdmision.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Control de admision de las conexiones de los clientes: ritmo
+ *  maximo por direccion y numero maximo de conexiones simultaneas.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Control de admision de las conexiones que acepta el servidor, consultado
+ * nada mas aceptar a cada cliente y antes de leer su peticion:
+ *
+ * - Cada direccion remota tiene una cubeta de [rafaga] fichas que se rellena
+ * a razon de [tasa] fichas por segundo; cada conexion gasta una ficha y, si
+ * no quedan, se rechaza con un 429 (Too Many Requests).
+ *
+ * - Entre todos los clientes no puede haber mas de [maxConexiones]
+ * conexiones abiertas a la vez; las que sobrepasan el limite se rechazan con
+ * un 503 (Service Unavailable).
+ *
+ * Ambos limites estan desactivados hasta que se configuran (configura), de
+ * forma que por defecto se admiten todas las conexiones.
+ *
+ * La cubeta de cada direccion se guarda como el instante en el que volveria
+ * a estar llena (algoritmo GCRA, equivalente a la cubeta de fichas), por lo
+ * que cabe en un unico AtomicLong y se actualiza sin cerrojos. Una cubeta que
+ * ya se ha rellenado equivale a no tener cubeta, asi que las direcciones
+ * inactivas se descartan en las purgas sin perder nada. La tabla esta
+ * acotada por el numero de direcciones: si sigue llena despues de purgarla,
+ * las direcciones nuevas se admiten sin cubeta (solo con el limite global).
+ *
+ * Puede usarse desde varios hilos a la vez sin bloquearse.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class ControlAdmision {
+
+    /** Resultado de admitir una conexion */
+    public static final int ADMITIDA = 0;
+
+    /** Periodo (en nanosegundos) minimo entre dos purgas de la tabla */
+    private static final long PERIODO_PURGA = 1000000000L;
+
+    /**
+     * Tiempo (en nanosegundos) en el que se rellena una ficha (0 si no hay
+     * limite por direccion)
+     */
+    private volatile long intervalo;
+
+    /**
+     * Adelanto maximo (en nanosegundos) del instante de cubeta llena respecto
+     * al actual: el de una cubeta vacia
+     */
+    private volatile long limite;
+
+    /** Numero maximo de conexiones abiertas a la vez (0 si no hay limite) */
+    private volatile int maxConexiones;
+
+    /** Numero maximo de direcciones guardadas */
+    private final int capacidad;
+
+    /** Numero de conexiones admitidas que aun no se han liberado */
+    private final AtomicInteger conexiones;
+
+    /** Instante (en nanosegundos) a partir del que se puede volver a purgar */
+    private final AtomicLong siguientePurga;
+
+    /**
+     * Instante (en nanosegundos) en el que se llena la cubeta de cada
+     * direccion
+     */
+    private final ConcurrentHashMap<InetAddress, AtomicLong> cubetas;
+
+    /**
+     * Metodo constructor de la clase. Crea un control sin limites, que admite
+     * todas las conexiones.
+     *
+     * @param capacidad : Numero maximo de direcciones guardadas
+     *
+     */
+    public ControlAdmision(int capacidad) {
+        this.capacidad = capacidad;
+        this.conexiones = new AtomicInteger();
+        this.siguientePurga = new AtomicLong(System.nanoTime());
+        this.cubetas = new ConcurrentHashMap<InetAddress, AtomicLong>();
+    }
+
+    /**
+     * Establece los limites de admision. Debe invocarse antes de iniciar el
+     * servidor.
+     *
+     * @param tasa : Conexiones por segundo que se admiten de cada direccion
+     *            (0 para no limitarlas)
+     * @param rafaga : Conexiones seguidas que se admiten de una direccion
+     *            inactiva
+     * @param maxConexiones : Numero maximo de conexiones abiertas a la vez
+     *            (0 para no limitarlas)
+     *
+     */
+    public void configura(int tasa, int rafaga, int maxConexiones) {
+        this.intervalo = tasa > 0 ? 1000000000L / tasa : 0;
+        this.limite = intervalo * Math.max(rafaga, 1);
+        this.maxConexiones = maxConexiones;
+        cubetas.clear();
+    }
+
+    /**
+     * Decide si se admite una nueva conexion del cliente con direccion
+     * [direccion]. Cada conexion admitida se debe liberar (libera) al
+     * cerrarla.
+     *
+     * @param direccion : Direccion remota del cliente
+     * @return ADMITIDA, 429 si el cliente ha agotado sus fichas o 503 si hay
+     *         demasiadas conexiones abiertas
+     *
+     */
+    public int admite(InetAddress direccion) {
+
+        if (intervalo > 0 && !gastaFicha(direccion, System.nanoTime())) {
+            return 429;
+        }
+
+        // las conexiones se cuentan aunque no haya limite, para poder
+        // liberarlas siempre igual
+        int max = maxConexiones;
+        if (conexiones.incrementAndGet() > max && max > 0) {
+            conexiones.decrementAndGet();
+            return 503;
+        }
+
+        return ADMITIDA;
+    }
+
+    /**
+     * Libera una conexion admitida, que se acaba de cerrar
+     *
+     */
+    public void libera() {
+        conexiones.decrementAndGet();
+    }
+
+    /**
+     * Devuelve el numero de conexiones admitidas que siguen abiertas
+     *
+     * @return conexiones abiertas
+     *
+     */
+    public int getConexiones() {
+        return conexiones.get();
+    }
+
+    /**
+     * Devuelve el numero de direcciones con cubeta
+     *
+     * @return direcciones guardadas
+     *
+     */
+    public int getClientes() {
+        return cubetas.size();
+    }
+
+    /**
+     * Metodo auxiliar que gasta una ficha de la cubeta de [direccion]
+     *
+     * @return cierto si quedaba alguna ficha (o si no hay sitio para la
+     *         cubeta)
+     *
+     */
+    private boolean gastaFicha(InetAddress direccion, long ahora) {
+
+        AtomicLong llena = cubetas.get(direccion);
+
+        if (llena == null) {
+
+            // descartar las direcciones inactivas (como mucho una vez por
+            // periodo, y un unico hilo)
+            long purga = siguientePurga.get();
+            if (ahora - purga >= 0
+                    && siguientePurga.compareAndSet(purga,
+                            ahora + PERIODO_PURGA)) {
+                purga(ahora);
+            }
+            if (cubetas.size() >= capacidad) {
+                return true;
+            }
+
+            // la cubeta nueva esta llena: se gasta su primera ficha
+            llena = cubetas.putIfAbsent(direccion,
+                    new AtomicLong(ahora + intervalo));
+            if (llena == null) {
+                return true;
+            }
+        }
+
+        // cada ficha gastada retrasa un intervalo el instante en el que se
+        // vuelve a llenar
+        while (true) {
+            long actual = llena.get();
+            long siguiente = Math.max(actual, ahora) + intervalo;
+            if (siguiente - ahora > limite) {
+                return false;
+            }
+            if (llena.compareAndSet(actual, siguiente)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Metodo auxiliar que descarta las cubetas que ya se han rellenado. (Si
+     * a la vez se gasta una ficha de una de ellas, el gasto se pierde: como
+     * mucho se admite una conexion de mas.)
+     *
+     */
+    private void purga(long ahora) {
+        Iterator<AtomicLong> it = cubetas.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().get() - ahora <= 0) {
+                it.remove();
+            }
+        }
+    }
+}
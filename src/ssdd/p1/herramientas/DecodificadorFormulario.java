@@ -0,0 +1,603 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: DecodificadorFormulario.java
+ * TIEMPO: 3 horas
+ * DESCRIPCION: Decodificador incremental de formularios enviados por POST.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodificador incremental del formulario de post_form.html
+ * (application/x-www-form-urlencoded, con exactamente los parametros "fname"
+ * y "content", en ese orden). Recibe el cuerpo de la peticion a medida que
+ * llega y escribe el contenido ya decodificado en un fichero temporal, que
+ * sustituye al fichero destino solo si el formulario completo es valido. La
+ * memoria que usa no depende del tamano del cuerpo.
+ *
+ * Solo se guardan en memoria los primeros TAMANO_PREVISTA bytes del
+ * contenido, que son los que se muestran en la respuesta.
+ *
+ * Las operaciones sobre el disco (crear, escribir, cerrar y renombrar el
+ * fichero) pueden ejecutarse en otro hilo, para no bloquear al que recibe el
+ * cuerpo: se encolan en orden y se ejecutan de una en una en el ejecutor
+ * indicado. En ese caso el resultado (getCodigo) solo es valido una vez
+ * ejecutada la accion pasada a cuandoEscrito.
+ *
+ * Cada conexion debe tener su propio decodificador.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class DecodificadorFormulario implements ReceptorCuerpo {
+
+    /** Numero maximo de bytes del contenido que se muestran en la respuesta */
+    public static final int TAMANO_PREVISTA = 4096;
+
+    /** Tamano del bufer con el que se escribe en el fichero */
+    private static final int TAMANO_SALIDA = 8192;
+
+    /**
+     * Numero de operaciones pendientes sobre el disco a partir del cual se
+     * considera que el decodificador esta saturado
+     */
+    private static final int MAX_PENDIENTES = 8;
+
+    /** Longitud maxima de un nombre de fichero */
+    private static final int MAX_FICHERO = 255;
+
+    /** Nombres de los parametros esperados */
+    private static final byte[] FNAME = "fname".getBytes();
+    private static final byte[] CONTENT = "content".getBytes();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Directorio en el que se escriben los ficheros */
+    private final File directorio;
+
+    /** Ejecutor de las operaciones sobre el disco (o null) */
+    private final Executor escritor;
+
+    /** Operaciones sobre el disco pendientes de ejecutar, en orden */
+    private final ConcurrentLinkedQueue<Runnable> pendientes;
+    private final AtomicInteger numPendientes;
+
+    /** Tarea que ejecuta en el ejecutor las operaciones pendientes */
+    private final Runnable vaciado;
+
+    /** Numero de parametros empezados hasta ahora */
+    private int parametros;
+
+    /** Cierto si se esta leyendo el valor (y no el nombre) del parametro */
+    private boolean enValor;
+
+    /** Nombre del parametro en curso (decodificado) */
+    private final byte[] nombre = new byte[CONTENT.length];
+    private int longitudNombre;
+
+    /** Valor del parametro fname (decodificado) */
+    private final byte[] fichero = new byte[MAX_FICHERO];
+    private int longitudFichero;
+
+    /**
+     * Digitos pendientes de una secuencia "%XX": 0 si no hay ninguna, 2 tras
+     * el '%' y 1 tras el primer digito
+     */
+    private int escape;
+    private int digitoAlto;
+
+    /** Cierto si el formulario esta mal formado (400) */
+    private boolean erroneo;
+
+    /** Cierto si el nombre de fichero no esta permitido (403) */
+    private boolean prohibido;
+
+    /**
+     * Cierto si el contenido se esta escribiendo en un fichero temporal (y
+     * bufer en el que se acumula hasta que se escribe)
+     */
+    private boolean escribiendo;
+    private ByteBuffer salida;
+
+    /**
+     * Fichero temporal, canal sobre el que se escribe y si ha fallado alguna
+     * operacion sobre ellos (500). Solo se usan desde las operaciones sobre
+     * el disco
+     */
+    private File temporal;
+    private FileChannel canal;
+    private boolean fallo;
+
+    /** Primeros bytes del contenido */
+    private final byte[] prevista = new byte[TAMANO_PREVISTA];
+    private int longitudPrevista;
+
+    /** Numero total de bytes del contenido */
+    private long longitudContenido;
+
+    /** Resultado del ultimo formulario recibido */
+    private int codigo;
+    private String nombreFichero;
+
+    /**
+     * Metodo constructor de la clase. Las operaciones sobre el disco se
+     * ejecutan en el hilo que entrega el cuerpo.
+     *
+     * @param directorio : Directorio en el que se escriben los ficheros
+     *
+     */
+    public DecodificadorFormulario(File directorio) {
+        this(directorio, null);
+    }
+
+    /**
+     * Metodo constructor de la clase
+     *
+     * @param directorio : Directorio en el que se escriben los ficheros
+     * @param escritor : Ejecutor de las operaciones sobre el disco (o null
+     *            para ejecutarlas en el hilo que entrega el cuerpo)
+     *
+     */
+    public DecodificadorFormulario(File directorio, Executor escritor) {
+        this.directorio = directorio;
+        this.escritor = escritor;
+        this.pendientes = new ConcurrentLinkedQueue<Runnable>();
+        this.numPendientes = new AtomicInteger();
+        this.vaciado = new Runnable() {
+            @Override
+            public void run() {
+                ejecutaPendientes();
+            }
+        };
+    }
+
+    /**
+     * Solo se reciben los cuerpos de las peticiones POST (los de las demas
+     * los descarta el analizador sin guardarlos)
+     *
+     */
+    @Override
+    public boolean inicia(String metodo, long longitud) {
+
+        // si quedaba un formulario a medias, se descarta
+        descarta();
+
+        if (!metodo.equals("POST")) {
+            return false;
+        }
+
+        parametros = 1;
+        enValor = false;
+        longitudNombre = 0;
+        longitudFichero = 0;
+        escape = 0;
+        erroneo = false;
+        prohibido = false;
+        longitudPrevista = 0;
+        longitudContenido = 0;
+        codigo = 0;
+        nombreFichero = null;
+        return true;
+    }
+
+    @Override
+    public void recibe(ByteBuffer datos) {
+        while (datos.hasRemaining()) {
+            byte c = datos.get();
+
+            // separador de parametros
+            if (c == '&') {
+                terminaParametro();
+                parametros++;
+                enValor = false;
+                longitudNombre = 0;
+            }
+
+            // separador entre nombre y valor
+            else if (c == '=' && !enValor) {
+                enValor = true;
+                empiezaValor();
+            }
+
+            // secuencia "%XX"
+            else if (escape > 0) {
+                int digito = Character.digit(c, 16);
+                if (digito < 0) {
+                    erroneo = true;
+                    escape = 0;
+                } else if (escape == 2) {
+                    digitoAlto = digito;
+                    escape = 1;
+                } else {
+                    escape = 0;
+                    guarda((byte) (digitoAlto << 4 | digito));
+                }
+            } else if (c == '%') {
+                escape = 2;
+            } else if (c == '+') {
+                guarda((byte) ' ');
+            } else {
+                guarda(c);
+            }
+        }
+    }
+
+    /**
+     * Decide el resultado del formulario y, si es valido, programa la
+     * sustitucion del fichero destino por el temporal
+     *
+     */
+    @Override
+    public void termina() {
+        terminaParametro();
+
+        final int resultado;
+        if (parametros != 2 || erroneo) {
+            resultado = 400;
+        } else if (prohibido) {
+            resultado = 403;
+        } else {
+            resultado = 200;
+        }
+
+        final ByteBuffer resto = salida;
+        final String destino = nombreFichero;
+        salida = null;
+        escribiendo = false;
+
+        programa(new Runnable() {
+            @Override
+            public void run() {
+                confirma(resultado, resto, destino);
+            }
+        });
+    }
+
+    /**
+     * Descarta el formulario en curso, si lo hay, y programa el borrado de su
+     * fichero temporal. Debe invocarse al cerrar la conexion.
+     *
+     */
+    public void descarta() {
+        if (salida != null) {
+            Utiles.poolBuferes.devuelve(salida);
+            salida = null;
+        }
+        if (escribiendo) {
+            escribiendo = false;
+            programa(new Runnable() {
+                @Override
+                public void run() {
+                    libera();
+                }
+            });
+        }
+    }
+
+    /**
+     * Ejecuta [accion] cuando se hayan completado todas las operaciones sobre
+     * el disco programadas hasta ahora (inmediatamente si no hay ninguna
+     * pendiente o no se usa un ejecutor). Tras la llamada a termina, a partir
+     * de ese momento es valido el resultado del formulario.
+     *
+     * @param accion : Accion que se ejecuta (quizas en otro hilo)
+     *
+     */
+    public void cuandoEscrito(Runnable accion) {
+        if (escritor == null || numPendientes.get() == 0) {
+            accion.run();
+        } else {
+            programa(accion);
+        }
+    }
+
+    /**
+     * Devuelve cierto si y solo si hay demasiadas operaciones sobre el disco
+     * pendientes, es decir, si el cliente envia mas rapido de lo que se
+     * escribe. En ese caso se deberia dejar de leer del cliente hasta que se
+     * completen (cuandoEscrito).
+     *
+     * @return cierto si el decodificador esta saturado
+     *
+     */
+    public boolean isSaturado() {
+        return numPendientes.get() >= MAX_PENDIENTES;
+    }
+
+    /**
+     * Devuelve el codigo HTTP con el que se debe contestar al ultimo
+     * formulario recibido (200, 400, 403 o 500)
+     *
+     * @return codigo HTTP
+     *
+     */
+    public int getCodigo() {
+        return codigo;
+    }
+
+    /**
+     * Devuelve el nombre del fichero escrito por el ultimo formulario
+     *
+     * @return nombre del fichero
+     *
+     */
+    public String getFichero() {
+        return nombreFichero;
+    }
+
+    /**
+     * Devuelve los primeros TAMANO_PREVISTA bytes del contenido del ultimo
+     * formulario, como texto
+     *
+     * @return principio del contenido
+     *
+     */
+    public String getPrevista() {
+        return new String(prevista, 0, longitudPrevista, UTF_8);
+    }
+
+    /**
+     * Devuelve cierto si y solo si el contenido del ultimo formulario no cabe
+     * entero en getPrevista
+     *
+     * @return cierto si el contenido se ha recortado
+     *
+     */
+    public boolean isRecortado() {
+        return longitudContenido > longitudPrevista;
+    }
+
+    /**
+     * Metodo auxiliar que trata un byte ya decodificado del nombre o del valor
+     * del parametro en curso
+     *
+     */
+    private void guarda(byte c) {
+
+        // nombre del parametro (los que no caben no son ninguno de los dos)
+        if (!enValor) {
+            if (longitudNombre < nombre.length) {
+                nombre[longitudNombre] = c;
+            }
+            longitudNombre++;
+        }
+
+        // valor de fname
+        else if (parametros == 1) {
+            if (longitudFichero < fichero.length) {
+                fichero[longitudFichero] = c;
+            }
+            longitudFichero++;
+        }
+
+        // valor de content
+        else if (parametros == 2) {
+            if (longitudPrevista < prevista.length) {
+                prevista[longitudPrevista++] = c;
+            }
+            longitudContenido++;
+
+            if (escribiendo) {
+                salida.put(c);
+                if (!salida.hasRemaining()) {
+                    final ByteBuffer lleno = salida;
+                    salida = Utiles.poolBuferes.toma(TAMANO_SALIDA);
+                    programa(new Runnable() {
+                        @Override
+                        public void run() {
+                            escribe(lleno);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Metodo auxiliar que comprueba el nombre del parametro en curso al
+     * llegar a su valor y, si es el contenido de un formulario valido hasta
+     * ahora, abre el fichero temporal en el que se escribira
+     *
+     */
+    private void empiezaValor() {
+        byte[] esperado = parametros == 1 ? FNAME : CONTENT;
+
+        if (escape > 0 || !iguales(nombre, longitudNombre, esperado)) {
+            erroneo = true;
+            escape = 0;
+            return;
+        }
+
+        if (parametros == 2 && !erroneo && !prohibido) {
+            escribiendo = true;
+            salida = Utiles.poolBuferes.toma(TAMANO_SALIDA);
+            final String prefijo = "." + nombreFichero + ".";
+            programa(new Runnable() {
+                @Override
+                public void run() {
+                    abre(prefijo);
+                }
+            });
+        }
+    }
+
+    /**
+     * Metodo auxiliar que comprueba el parametro en curso al llegar a su fin
+     *
+     */
+    private void terminaParametro() {
+
+        // secuencia "%XX" incompleta o parametro sin '='
+        if (escape > 0 || !enValor) {
+            erroneo = true;
+            escape = 0;
+        }
+
+        // el nombre de fichero debe estar en la zona permitida
+        if (parametros == 1 && enValor) {
+            nombreFichero = new String(fichero, 0,
+                    Math.min(longitudFichero, fichero.length), UTF_8);
+            if (longitudFichero > fichero.length || !Utiles.patronRutaFichero
+                    .matcher(nombreFichero).matches()) {
+                prohibido = true;
+            }
+        }
+    }
+
+    /**
+     * Metodo auxiliar que compara los [longitud] primeros bytes de [a] con [b]
+     *
+     */
+    private static boolean iguales(byte[] a, int longitud, byte[] b) {
+        if (longitud != b.length) {
+            return false;
+        }
+        for (int i = 0; i < longitud; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Metodo auxiliar que programa una operacion sobre el disco: la ejecuta
+     * en el acto si no hay ejecutor o la encola en caso contrario. Las
+     * operaciones encoladas se ejecutan de una en una y en orden.
+     *
+     */
+    private void programa(Runnable operacion) {
+        if (escritor == null) {
+            operacion.run();
+        } else {
+            pendientes.add(operacion);
+            if (numPendientes.getAndIncrement() == 0) {
+                escritor.execute(vaciado);
+            }
+        }
+    }
+
+    /**
+     * Metodo auxiliar que ejecuta (en el hilo del ejecutor) las operaciones
+     * encoladas hasta que no quede ninguna
+     *
+     */
+    private void ejecutaPendientes() {
+        do {
+            try {
+                pendientes.poll().run();
+            } catch (RuntimeException e) {
+                System.err.println("ERROR: " + e.getMessage());
+                e.printStackTrace();
+                fallo = true;
+            }
+        } while (numPendientes.decrementAndGet() > 0);
+    }
+
+    // OPERACIONES SOBRE EL DISCO
+
+    /**
+     * Metodo auxiliar que crea el fichero temporal en el que se escribe el
+     * contenido
+     *
+     */
+    private void abre(String prefijo) {
+        fallo = false;
+        try {
+            temporal = File.createTempFile(prefijo, ".tmp", directorio);
+            canal = new FileOutputStream(temporal).getChannel();
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            fallo = true;
+            libera();
+        }
+    }
+
+    /**
+     * Metodo auxiliar que escribe en el fichero temporal el bufer [datos] y
+     * lo devuelve al pool
+     *
+     */
+    private void escribe(ByteBuffer datos) {
+        try {
+            if (canal != null && !fallo) {
+                datos.flip();
+                while (datos.hasRemaining()) {
+                    canal.write(datos);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            fallo = true;
+            libera();
+        } finally {
+            Utiles.poolBuferes.devuelve(datos);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que escribe lo que queda del contenido y, si el
+     * formulario es valido, sustituye el fichero destino por el temporal.
+     * Deja el resultado en [codigo].
+     *
+     */
+    private void confirma(int resultado, ByteBuffer resto, String nombre) {
+
+        if (resto != null) {
+            escribe(resto);
+        }
+
+        if (resultado == 200 && (fallo || canal == null)) {
+            resultado = 500;
+        }
+
+        if (resultado == 200) {
+            try {
+                canal.close();
+                canal = null;
+
+                Utiles.reemplazaFichero(temporal, new File(directorio, nombre));
+                temporal = null;
+            } catch (IOException e) {
+                System.err.println("ERROR: " + e.getMessage());
+                resultado = 500;
+            }
+        }
+
+        libera();
+        codigo = resultado;
+    }
+
+    /**
+     * Metodo auxiliar que cierra y borra el fichero temporal, si lo hay
+     *
+     */
+    private void libera() {
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                System.err.println("ERROR: " + e.getMessage());
+            }
+            canal = null;
+        }
+        if (temporal != null) {
+            if (!temporal.delete()) {
+                System.err.println("ERROR: No se ha podido borrar "
+                        + temporal.getName());
+            }
+            temporal = null;
+        }
+    }
+}
@@ -20,6 +20,13 @@ import java.nio.ByteBuffer;
  */
 public interface HTTPParser<T> {
 
+    /**
+     * Longitud maxima (en bytes) del cuerpo que se guarda en memoria cuando
+     * no hay receptor; las peticiones con un Content-Length mayor fallan
+     * 
+     */
+    public static final int MAX_BODY = 1024 * 1024;
+
     /**
      * Analiza una peticion HTTP
      * 
@@ -61,10 +68,69 @@ public interface HTTPParser<T> {
      */
     public String getPath();
 
+    /**
+     * Devuelve el valor de la cabecera [nombre] de la peticion HTTP (el
+     * nombre no distingue mayusculas de minusculas). Si la cabecera aparece
+     * varias veces, sus valores se unen separados por comas
+     * 
+     * @param nombre : Nombre de la cabecera
+     * @return valor de la cabecera sin espacios a los lados, o null si la
+     *         peticion no la incluye
+     * 
+     */
+    public String getHeader(String nombre);
+
     /**
      * Devuelve el cuerpo de la peticion HTTP
      * 
-     * @return bufer de bytes que contiene el cuerpo enviado
+     * @return bufer de bytes que contiene el cuerpo enviado, o null si se ha
+     *         entregado a un receptor o se ha descartado
      */
     public ByteBuffer getBody();
+
+    /**
+     * Comprueba si el cliente quiere mantener la conexion abierta tras la
+     * respuesta (en HTTP/1.1 es lo habitual, salvo que envie la cabecera
+     * "Connection: close")
+     * 
+     * @return cierto si y solo si la conexion debe mantenerse abierta
+     */
+    public boolean isKeepAlive();
+
+    /**
+     * Prepara el analizador para analizar una nueva peticion sobre la misma
+     * conexion (conexiones persistentes)
+     * 
+     */
+    public void reset();
+
+    /**
+     * Comprueba si ya se ha empezado a recibir una peticion (se ignoran las
+     * lineas vacias previas)
+     * 
+     * @return cierto si y solo si se ha recibido parte de una peticion
+     * 
+     */
+    public boolean isStarted();
+
+    /**
+     * Comprueba si se esta recibiendo el cuerpo de una peticion, es decir, si
+     * ya se han recibido todas sus cabeceras pero no todo su cuerpo
+     * 
+     * @return cierto si y solo si se esta recibiendo el cuerpo
+     * 
+     */
+    public boolean isReadingBody();
+
+    /**
+     * Establece el receptor al que se entrega el cuerpo de las peticiones a
+     * medida que llega. Si el receptor acepta el cuerpo de una peticion, este
+     * no se guarda en memoria; si no lo acepta, se descarta segun llega. En
+     * ambos casos getBody devuelve null
+     * 
+     * @param receptor : Receptor del cuerpo (o null para guardarlo siempre en
+     *            memoria, hasta MAX_BODY bytes)
+     * 
+     */
+    public void setBodyReceiver(ReceptorCuerpo receptor);
 }
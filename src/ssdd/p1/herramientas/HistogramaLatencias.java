@@ -0,0 +1,188 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: HistogramaLatencias.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Histograma de latencias sin cerrojos (estilo HDR).
+ */
+
+package ssdd.p1.herramientas;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias con intervalos log-lineales, como HdrHistogram: los
+ * valores menores que 2 * SUBINTERVALOS tienen un intervalo propio, y cada
+ * potencia de dos por encima se divide en SUBINTERVALOS intervalos iguales.
+ * Asi el error relativo de cualquier percentil es menor que
+ * 1 / SUBINTERVALOS (un 3%) con un numero fijo de contadores.
+ *
+ * Registrar un valor solo incrementa un contador atomico, sin cerrojos ni
+ * reservas de memoria, por lo que puede usarse desde cualquier numero de
+ * hilos a la vez. Las consultas recorren los contadores sin detener a los
+ * que registran, asi que pueden no incluir los valores registrados durante la
+ * propia consulta.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class HistogramaLatencias {
+
+    /** Bits de los subintervalos de cada potencia de dos */
+    private static final int BITS_SUBINTERVALOS = 5;
+
+    /** Numero de subintervalos de cada potencia de dos */
+    private static final int SUBINTERVALOS = 1 << BITS_SUBINTERVALOS;
+
+    /** Numero de contadores (cubre cualquier valor long positivo) */
+    private static final int NUM_CONTADORES = (64 - BITS_SUBINTERVALOS)
+            * SUBINTERVALOS;
+
+    /** Valores registrados en cada intervalo */
+    private final AtomicLongArray contadores;
+
+    /** Numero de valores registrados */
+    private final LongAdder cuenta;
+
+    /** Suma de los valores registrados */
+    private final LongAdder suma;
+
+    /** Mayor valor registrado */
+    private final AtomicLong maximo;
+
+    /**
+     * Metodo constructor de la clase. Crea un histograma vacio.
+     *
+     */
+    public HistogramaLatencias() {
+        contadores = new AtomicLongArray(NUM_CONTADORES);
+        cuenta = new LongAdder();
+        suma = new LongAdder();
+        maximo = new AtomicLong();
+    }
+
+    /**
+     * Registra el valor [valor] (los negativos cuentan como 0)
+     *
+     * @param valor : Valor a registrar
+     *
+     */
+    public void registra(long valor) {
+
+        if (valor < 0) {
+            valor = 0;
+        }
+
+        contadores.incrementAndGet(indice(valor));
+        cuenta.increment();
+        suma.add(valor);
+
+        // actualizar el maximo solo si se supera (casi nunca hay que
+        // reintentar)
+        long actual = maximo.get();
+        while (valor > actual && !maximo.compareAndSet(actual, valor)) {
+            actual = maximo.get();
+        }
+    }
+
+    /**
+     * Devuelve el valor por debajo del cual estan la fraccion [p] (entre 0 y
+     * 1) de los valores registrados, redondeado al extremo superior de su
+     * intervalo (0 si no hay ninguno)
+     *
+     * @param p : Fraccion de los valores
+     * @return percentil [p]
+     *
+     */
+    public long percentil(double p) {
+
+        long total = 0;
+        for (int i = 0; i < NUM_CONTADORES; i++) {
+            total += contadores.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long objetivo = Math.max(1, (long) Math.ceil(p * total));
+        long acumulado = 0;
+        for (int i = 0; i < NUM_CONTADORES; i++) {
+            acumulado += contadores.get(i);
+            if (acumulado >= objetivo) {
+                return Math.min(limiteSuperior(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+
+    /**
+     * Devuelve el numero de valores registrados
+     *
+     * @return numero de valores
+     *
+     */
+    public long getCuenta() {
+        return cuenta.sum();
+    }
+
+    /**
+     * Devuelve la media de los valores registrados (0 si no hay ninguno)
+     *
+     * @return media de los valores
+     *
+     */
+    public double getMedia() {
+        long n = cuenta.sum();
+        return n == 0 ? 0 : suma.sum() / (double) n;
+    }
+
+    /**
+     * Devuelve el mayor valor registrado (0 si no hay ninguno)
+     *
+     * @return maximo de los valores
+     *
+     */
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    /**
+     * Metodo auxiliar que devuelve el contador que corresponde al valor
+     * [valor] (no negativo)
+     *
+     */
+    private static int indice(long valor) {
+
+        // intervalos de un solo valor
+        if (valor < 2 * SUBINTERVALOS) {
+            return (int) valor;
+        }
+
+        // potencia de dos del valor y subintervalo dentro de ella
+        int desplazamiento = 63 - Long.numberOfLeadingZeros(valor)
+                - BITS_SUBINTERVALOS;
+        return (desplazamiento + 1) * SUBINTERVALOS
+                + (int) (valor >>> desplazamiento) - SUBINTERVALOS;
+    }
+
+    /**
+     * Metodo auxiliar que devuelve el mayor valor del intervalo del contador
+     * [indice]
+     *
+     */
+    private static long limiteSuperior(int indice) {
+
+        if (indice < 2 * SUBINTERVALOS) {
+            return indice;
+        }
+
+        int desplazamiento = indice / SUBINTERVALOS - 1;
+        long subintervalo = indice % SUBINTERVALOS + SUBINTERVALOS;
+        long limite = ((subintervalo + 1) << desplazamiento) - 1;
+
+        // (el ultimo intervalo llega hasta el mayor long)
+        return limite >= 0 ? limite : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: Metricas.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Metricas de funcionamiento del servidor web (HTTP).
+ */
+
+package ssdd.p1.herramientas;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metricas de funcionamiento del servidor, comunes a todas sus
+ * implementaciones: respuestas por codigo HTTP, conexiones abiertas y
+ * atendidas, bytes recibidos y enviados, y histogramas del tiempo de cada
+ * peticion.
+ *
+ * Todas se actualizan con contadores LongAdder o con HistogramaLatencias, sin
+ * cerrojos, por lo que el coste por peticion es minimo y pueden mantenerse
+ * siempre activas. Los tiempos se registran en microsegundos.
+ *
+ * Puede usarse desde varios hilos a la vez.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class Metricas {
+
+    /** Codigos HTTP con contador propio (el resto se cuentan juntos) */
+    private static final int[] codigos = { 200, 206, 304, 400, 403, 404, 408,
+            416, 429, 500, 501, 503 };
+
+    /** Respuestas de cada codigo de [codigos], y del resto al final */
+    private final LongAdder[] respuestas;
+
+    /** Conexiones abiertas en este momento */
+    private final LongAdder conexionesAbiertas;
+
+    /** Conexiones aceptadas desde el arranque */
+    private final LongAdder conexionesTotales;
+
+    /** Bytes recibidos de los clientes */
+    private final LongAdder bytesRecibidos;
+
+    /** Bytes enviados a los clientes */
+    private final LongAdder bytesEnviados;
+
+    /**
+     * Tiempo de cada peticion, desde que llega su primer byte hasta que se
+     * termina de enviar su respuesta
+     *
+     */
+    private final HistogramaLatencias latencia;
+
+    /**
+     * Tiempo de recepcion y analisis de cada peticion, desde que llega su
+     * primer byte hasta que esta completa
+     *
+     */
+    private final HistogramaLatencias analisis;
+
+    /** Instante (en milisegundos) en el que se crearon las metricas */
+    private final long arranque;
+
+    /**
+     * Metodo constructor de la clase. Crea las metricas a cero.
+     *
+     */
+    public Metricas() {
+        respuestas = new LongAdder[codigos.length + 1];
+        for (int i = 0; i < respuestas.length; i++) {
+            respuestas[i] = new LongAdder();
+        }
+        conexionesAbiertas = new LongAdder();
+        conexionesTotales = new LongAdder();
+        bytesRecibidos = new LongAdder();
+        bytesEnviados = new LongAdder();
+        latencia = new HistogramaLatencias();
+        analisis = new HistogramaLatencias();
+        arranque = System.currentTimeMillis();
+    }
+
+    /**
+     * Registra que se ha abierto una conexion
+     *
+     */
+    public void conexionAbierta() {
+        conexionesAbiertas.increment();
+        conexionesTotales.increment();
+    }
+
+    /**
+     * Registra que se ha cerrado una conexion
+     *
+     */
+    public void conexionCerrada() {
+        conexionesAbiertas.decrement();
+    }
+
+    /**
+     * Registra que se han recibido [bytes] bytes de un cliente
+     *
+     * @param bytes : Bytes recibidos
+     *
+     */
+    public void recibidos(long bytes) {
+        bytesRecibidos.add(bytes);
+    }
+
+    /**
+     * Registra que se ha completado la recepcion de una peticion cuyo primer
+     * byte llego en el instante [inicio]
+     *
+     * @param inicio : Instante (System.nanoTime) del primer byte (0 si no se
+     *            conoce, y entonces no se registra)
+     *
+     */
+    public void peticionRecibida(long inicio) {
+        if (inicio != 0) {
+            analisis.registra((System.nanoTime() - inicio) / 1000);
+        }
+    }
+
+    /**
+     * Registra la respuesta [respuesta] una vez que se ha terminado con ella:
+     * su codigo, los bytes enviados y, si se ha enviado completa y se conoce
+     * el inicio de su peticion, el tiempo total de la peticion
+     *
+     * @param respuesta : Respuesta enviada (o descartada)
+     * @param completa : Cierto si se ha enviado completa
+     *
+     */
+    public void respuesta(Respuesta respuesta, boolean completa) {
+
+        int i = 0;
+        while (i < codigos.length && codigos[i] != respuesta.getCodigo()) {
+            i++;
+        }
+        respuestas[i].increment();
+
+        bytesEnviados.add(respuesta.getEnviados());
+
+        if (completa && respuesta.getInicio() != 0) {
+            latencia.registra(
+                    (System.nanoTime() - respuesta.getInicio()) / 1000);
+        }
+    }
+
+    /**
+     * Devuelve un informe en texto plano con todas las metricas, una por
+     * linea con el formato "nombre valor"
+     *
+     * @return informe de las metricas
+     *
+     */
+    public String informe() {
+
+        StringBuilder texto = new StringBuilder();
+
+        linea(texto, "tiempo_activo_s",
+                (System.currentTimeMillis() - arranque) / 1000);
+        linea(texto, "conexiones_abiertas", conexionesAbiertas.sum());
+        linea(texto, "conexiones_totales", conexionesTotales.sum());
+        linea(texto, "bytes_recibidos", bytesRecibidos.sum());
+        linea(texto, "bytes_enviados", bytesEnviados.sum());
+        linea(texto, "cache_rutas_aciertos", Utiles.cacheRutas.getAciertos());
+        linea(texto, "cache_rutas_fallos", Utiles.cacheRutas.getFallos());
+        linea(texto, "pool_buferes_aciertos", Utiles.poolBuferes.getAciertos());
+        linea(texto, "pool_buferes_fallos", Utiles.poolBuferes.getFallos());
+        linea(texto, "admision_conexiones", Utiles.admision.getConexiones());
+        linea(texto, "admision_clientes", Utiles.admision.getClientes());
+
+        for (int i = 0; i < codigos.length; i++) {
+            linea(texto, "respuestas_" + codigos[i], respuestas[i].sum());
+        }
+        linea(texto, "respuestas_otras", respuestas[codigos.length].sum());
+
+        histograma(texto, "latencia_us", latencia);
+        histograma(texto, "analisis_us", analisis);
+
+        return texto.toString();
+    }
+
+    /**
+     * Metodo auxiliar que anade al informe la linea de una metrica
+     *
+     */
+    private static void linea(StringBuilder texto, String nombre,
+            long valor) {
+        texto.append(nombre).append(' ').append(valor).append('\n');
+    }
+
+    /**
+     * Metodo auxiliar que anade al informe el resumen de un histograma
+     *
+     */
+    private static void histograma(StringBuilder texto, String nombre,
+            HistogramaLatencias histograma) {
+        linea(texto, nombre + "_cuenta", histograma.getCuenta());
+        linea(texto, nombre + "_media", Math.round(histograma.getMedia()));
+        linea(texto, nombre + "_p50", histograma.percentil(0.50));
+        linea(texto, nombre + "_p90", histograma.percentil(0.90));
+        linea(texto, nombre + "_p99", histograma.percentil(0.99));
+        linea(texto, nombre + "_p999", histograma.percentil(0.999));
+        linea(texto, nombre + "_max", histograma.getMaximo());
+    }
+}
@@ -2,6 +2,8 @@ package ssdd.p1.herramientas;
 
 import java.nio.ByteBuffer;
 //import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -27,6 +29,14 @@ public class NonBlockingHTTPParser  implements HTTPParser<ByteBuffer>{
         return state == BAD_REQUEST;
     }
 
+    public boolean isStarted() {
+        return state != READ_METHOD || !remnant.trim().equals("");
+    }
+
+    public boolean isReadingBody() {
+        return state == READ_BODY;
+    }
+
     public String getMethod() {
         return method;
     }
@@ -35,10 +45,35 @@ public class NonBlockingHTTPParser  implements HTTPParser<ByteBuffer>{
         return path;
     }
 
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
     public ByteBuffer getBody() {
         return body;
     }
 
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setBodyReceiver(ReceptorCuerpo receiver) {
+        this.receiver = receiver;
+    }
+
+    public void reset() {
+        state = READ_METHOD;
+        body = null;
+        method = "";
+        path = "";
+        remnant = "";
+        keepAlive = true;
+        headers.clear();
+        contentLength = -1;
+        streaming = false;
+        discarding = false;
+    }
+
     private final int READ_METHOD = 0;
     private final int READ_HEADS = 1;
     private final int READ_BODY = 2;
@@ -50,15 +85,35 @@ public class NonBlockingHTTPParser  implements HTTPParser<ByteBuffer>{
     private String method = "";
     private String path = "";
     private String remnant = "";
+    private boolean keepAlive = true;
+    // cabeceras recibidas, por nombre en minusculas
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private int contentLength = -1;
+    // receptor del cuerpo, si lo recibe (o si se descarta) y bytes que
+    // faltan por recibir
+    private ReceptorCuerpo receiver;
+    private boolean streaming = false;
+    private boolean discarding = false;
+    private long bodyRemaining;
 
     private Pattern methodPattern = Pattern
             .compile("\\s*(\\w+)\\s+(\\S+)\\s+HTTP/1.1\\s*");
     private Pattern bodyLengthPattern = Pattern
             .compile("\\s*Content-Length:\\s*(\\d+)\\s*");
+    private Pattern connectionClosePattern = Pattern.compile(
+            "\\s*Connection:\\s*close\\s*", Pattern.CASE_INSENSITIVE);
 
     private void readMethod(ByteBuffer buffer) {
         LineParser lp = new LineParser(buffer);
         String firstLine = lp.readLine();
+        /*
+         * Se ignoran las lineas vacias previas a la peticion (p. ej. el final
+         * de linea de la peticion anterior en conexiones persistentes)
+         */
+        while (firstLine != null && remnant.equals("")
+                && firstLine.equals("")) {
+            firstLine = lp.readLine();
+        }
         if (firstLine != null) {
             firstLine = remnant + firstLine;
             remnant = "";
@@ -72,7 +127,6 @@ public class NonBlockingHTTPParser  implements HTTPParser<ByteBuffer>{
             }
         } else {
             remnant = remnant + asString(buffer);
-            buffer.clear();
         }
     }
 
@@ -86,19 +140,67 @@ public class NonBlockingHTTPParser  implements HTTPParser<ByteBuffer>{
         while (line != null && !line.equals("")) {
             Matcher matcher = bodyLengthPattern.matcher(line);
             if (matcher.matches()) {
-                body = ByteBuffer.allocate(Integer.parseInt(matcher.group(1)));
+                try {
+                    contentLength = Integer.parseInt(matcher.group(1));
+                } catch (NumberFormatException e) {
+                    // no cabe en un int
+                    state = BAD_REQUEST;
+                    return;
+                }
+            } else if (connectionClosePattern.matcher(line).matches()) {
+                keepAlive = false;
             }
+            storeHeader(line);
             line = lp.readLine();
         }
         if (line == null) {
             remnant = remnant + asString(buffer);
-            buffer.clear();
+        } else if (receiver != null) {
+            // el cuerpo se entrega al receptor sin guardarlo o, si no lo
+            // quiere, se descarta segun llega
+            streaming = receiver.inicia(method, Math.max(contentLength, 0));
+            discarding = !streaming;
+            bodyRemaining = Math.max(contentLength, 0);
+            if (bodyRemaining > 0) {
+                state = READ_BODY;
+            } else {
+                if (streaming) {
+                    receiver.termina();
+                }
+                state = COMPLETE;
+            }
+        } else if (contentLength > MAX_BODY) {
+            // sin receptor, el cuerpo se guarda en memoria: no se reserva
+            // lo que pida el cliente
+            state = BAD_REQUEST;
+        } else if (contentLength >= 0) {
+            body = ByteBuffer.allocate(contentLength);
+            state = READ_BODY;
         } else {
-            state = body != null ? READ_BODY : COMPLETE;
+            state = COMPLETE;
         }
     }
 
     private void readBody(ByteBuffer buffer) {
+        if (streaming || discarding) {
+            int n = (int) Math.min(buffer.remaining(), bodyRemaining);
+            if (streaming) {
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + n);
+                receiver.recibe(buffer);
+                buffer.limit(limit);
+            } else {
+                buffer.position(buffer.position() + n);
+            }
+            bodyRemaining -= n;
+            if (bodyRemaining == 0) {
+                if (streaming) {
+                    receiver.termina();
+                }
+                state = COMPLETE;
+            }
+            return;
+        }
         if (buffer.remaining() <= body.remaining()) {
             body.put(buffer);
         } else {
@@ -112,6 +214,21 @@ public class NonBlockingHTTPParser  implements HTTPParser<ByteBuffer>{
         }
     }
 
+    /*
+     * Guarda la cabecera "nombre: valor" de la linea [line] (las lineas sin
+     * ':' se ignoran). Los valores de una cabecera repetida se unen con comas
+     */
+    private void storeHeader(String line) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = line.substring(0, colon).trim().toLowerCase();
+        String value = line.substring(colon + 1).trim();
+        String previous = headers.get(name);
+        headers.put(name, previous == null ? value : previous + ", " + value);
+    }
+
     private static String asString(ByteBuffer buffer) {
         byte[] result = new byte[buffer.remaining()];
         buffer.get(result);
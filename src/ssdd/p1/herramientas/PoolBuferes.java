@@ -0,0 +1,162 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: PoolBuferes.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Conjunto de buferes directos reutilizables.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conjunto (pool) de buferes directos reutilizables, organizado por clases de
+ * tamano (potencias de dos). Las conexiones toman un bufer cuando lo necesitan
+ * y lo devuelven al terminar, de forma que no se crea un bufer por conexion
+ * ni por peticion. Los buferes directos evitan ademas la copia intermedia que
+ * hace la JVM al leer o escribir un bufer normal en un socket.
+ *
+ * Cada clase guarda como mucho [maxPorClase] buferes libres; los que se
+ * devuelven por encima de ese numero se descartan. Los buferes mayores que la
+ * clase mas grande no se guardan.
+ *
+ * Puede usarse desde varios hilos a la vez.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class PoolBuferes {
+
+    /** Tamano de la clase mas pequena (en bytes) */
+    private final int tamanoMinimo;
+
+    /** Buferes libres de cada clase */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] libres;
+
+    /** Numero de buferes libres de cada clase */
+    private final AtomicInteger[] numLibres;
+
+    /** Numero maximo de buferes libres por clase */
+    private final int maxPorClase;
+
+    /** Peticiones atendidas con un bufer reutilizado */
+    private final AtomicLong aciertos = new AtomicLong();
+
+    /** Peticiones que han obligado a crear un bufer nuevo */
+    private final AtomicLong fallos = new AtomicLong();
+
+    /**
+     * Metodo constructor de la clase. Crea un pool vacio.
+     *
+     * @param tamanoMinimo : Tamano de la clase mas pequena (potencia de dos)
+     * @param numClases : Numero de clases; la mayor es tamanoMinimo *
+     *            2^(numClases - 1)
+     * @param maxPorClase : Numero maximo de buferes libres por clase
+     *
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public PoolBuferes(int tamanoMinimo, int numClases, int maxPorClase) {
+        this.tamanoMinimo = tamanoMinimo;
+        this.maxPorClase = maxPorClase;
+        this.libres = new ConcurrentLinkedQueue[numClases];
+        this.numLibres = new AtomicInteger[numClases];
+        for (int i = 0; i < numClases; i++) {
+            libres[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            numLibres[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Devuelve un bufer directo vacio de al menos [tamano] bytes.
+     *
+     * @param tamano : Tamano minimo del bufer
+     * @return bufer listo para escribir en el (posicion 0, limite = capacidad)
+     *
+     */
+    public ByteBuffer toma(int tamano) {
+
+        int clase = clase(tamano);
+
+        // demasiado grande para el pool
+        if (clase < 0) {
+            fallos.incrementAndGet();
+            return ByteBuffer.allocateDirect(tamano);
+        }
+
+        ByteBuffer bufer = libres[clase].poll();
+
+        if (bufer != null) {
+            numLibres[clase].decrementAndGet();
+            aciertos.incrementAndGet();
+            bufer.clear();
+            return bufer;
+        }
+
+        fallos.incrementAndGet();
+        return ByteBuffer.allocateDirect(tamanoMinimo << clase);
+    }
+
+    /**
+     * Devuelve al pool un bufer obtenido con toma. No se debe volver a usar
+     * despues.
+     *
+     * @param bufer : Bufer que se devuelve
+     *
+     */
+    public void devuelve(ByteBuffer bufer) {
+
+        int clase = clase(bufer.capacity());
+
+        // solo se guardan los buferes que tienen exactamente el tamano de una
+        // clase
+        if (clase < 0 || (tamanoMinimo << clase) != bufer.capacity()) {
+            return;
+        }
+
+        // y mientras no se supere el maximo de libres
+        if (numLibres[clase].incrementAndGet() <= maxPorClase) {
+            libres[clase].offer(bufer);
+        } else {
+            numLibres[clase].decrementAndGet();
+        }
+    }
+
+    /**
+     * Devuelve el numero de veces que se ha reutilizado un bufer
+     *
+     * @return numero de aciertos
+     *
+     */
+    public long getAciertos() {
+        return aciertos.get();
+    }
+
+    /**
+     * Devuelve el numero de veces que se ha tenido que crear un bufer nuevo
+     *
+     * @return numero de fallos
+     *
+     */
+    public long getFallos() {
+        return fallos.get();
+    }
+
+    /**
+     * Metodo auxiliar que devuelve la clase de tamano mas pequena en la que
+     * cabe un bufer de [tamano] bytes, o -1 si no cabe en ninguna.
+     *
+     */
+    private int clase(int tamano) {
+        int clase = 0;
+        int capacidad = tamanoMinimo;
+        while (capacidad < tamano) {
+            capacidad <<= 1;
+            clase++;
+        }
+        return clase < libres.length ? clase : -1;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: RangosBytes.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Interpretacion de la cabecera Range de las peticiones GET.
+ */
+
+package ssdd.p1.herramientas;
+
+/**
+ * Interpretacion de la cabecera Range ("bytes=0-499", "bytes=500-",
+ * "bytes=-500" o varios rangos separados por comas) de una peticion GET sobre
+ * un fichero de longitud conocida.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class RangosBytes {
+
+    /**
+     * Numero maximo de rangos que se atienden en una misma peticion (si se
+     * piden mas, se envia el fichero completo)
+     */
+    public static final int MAX_RANGOS = 16;
+
+    /**
+     * Interpreta el valor [cabecera] de la cabecera Range sobre un fichero de
+     * [longitud] bytes. Los rangos que empiezan despues del final del fichero
+     * se descartan y los que terminan despues se recortan.
+     *
+     * @param cabecera : Valor de la cabecera Range
+     * @param longitud : Longitud del fichero
+     * @return vector con el primer y el ultimo byte (incluido) de cada rango
+     *         atendible, en el orden pedido; vector vacio si ninguno es
+     *         atendible (416); o null si la cabecera no es valida o pide
+     *         demasiados rangos, y por tanto se debe ignorar (200)
+     *
+     */
+    public static long[][] analiza(String cabecera, long longitud) {
+
+        int igual = cabecera.indexOf('=');
+        if (igual < 0 || !cabecera.substring(0, igual).trim()
+                .equalsIgnoreCase("bytes")) {
+            return null;
+        }
+
+        String[] especificaciones = cabecera.substring(igual + 1).split(",");
+        if (especificaciones.length > MAX_RANGOS) {
+            return null;
+        }
+
+        long[][] rangos = new long[especificaciones.length][];
+        int numRangos = 0;
+
+        for (String especificacion : especificaciones) {
+            especificacion = especificacion.trim();
+            int guion = especificacion.indexOf('-');
+            if (guion < 0) {
+                return null;
+            }
+
+            long primero;
+            long ultimo;
+            try {
+                String desde = especificacion.substring(0, guion).trim();
+                String hasta = especificacion.substring(guion + 1).trim();
+
+                // los ultimos bytes del fichero ("-500")
+                if (desde.isEmpty()) {
+                    long sufijo = numero(hasta);
+                    if (sufijo == 0 || longitud == 0) {
+                        continue;
+                    }
+                    primero = Math.max(0, longitud - sufijo);
+                    ultimo = longitud - 1;
+                }
+
+                // desde un byte hasta el final ("500-") o hasta otro
+                // ("0-499")
+                else {
+                    primero = numero(desde);
+                    ultimo = hasta.isEmpty() ? Long.MAX_VALUE : numero(hasta);
+                    if (ultimo < primero) {
+                        return null;
+                    }
+                    if (primero >= longitud) {
+                        continue;
+                    }
+                    ultimo = Math.min(ultimo, longitud - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            rangos[numRangos++] = new long[] { primero, ultimo };
+        }
+
+        long[][] atendibles = new long[numRangos][];
+        System.arraycopy(rangos, 0, atendibles, 0, numRangos);
+        return atendibles;
+    }
+
+    /**
+     * Metodo auxiliar que interpreta un numero de bytes (solo digitos)
+     *
+     */
+    private static long numero(String texto) {
+        for (int i = 0; i < texto.length(); i++) {
+            if (texto.charAt(i) < '0' || texto.charAt(i) > '9') {
+                throw new NumberFormatException(texto);
+            }
+        }
+        return Long.parseLong(texto);
+    }
+}
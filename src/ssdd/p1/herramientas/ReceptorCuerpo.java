@@ -0,0 +1,48 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: ReceptorCuerpo.java
+ * TIEMPO: 15 minutos
+ * DESCRIPCION: Destino del cuerpo de las peticiones HTTP a medida que llega.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destino al que un analizador HTTP entrega el cuerpo de una peticion a medida
+ * que lo recibe, en lugar de guardarlo completo en memoria.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public interface ReceptorCuerpo {
+
+    /**
+     * Se invoca al terminar las cabeceras de cada peticion, antes de recibir
+     * su cuerpo
+     *
+     * @param metodo : Metodo de la peticion
+     * @param longitud : Longitud del cuerpo en bytes (0 si no tiene)
+     * @return cierto si y solo si el receptor quiere recibir el cuerpo; en
+     *         caso contrario el analizador lo descarta sin guardarlo
+     *
+     */
+    public boolean inicia(String metodo, long longitud);
+
+    /**
+     * Recibe un fragmento del cuerpo. Debe consumir todos los bytes que
+     * queden en [datos]
+     *
+     * @param datos : Fragmento del cuerpo
+     *
+     */
+    public void recibe(ByteBuffer datos);
+
+    /**
+     * Se invoca cuando se ha recibido el cuerpo completo
+     *
+     */
+    public void termina();
+}
@@ -0,0 +1,359 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: Respuesta.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Respuesta HTTP lista para ser enviada a un cliente.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Respuesta HTTP lista para ser enviada a un cliente. Se compone de una
+ * cabecera ya codificada en bytes y de un cuerpo que puede estar en memoria o
+ * ser una region de un fichero. En el segundo caso el cuerpo se envia
+ * directamente del fichero al canal con FileChannel.transferTo, sin pasar por
+ * la memoria de la aplicacion.
+ *
+ * Recuerda cuanto se ha enviado, por lo que puede escribirse en varias veces
+ * sobre un canal no bloqueante. Si el cuerpo esta en memoria, cabecera y
+ * cuerpo se envian juntos con una escritura agrupada (gathering write).
+ *
+ * Una respuesta puede continuar con otros segmentos (cada uno con su parte
+ * en memoria y su region de fichero), que se envian a continuacion como
+ * parte de ella. Asi se componen las respuestas con varios rangos de un
+ * fichero (multipart/byteranges).
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class Respuesta {
+
+    /** Linea de estado y cabeceras, codificadas en bytes */
+    private ByteBuffer cabecera;
+
+    /** Cuerpo de la respuesta en memoria (o null) */
+    private ByteBuffer cuerpo;
+
+    /** Fichero del que se envia el cuerpo (o null) */
+    private FileChannel fichero;
+
+    /** Posicion del siguiente byte del fichero que se debe enviar */
+    private long posicion;
+
+    /** Posicion del fichero en la que termina el cuerpo */
+    private long fin;
+
+    /** Cabecera y cuerpo en memoria, para enviarlos con una sola escritura */
+    private ByteBuffer[] partes;
+
+    /** Codigo HTTP de la respuesta (tomado de la linea de estado) */
+    private final int codigo;
+
+    /** Bytes en memoria (cabecera y cuerpo) al crear la respuesta */
+    private final long longitudMemoria;
+
+    /** Posicion del fichero en la que empieza el cuerpo */
+    private long inicioFichero;
+
+    /** Segmento que se envia a continuacion de este (o null) */
+    private Respuesta siguiente;
+
+    /**
+     * Instante (System.nanoTime) en el que llego el primer byte de la
+     * peticion (0 si no se conoce)
+     */
+    private long inicio;
+
+    /**
+     * Metodo constructor de la clase. Crea una respuesta completa (cabecera y
+     * cuerpo) a partir de una cadena de texto.
+     *
+     * @param texto : Respuesta HTTP completa
+     *
+     */
+    public Respuesta(String texto) {
+        this(ByteBuffer.wrap(texto.getBytes()), (ByteBuffer) null);
+    }
+
+    /**
+     * Metodo constructor de la clase. Crea una respuesta cuyo cuerpo esta en
+     * memoria.
+     *
+     * @param cabecera : Linea de estado y cabeceras
+     * @param cuerpo : Cuerpo de la respuesta (puede ser null)
+     *
+     */
+    public Respuesta(ByteBuffer cabecera, ByteBuffer cuerpo) {
+        this.cabecera = cabecera;
+        this.cuerpo = cuerpo;
+        this.fichero = null;
+        this.partes = cuerpo != null ? new ByteBuffer[] { cabecera, cuerpo }
+                : null;
+        this.codigo = leeCodigo(cabecera);
+        this.longitudMemoria = getBytesPropios();
+    }
+
+    /**
+     * Metodo constructor de la clase. Crea una respuesta cuyo cuerpo es la
+     * region [posicion, posicion + longitud) del fichero [fichero].
+     *
+     * @param cabecera : Linea de estado y cabeceras
+     * @param fichero : Canal abierto sobre el fichero (se cierra al terminar)
+     * @param posicion : Posicion del fichero en la que empieza el cuerpo
+     * @param longitud : Longitud del cuerpo en bytes
+     *
+     */
+    public Respuesta(ByteBuffer cabecera, FileChannel fichero, long posicion,
+            long longitud) {
+        this.cabecera = cabecera;
+        this.cuerpo = null;
+        this.fichero = fichero;
+        this.posicion = posicion;
+        this.fin = posicion + longitud;
+        this.inicioFichero = posicion;
+        this.codigo = leeCodigo(cabecera);
+        this.longitudMemoria = getBytesPropios();
+    }
+
+    /**
+     * Metodo auxiliar que devuelve el codigo HTTP de la linea de estado
+     * "HTTP/1.1 XXX ..." que empieza en la posicion actual de [cabecera] (0
+     * si no tiene ese formato)
+     *
+     */
+    private static int leeCodigo(ByteBuffer cabecera) {
+        int inicio = cabecera.position() + "HTTP/1.1 ".length();
+        if (cabecera.limit() < inicio + 3) {
+            return 0;
+        }
+        int codigo = 0;
+        for (int i = inicio; i < inicio + 3; i++) {
+            byte b = cabecera.get(i);
+            if (b < '0' || b > '9') {
+                return 0;
+            }
+            codigo = codigo * 10 + (b - '0');
+        }
+        return codigo;
+    }
+
+    /**
+     * Devuelve el codigo HTTP de la respuesta
+     *
+     * @return codigo HTTP (0 si no se conoce)
+     *
+     */
+    public int getCodigo() {
+        return codigo;
+    }
+
+    /**
+     * Devuelve el numero de bytes de la respuesta enviados hasta ahora
+     *
+     * @return bytes enviados
+     *
+     */
+    public long getEnviados() {
+        return longitudMemoria - getBytesPropios() + (posicion - inicioFichero)
+                + (siguiente != null ? siguiente.getEnviados() : 0);
+    }
+
+    /**
+     * Anade el segmento [segmento] al final de la respuesta, para enviarlo
+     * despues de todo lo anterior (su linea de estado no se interpreta)
+     *
+     * @param segmento : Segmento que se anade
+     *
+     */
+    void encadena(Respuesta segmento) {
+        Respuesta ultimo = this;
+        while (ultimo.siguiente != null) {
+            ultimo = ultimo.siguiente;
+        }
+        ultimo.siguiente = segmento;
+    }
+
+    /**
+     * Establece el instante en el que llego el primer byte de la peticion a
+     * la que corresponde la respuesta, para medir el tiempo total
+     *
+     * @param inicio : Instante (System.nanoTime) del primer byte
+     *
+     */
+    public void setInicio(long inicio) {
+        this.inicio = inicio;
+    }
+
+    /**
+     * Devuelve el instante en el que llego el primer byte de la peticion
+     *
+     * @return instante (System.nanoTime) del primer byte (0 si no se conoce)
+     *
+     */
+    public long getInicio() {
+        return inicio;
+    }
+
+    /**
+     * Envia por el canal [canal] todo lo que este admita de lo que quede de
+     * la respuesta. Sobre un canal bloqueante envia la respuesta completa.
+     *
+     * @param canal : Canal asociado al cliente
+     * @return cierto si y solo si ya se ha enviado la respuesta completa
+     * @throws IOException si falla la escritura o el fichero se ha truncado
+     *
+     */
+    public boolean escribe(WritableByteChannel canal) throws IOException {
+
+        if (!escribeSegmento(canal)) {
+            return false;
+        }
+
+        // despues los segmentos encadenados
+        return siguiente == null || siguiente.escribe(canal);
+    }
+
+    /**
+     * Metodo auxiliar que envia lo que admita el canal de este segmento (sin
+     * los encadenados)
+     *
+     * @return cierto si y solo si ya se ha enviado el segmento completo
+     *
+     */
+    private boolean escribeSegmento(WritableByteChannel canal)
+            throws IOException {
+
+        // si el canal lo permite, cabecera y cuerpo en memoria se envian con
+        // una unica escritura (una sola llamada al sistema)
+        if (partes != null && canal instanceof GatheringByteChannel) {
+            while (cabecera.hasRemaining() || cuerpo.hasRemaining()) {
+                if (((GatheringByteChannel) canal).write(partes) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // primero la cabecera
+        while (cabecera.hasRemaining()) {
+            if (canal.write(cabecera) == 0) {
+                return false;
+            }
+        }
+
+        // despues el cuerpo en memoria
+        if (cuerpo != null) {
+            while (cuerpo.hasRemaining()) {
+                if (canal.write(cuerpo) == 0) {
+                    return false;
+                }
+            }
+        }
+
+        // o el cuerpo en fichero, sin copiarlo a memoria
+        if (fichero != null) {
+            while (posicion < fin) {
+                long enviados = fichero.transferTo(posicion, fin - posicion,
+                        canal);
+                if (enviados == 0) {
+
+                    // si el fichero ha encogido nunca se podra completar
+                    if (posicion >= fichero.size()) {
+                        throw new IOException("Fichero truncado durante "
+                                + "el envio");
+                    }
+                    return false;
+                }
+                posicion += enviados;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Devuelve cierto si y solo si el cuerpo (si lo hay) esta en memoria, y
+     * por tanto la respuesta puede enviarse agrupada con otras
+     *
+     * @return cierto si no hay cuerpo en fichero
+     *
+     */
+    boolean isEnMemoria() {
+        return fichero == null && siguiente == null;
+    }
+
+    /**
+     * Devuelve cierto si y solo si ya se ha enviado la respuesta completa
+     *
+     * @return cierto si no queda nada por enviar
+     *
+     */
+    boolean isEnviada() {
+        return !cabecera.hasRemaining()
+                && (cuerpo == null || !cuerpo.hasRemaining())
+                && (fichero == null || posicion >= fin)
+                && (siguiente == null || siguiente.isEnviada());
+    }
+
+    /**
+     * Devuelve los bytes de la respuesta que ocupan memoria y quedan por
+     * enviar (el cuerpo en fichero no cuenta)
+     *
+     * @return bytes en memoria pendientes de enviar
+     *
+     */
+    int getBytesEnMemoria() {
+        return getBytesPropios()
+                + (siguiente != null ? siguiente.getBytesEnMemoria() : 0);
+    }
+
+    /**
+     * Metodo auxiliar que devuelve los bytes en memoria de este segmento (sin
+     * los encadenados) que quedan por enviar
+     *
+     */
+    private int getBytesPropios() {
+        return cabecera.remaining() + (cuerpo != null ? cuerpo.remaining() : 0);
+    }
+
+    /**
+     * Anade a [partes], a partir de la posicion [i], los buferes en memoria
+     * que componen la respuesta (cabecera y cuerpo, si lo hay)
+     *
+     * @return posicion siguiente a la ultima parte anadida
+     *
+     */
+    int anadePartes(ByteBuffer[] partes, int i) {
+        partes[i++] = cabecera;
+        if (cuerpo != null) {
+            partes[i++] = cuerpo;
+        }
+        return i;
+    }
+
+    /**
+     * Libera los recursos asociados a la respuesta (el fichero, si lo hay).
+     * Debe llamarse tanto si la respuesta se ha enviado como si no.
+     *
+     */
+    public void cierra() {
+        if (fichero != null) {
+            try {
+                fichero.close();
+            } catch (IOException e) {
+                System.err.println("ERROR: " + e.getMessage());
+            }
+            fichero = null;
+        }
+        if (siguiente != null) {
+            siguiente.cierra();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: RuedaTemporizadores.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Rueda de temporizadores (hashed timing wheel).
+ */
+
+package ssdd.p1.herramientas;
+
+import java.util.ArrayList;
+
+/**
+ * Rueda de temporizadores (hashed timing wheel). El tiempo se divide en
+ * intervalos de [resolucion] milisegundos y cada temporizador se guarda en la
+ * ranura que corresponde a su intervalo de vencimiento, modulo el numero de
+ * ranuras. Programar, reprogramar y cancelar un temporizador cuesta O(1), y
+ * avanzar la rueda solo recorre las ranuras de los intervalos transcurridos,
+ * por lo que el coste no depende del numero total de temporizadores.
+ *
+ * Los temporizadores vencen con un retraso de, como mucho, [resolucion]
+ * milisegundos.
+ *
+ * NO puede usarse desde varios hilos a la vez.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class RuedaTemporizadores {
+
+    /**
+     * Temporizador que ejecuta una accion al vencer. Se puede reprogramar
+     * tantas veces como se quiera.
+     *
+     */
+    public static class Temporizador {
+
+        /** Accion que se ejecuta al vencer */
+        private final Runnable accion;
+
+        /** Intervalo en el que vence */
+        private long intervalo;
+
+        /** Ranura en la que esta guardado (-1 si no esta programado) */
+        private int ranura = -1;
+
+        /** Temporizadores anterior y siguiente de la misma ranura */
+        private Temporizador anterior;
+        private Temporizador siguiente;
+
+        /**
+         * Metodo constructor de la clase. Crea un temporizador sin programar
+         *
+         * @param accion : Accion que se ejecuta al vencer
+         *
+         */
+        public Temporizador(Runnable accion) {
+            this.accion = accion;
+        }
+
+        /**
+         * Devuelve cierto si y solo si el temporizador esta programado
+         *
+         * @return cierto si esta programado
+         *
+         */
+        public boolean isProgramado() {
+            return ranura >= 0;
+        }
+    }
+
+    /** Duracion (en milisegundos) de cada intervalo */
+    private final long resolucion;
+
+    /** Primer temporizador de cada ranura */
+    private final Temporizador[] ranuras;
+
+    /** Ultimo intervalo procesado */
+    private long actual;
+
+    /** Temporizadores vencidos en la ultima llamada a avanza */
+    private final ArrayList<Temporizador> vencidos;
+
+    /**
+     * Metodo constructor de la clase. Crea una rueda vacia.
+     *
+     * @param resolucion : Duracion (en milisegundos) de cada intervalo
+     * @param numRanuras : Numero de ranuras (potencia de dos)
+     * @param ahora : Instante actual (en milisegundos)
+     *
+     */
+    public RuedaTemporizadores(long resolucion, int numRanuras, long ahora) {
+        this.resolucion = resolucion;
+        this.ranuras = new Temporizador[numRanuras];
+        this.actual = ahora / resolucion;
+        this.vencidos = new ArrayList<Temporizador>();
+    }
+
+    /**
+     * Programa (o reprograma, si ya lo estaba) el temporizador [temporizador]
+     * para que venza en el instante [vencimiento]
+     *
+     * @param temporizador : Temporizador
+     * @param vencimiento : Instante de vencimiento (en milisegundos)
+     *
+     */
+    public void programa(Temporizador temporizador, long vencimiento) {
+
+        cancela(temporizador);
+
+        // redondear hacia arriba: nunca vence antes de tiempo
+        long intervalo = (vencimiento + resolucion - 1) / resolucion;
+        if (intervalo <= actual) {
+            intervalo = actual + 1;
+        }
+
+        int ranura = (int) (intervalo & (ranuras.length - 1));
+
+        temporizador.intervalo = intervalo;
+        temporizador.ranura = ranura;
+        temporizador.anterior = null;
+        temporizador.siguiente = ranuras[ranura];
+        if (ranuras[ranura] != null) {
+            ranuras[ranura].anterior = temporizador;
+        }
+        ranuras[ranura] = temporizador;
+    }
+
+    /**
+     * Cancela el temporizador [temporizador], si esta programado
+     *
+     * @param temporizador : Temporizador
+     *
+     */
+    public void cancela(Temporizador temporizador) {
+
+        if (temporizador.ranura < 0) {
+            return;
+        }
+
+        if (temporizador.anterior != null) {
+            temporizador.anterior.siguiente = temporizador.siguiente;
+        } else {
+            ranuras[temporizador.ranura] = temporizador.siguiente;
+        }
+        if (temporizador.siguiente != null) {
+            temporizador.siguiente.anterior = temporizador.anterior;
+        }
+
+        temporizador.ranura = -1;
+        temporizador.anterior = null;
+        temporizador.siguiente = null;
+    }
+
+    /**
+     * Avanza la rueda hasta el instante [ahora] y ejecuta las acciones de los
+     * temporizadores vencidos. Las acciones pueden programar o cancelar
+     * cualquier temporizador.
+     *
+     * @param ahora : Instante actual (en milisegundos)
+     *
+     */
+    public void avanza(long ahora) {
+
+        long destino = ahora / resolucion;
+
+        // si ha pasado una vuelta completa basta con recorrer cada ranura
+        // una vez
+        long pasos = Math.min(destino - actual, ranuras.length);
+
+        for (long i = 1; i <= pasos; i++) {
+            int ranura = (int) ((actual + i) & (ranuras.length - 1));
+
+            // en la misma ranura puede haber temporizadores de vueltas
+            // posteriores, que se dejan donde estan
+            Temporizador temporizador = ranuras[ranura];
+            while (temporizador != null) {
+                Temporizador siguiente = temporizador.siguiente;
+                if (temporizador.intervalo <= destino) {
+                    cancela(temporizador);
+                    vencidos.add(temporizador);
+                }
+                temporizador = siguiente;
+            }
+        }
+
+        if (destino > actual) {
+            actual = destino;
+        }
+
+        // ejecutar las acciones despues de recorrer las ranuras, por si
+        // modifican la rueda
+        for (int i = 0; i < vencidos.size(); i++) {
+
+            // (salvo que una accion anterior lo haya vuelto a programar)
+            if (!vencidos.get(i).isProgramado()) {
+                vencidos.get(i).accion.run();
+            }
+        }
+        vencidos.clear();
+    }
+}
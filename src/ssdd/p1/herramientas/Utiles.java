@@ -9,10 +9,18 @@
 package ssdd.p1.herramientas;
 
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Scanner;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import ssdd.p1.herramientas.RuedaTemporizadores.Temporizador;
 
 /**
  * Clase que gestiona objetos Utiles. Proporcionan operaciones comunes a varias
@@ -32,12 +40,132 @@ public class Utiles {
     public static final Pattern patronRutaFichero = Pattern
             .compile("[/]?[a-zA-Z0-9_-]+(.[a-zA-Z0-9]+)?");
 
+    /**
+     * Atributo que almacena la cache de respuestas a peticiones GET, comun a
+     * todas las conexiones. Guarda hasta 64 MB de respuestas de ficheros de,
+     * como mucho, 4 MB
+     * 
+     */
+    public static final CacheFicheros cacheFicheros = new CacheFicheros(
+            64 * 1024 * 1024, 4 * 1024 * 1024);
+
+    /**
+     * Atributo que almacena la cache de resolucion de las rutas pedidas por
+     * GET, comun a todas las conexiones. Guarda hasta 4096 rutas durante 1
+     * segundo
+     * 
+     */
+    public static final CacheRutas cacheRutas = new CacheRutas(4096, 1000);
+
+    /**
+     * Atributo que almacena el pool de buferes directos de lectura, comun a
+     * todas las conexiones del modo selector. Clases de 4 KB a 64 KB, con
+     * hasta 1024 buferes libres por clase
+     *
+     */
+    public static final PoolBuferes poolBuferes = new PoolBuferes(4096, 5,
+            1024);
+
+    /**
+     * Atributo que almacena las metricas de funcionamiento del servidor,
+     * comunes a todas las conexiones
+     *
+     */
+    public static final Metricas metricas = new Metricas();
+
+    /**
+     * Atributo que almacena el control de admision de las conexiones, comun
+     * a todos los modos. Por defecto no limita nada; sus limites se
+     * configuran al lanzar el servidor (opcion -l de Lanzador). Recuerda
+     * hasta 16384 direcciones
+     *
+     */
+    public static final ControlAdmision admision = new ControlAdmision(16384);
+
+    /**
+     * Atributo que almacena los cerrojos que serializan las escrituras de un
+     * mismo fichero, comunes a todas las conexiones
+     * 
+     */
+    public static final CerrojosFicheros cerrojosFicheros =
+            new CerrojosFicheros(64);
+
+    /**
+     * Atributo que almacena los codigos HTTP que conoce el servidor
+     * 
+     */
+    private static final int[] codigos = { 200, 206, 304, 400, 403, 404,
+            408, 416, 429, 500, 501, 503 };
+
+    /**
+     * Atributo que representa la ausencia de cabeceras adicionales
+     * 
+     */
+    private static final byte[] sinCabeceras = new byte[0];
+
+    /**
+     * Atributo que almacena las cabeceras de las respuestas generadas que se
+     * envian sin comprimir aunque dependen de la cabecera Accept-Encoding
+     * 
+     */
+    private static final byte[] cabecerasVary = "Vary: Accept-Encoding\n"
+            .getBytes();
+
+    /**
+     * Atributo que almacena las cabeceras de las respuestas generadas que se
+     * envian comprimidas con gzip
+     * 
+     */
+    private static final byte[] cabecerasGzip = ("Vary: Accept-Encoding\n"
+            + "Content-Encoding: gzip\n").getBytes();
+
+    /**
+     * Atributo que almacena la longitud minima (en bytes) de un cuerpo
+     * generado para comprimirlo: por debajo, la cabecera y el final de gzip
+     * apenas dejan ahorro y no compensa el tiempo de compresion
+     * 
+     */
+    private static final int MIN_COMPRESION = 1024;
+
+    /**
+     * Atributo que almacena, para cada caracter menor que 256, la entidad
+     * HTML por la que lo sustituye codificarHTML (o null si se deja igual).
+     * Se calcula una sola vez
+     * 
+     */
+    private static final String[] entidades = generaEntidades();
+
+    /**
+     * Atributo que almacena, para cada codigo de [codigos], el comienzo de la
+     * cabecera ya codificado en bytes (linea de estado y nombre de la cabecera
+     * Content-Length). Se calcula una sola vez
+     * 
+     */
+    private static final byte[][] iniciosCabecera = generaIniciosCabecera();
+
+    /**
+     * Atributo que almacena, para cada codigo de error de [codigos], la
+     * respuesta completa (cabecera y cuerpo) ya codificada en bytes. Se
+     * calcula una sola vez y cada respuesta usa una copia de sus indices, sin
+     * copiar los datos
+     * 
+     */
+    private static final ByteBuffer[] respuestasError = generaRespuestasError();
+
     /**
      * Atributo que almacena un analizador HTTP (y su estado). Solo se utiliza
      * cuando el servidor funciona en modo selector (no bloqueante)
      * 
      */
-    private NonBlockingHTTPParser analizador;
+    private HTTPParser<ByteBuffer> analizador;
+
+    /**
+     * Atributo que almacena el decodificador de los formularios enviados por
+     * POST. Solo se utiliza cuando el servidor funciona en modo selector (no
+     * bloqueante)
+     * 
+     */
+    private DecodificadorFormulario formulario;
 
     /**
      * Atributo que almacena un bufer. Solo se utiliza cuando el servidor
@@ -47,11 +175,61 @@ public class Utiles {
     private ByteBuffer bufer;
 
     /**
-     * Atributo que almacena la respuesta que se debe enviar al cliente. Solo se
-     * utiliza cuando el servidor funciona en modo selector (no bloqueante)
+     * Atributo que almacena la cola de respuestas pendientes de enviar al
+     * cliente. Solo se utiliza cuando el servidor funciona en modo selector
+     * (no bloqueante)
+     * 
+     */
+    private ColaSalida salida;
+
+    /**
+     * Atributo que indica si la conexion esta esperando a que terminen las
+     * escrituras en disco de su formulario. Solo se utiliza cuando el servidor
+     * funciona en modo selector (no bloqueante)
+     * 
+     */
+    private boolean esperando;
+
+    /**
+     * Atributo que indica si se debe cerrar la conexion tras enviar la
+     * respuesta o, por el contrario, mantenerla abierta para nuevas peticiones.
+     * Solo se utiliza cuando el servidor funciona en modo selector (no
+     * bloqueante)
+     * 
+     */
+    private boolean cerrar;
+
+    /**
+     * Atributo que almacena el temporizador que vigila los plazos de la
+     * conexion. Solo se utiliza cuando el servidor funciona en modo selector
+     * (no bloqueante)
+     * 
+     */
+    private Temporizador temporizador;
+
+    /**
+     * Atributo que almacena la fase de la conexion a la que corresponde el
+     * plazo programado. Solo se utiliza cuando el servidor funciona en modo
+     * selector (no bloqueante)
+     * 
+     */
+    private int fase;
+
+    /**
+     * Atributo que almacena los bytes del cuerpo recibidos desde la ultima
+     * vez que se renovo el plazo. Solo se utiliza cuando el servidor funciona
+     * en modo selector (no bloqueante)
+     * 
+     */
+    private long progreso;
+
+    /**
+     * Atributo que almacena el instante (System.nanoTime) en el que llego el
+     * primer byte de la peticion en curso. Solo se utiliza cuando el servidor
+     * funciona en modo selector (no bloqueante)
      * 
      */
-    private String respuesta;
+    private long inicio;
 
     /**
      * Metodo constructor de la clase. Crea un objeto con los atributos vacios.
@@ -59,8 +237,15 @@ public class Utiles {
      */
     public Utiles() {
         analizador = null;
+        formulario = null;
         bufer = null;
-        respuesta = null;
+        salida = null;
+        esperando = false;
+        cerrar = false;
+        temporizador = null;
+        fase = 0;
+        progreso = 0;
+        inicio = 0;
     }
 
     /**
@@ -70,10 +255,21 @@ public class Utiles {
      * @param analizador : Analizador HTTP
      * 
      */
-    public void setAnalizador(NonBlockingHTTPParser analizador) {
+    public void setAnalizador(HTTPParser<ByteBuffer> analizador) {
         this.analizador = analizador;
     }
 
+    /**
+     * Almacena un nuevo decodificador de formularios. Solo se utiliza cuando
+     * el servidor funciona en modo selector (no bloqueante)
+     * 
+     * @param formulario : Decodificador de formularios
+     * 
+     */
+    public void setFormulario(DecodificadorFormulario formulario) {
+        this.formulario = formulario;
+    }
+
     /**
      * Almacena un nuevo bufer ByteBuffer. Solo se utiliza cuando el servidor
      * funciona en modo selector (no bloqueante)
@@ -86,180 +282,275 @@ public class Utiles {
     }
 
     /**
-     * Almacena una nueva respuesta para el cliente. Solo se utiliza cuando el
-     * servidor funciona en modo selector (no bloqueante)
+     * Almacena la cola de respuestas pendientes de enviar al cliente. Solo se
+     * utiliza cuando el servidor funciona en modo selector (no bloqueante)
      * 
-     * @param respuesta : Cadena que contiene la respuesta para el cliente
+     * @param salida : Cola de respuestas para el cliente
      * 
      */
-    public void setRespuesta(String respuesta) {
-        this.respuesta = respuesta;
+    public void setSalida(ColaSalida salida) {
+        this.salida = salida;
     }
 
     /**
-     * Devuelve el analizador HTTP asociado. Solo se utiliza cuando el servidor
-     * funciona en modo selector (no bloqueante)
+     * Establece si la conexion esta esperando a que terminen las escrituras
+     * en disco de su formulario. Solo se utiliza cuando el servidor funciona
+     * en modo selector (no bloqueante)
      * 
-     * @return Analizador HTTP
+     * @param esperando : cierto si esta esperando al disco
      * 
      */
-    public NonBlockingHTTPParser getAnalizador() {
-        return analizador;
+    public void setEsperando(boolean esperando) {
+        this.esperando = esperando;
     }
 
     /**
-     * Devuelve el bufer asociado. Solo se utiliza cuando el servidor funciona
-     * en modo selector (no bloqueante)
+     * Establece si se debe cerrar la conexion tras enviar la respuesta. Solo
+     * se utiliza cuando el servidor funciona en modo selector (no bloqueante)
      * 
-     * @return bufer ByteBuffer
+     * @param cerrar : cierto si se debe cerrar la conexion
      * 
      */
-    public ByteBuffer getBuffer() {
-        return bufer;
+    public void setCerrar(boolean cerrar) {
+        this.cerrar = cerrar;
     }
 
     /**
-     * Devuelve cierto si y solo si se ha establecido una respuesta (valida)
-     * para el cliente. Solo se utiliza cuando el servidor funciona en modo
-     * selector (no bloqueante)
+     * Almacena el temporizador que vigila los plazos de la conexion. Solo se
+     * utiliza cuando el servidor funciona en modo selector (no bloqueante)
+     * 
+     * @param temporizador : Temporizador de la conexion
      * 
-     * @return cierto si se ha establecido una respuesta valida
      */
-    public boolean isSetRespuesta() {
-        return respuesta != null;
+    public void setTemporizador(Temporizador temporizador) {
+        this.temporizador = temporizador;
     }
 
     /**
-     * Comprueba si quedan datos por enviar al cliente. Solo se utiliza cuando
-     * el servidor funciona en modo selector (no bloqueante)
+     * Establece la fase de la conexion a la que corresponde el plazo
+     * programado. Solo se utiliza cuando el servidor funciona en modo selector
+     * (no bloqueante)
      * 
-     * @return cierto si quedan datos por enviar al cliente
+     * @param fase : Fase de la conexion
      * 
      */
-    public boolean quedaCuerpo() {
+    public void setFase(int fase) {
+        this.fase = fase;
+    }
 
-        // si hay una respuesta que devolver
-        if (isSetRespuesta()) {
+    /**
+     * Establece los bytes del cuerpo recibidos desde la ultima renovacion del
+     * plazo. Solo se utiliza cuando el servidor funciona en modo selector (no
+     * bloqueante)
+     * 
+     * @param progreso : Bytes recibidos
+     * 
+     */
+    public void setProgreso(long progreso) {
+        this.progreso = progreso;
+    }
 
-            return respuesta.length() > 0;
-        }
+    /**
+     * Establece el instante en el que llego el primer byte de la peticion en
+     * curso. Solo se utiliza cuando el servidor funciona en modo selector (no
+     * bloqueante)
+     * 
+     * @param inicio : Instante (System.nanoTime) del primer byte
+     * 
+     */
+    public void setInicio(long inicio) {
+        this.inicio = inicio;
+    }
 
-        // si no hay nada que devolver
-        else {
-            return false;
-        }
+    /**
+     * Devuelve cierto si y solo si se debe cerrar la conexion tras enviar la
+     * respuesta. Solo se utiliza cuando el servidor funciona en modo selector
+     * (no bloqueante)
+     * 
+     * @return cierto si se debe cerrar la conexion
+     * 
+     */
+    public boolean getCerrar() {
+        return cerrar;
+    }
+
+    /**
+     * Devuelve el temporizador que vigila los plazos de la conexion. Solo se
+     * utiliza cuando el servidor funciona en modo selector (no bloqueante)
+     * 
+     * @return Temporizador de la conexion
+     * 
+     */
+    public Temporizador getTemporizador() {
+        return temporizador;
+    }
+
+    /**
+     * Devuelve la fase de la conexion a la que corresponde el plazo
+     * programado. Solo se utiliza cuando el servidor funciona en modo selector
+     * (no bloqueante)
+     * 
+     * @return fase de la conexion
+     * 
+     */
+    public int getFase() {
+        return fase;
+    }
+
+    /**
+     * Devuelve los bytes del cuerpo recibidos desde la ultima renovacion del
+     * plazo. Solo se utiliza cuando el servidor funciona en modo selector (no
+     * bloqueante)
+     * 
+     * @return bytes recibidos
+     * 
+     */
+    public long getProgreso() {
+        return progreso;
+    }
 
+    /**
+     * Devuelve el instante en el que llego el primer byte de la peticion en
+     * curso. Solo se utiliza cuando el servidor funciona en modo selector (no
+     * bloqueante)
+     * 
+     * @return instante (System.nanoTime) del primer byte
+     * 
+     */
+    public long getInicio() {
+        return inicio;
     }
 
     /**
-     * Devuelve una cadena de texto de longitud maxima [max] correspondiente a
-     * parte del cuerpo de la respuesta. Solo se utiliza cuando el servidor
+     * Devuelve el analizador HTTP asociado. Solo se utiliza cuando el servidor
      * funciona en modo selector (no bloqueante)
      * 
-     * @param maxLong : Longitud maxima de la cadena a devolver
-     * @return Cadena de texto correspondiente a parte del cuerpo de la
-     *         respuesta
+     * @return Analizador HTTP
      * 
      */
-    public String getCuerpo(int maxLong) {
+    public HTTPParser<ByteBuffer> getAnalizador() {
+        return analizador;
+    }
 
-        String parteRespuesta = "";
+    /**
+     * Devuelve el decodificador de formularios asociado. Solo se utiliza
+     * cuando el servidor funciona en modo selector (no bloqueante)
+     * 
+     * @return Decodificador de formularios
+     * 
+     */
+    public DecodificadorFormulario getFormulario() {
+        return formulario;
+    }
 
-        // si queda contenido por devolver
-        if (quedaCuerpo()) {
+    /**
+     * Devuelve el bufer asociado. Solo se utiliza cuando el servidor funciona
+     * en modo selector (no bloqueante)
+     * 
+     * @return bufer ByteBuffer
+     * 
+     */
+    public ByteBuffer getBuffer() {
+        return bufer;
+    }
 
-            // y ademas su longitud no supera el limite [maxLong]
-            // -> devuelve todo su contenido
-            if (respuesta.length() <= maxLong) {
-                parteRespuesta = new String(respuesta);
-                respuesta = "";
-                return parteRespuesta;
-            }
-            // pero su longitud supera el limite [maxLong]
-            // -> devuelve una parte de su contenido
-            else {
-                parteRespuesta = respuesta.substring(0, maxLong);
-                respuesta = respuesta.substring(maxLong);
-                return parteRespuesta;
-            }
-        }
+    /**
+     * Devuelve la cola de respuestas pendientes de enviar al cliente. Solo se
+     * utiliza cuando el servidor funciona en modo selector (no bloqueante)
+     * 
+     * @return cola de respuestas para el cliente
+     * 
+     */
+    public ColaSalida getSalida() {
+        return salida;
+    }
 
-        // si no, devuelve error
-        return null;
+    /**
+     * Devuelve cierto si y solo si la conexion esta esperando a que terminen
+     * las escrituras en disco de su formulario. Solo se utiliza cuando el
+     * servidor funciona en modo selector (no bloqueante)
+     * 
+     * @return cierto si esta esperando al disco
+     * 
+     */
+    public boolean isEsperando() {
+        return esperando;
     }
 
     // METODOS COMUNES (ESTATICOS) A TODAS LAS IMPLEMENTACIONES
 
     /**
      * Sustituye una serie de caracteres problematicos en HTML (vocales con
-     * acento, apertura de exclamacion, ...)
+     * acento, apertura de exclamacion, ..., y los caracteres reservados '<',
+     * '>' y '&') por sus entidades HTML, en una sola pasada sobre el texto
      * 
      * @param texto : Cadena de texto que se quiere recodificar
      * @return Cadena de texto recodificada en formato html
      * 
      */
     public static String codificarHTML(String texto) {
-        texto = texto.replace("", "&ntilde;");
-        texto = texto.replace("", "&Ntilde;");
-        texto = texto.replace("", "&aacute;");
-        texto = texto.replace("", "&eacute;");
-        texto = texto.replace("", "&iacute;");
-        texto = texto.replace("", "&oacute;");
-        texto = texto.replace("", "&uacute;");
-        texto = texto.replace("", "&auml;");
-        texto = texto.replace("", "&euml;");
-        texto = texto.replace("", "&iuml;");
-        texto = texto.replace("", "&ouml;");
-        texto = texto.replace("", "&uuml;");
-        texto = texto.replace("", "&Aacute;");
-        texto = texto.replace("", "&Eacute;");
-        texto = texto.replace("", "&Iacute;");
-        texto = texto.replace("", "&Oacute;");
-        texto = texto.replace("", "&Uacute;");
-        texto = texto.replace("", "&Auml;");
-        texto = texto.replace("", "&Euml;");
-        texto = texto.replace("", "&Iuml;");
-        texto = texto.replace("", "&Ouml;");
-        texto = texto.replace("", "&Uuml;");
-        texto = texto.replace("", "&iexcl;");
-        texto = texto.replace("", "&iquest;");
-        texto = texto.replace("", "&raquo;");
-        texto = texto.replace("", "&laquo;");
-
-        return texto;
-    }
-
-    /**
-     * Metodo auxiliar que escribe en un fichero de nombre [nombre] el contenido
-     * [contenido]
-     * 
-     * @param nombre : Nombre del fichero
-     * @param contenido : Contenido que debe ser escrito en el fichero
-     * 
-     */
-    public static void escribeFichero(String nombre, String contenido) {
-
-        // crea un fichero vacio y sin nombre
-        File ruta = new File("");
-
-        // utiliza el fichero vacio para obtener la ruta completa
-        File fichero = new File(ruta.getAbsolutePath() + "/" + nombre);
-
-        PrintWriter escritor;
-        try {
-            escritor = new PrintWriter(fichero);
 
-            // sustituye caracteres especiales, evitando errores con el printf
-            contenido = contenido.replace("%", "%%");
+        int longitud = texto.length();
 
-            // escribe contenido en el fichero
-            escritor.printf(contenido);
-            escritor.flush();
-            escritor.close();
-        } catch (Exception e) {
-            System.err.println("ERROR: " + e.getMessage());
+        // buscar el primer caracter que haya que sustituir (si no hay
+        // ninguno, se devuelve el mismo texto sin copiarlo)
+        int i = 0;
+        while (i < longitud && entidad(texto.charAt(i)) == null) {
+            i++;
+        }
+        if (i == longitud) {
+            return texto;
+        }
+
+        // copiar los tramos sin sustituciones de una vez
+        StringBuilder resultado = new StringBuilder(longitud + longitud / 8);
+        int inicioTramo = 0;
+        for (; i < longitud; i++) {
+            String entidad = entidad(texto.charAt(i));
+            if (entidad != null) {
+                resultado.append(texto, inicioTramo, i).append(entidad);
+                inicioTramo = i + 1;
+            }
         }
+        resultado.append(texto, inicioTramo, longitud);
 
+        return resultado.toString();
+    }
+
+    /**
+     * Sustituye el fichero [destino] por el fichero [temporal] (que debe estar
+     * en el mismo directorio) con un renombrado atomico: quien abra el
+     * destino vera la version anterior completa o la nueva completa, nunca
+     * una a medias. Los escritores de un mismo fichero se serializan, y los
+     * de ficheros distintos no compiten entre si.
+     * 
+     * @param temporal : Fichero con la nueva version, ya escrito y cerrado
+     * @param destino : Fichero que se sustituye
+     * @throws IOException si no se puede renombrar
+     * 
+     */
+    public static void reemplazaFichero(File temporal, File destino)
+            throws IOException {
+
+        ReentrantLock cerrojo = cerrojosFicheros.cerrojo(destino);
+        cerrojo.lock();
+        try {
+            try {
+                Files.move(temporal.toPath(), destino.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // el sistema de ficheros no lo permite: renombrado normal
+                Files.move(temporal.toPath(), destino.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            // la respuesta guardada para el fichero ya no es valida, ni la
+            // resolucion de su ruta (quiza no existia)
+            cacheFicheros.invalida(destino);
+            cacheRutas.invalida(destino);
+        } finally {
+            cerrojo.unlock();
+        }
     }
 
     /**
@@ -316,8 +607,85 @@ public class Utiles {
     }
 
     /**
-     * Devuelve una respuesta HTTP completa a partir del codigo HTTP [codigo] y
-     * el contenido del fichero [fichero].
+     * Devuelve una respuesta HTTP completa a partir del codigo de error
+     * [codigo]. Las respuestas de los codigos conocidos estan precalculadas,
+     * por lo que no se genera ni se codifica ningun texto.
+     * 
+     * @param codigo : Codigo de error HTTP
+     * @return respuesta HTTP completa
+     * 
+     */
+    public static Respuesta generaRespuestaError(int codigo) {
+
+        int indice = indiceCodigo(codigo);
+
+        // si es un error conocido, se usa la respuesta precalculada
+        if (indice >= 0 && respuestasError[indice] != null) {
+            return new Respuesta(respuestasError[indice].duplicate(), null);
+        }
+
+        return new Respuesta(generaRespuesta(codigo));
+    }
+
+    /**
+     * Devuelve una respuesta HTTP a partir del codigo HTTP [codigo] cuyo
+     * cuerpo es la cadena [contenido]. La cabecera y el cuerpo se mantienen
+     * en buferes separados para enviarlos juntos con una unica escritura.
+     * 
+     * @param codigo : Codigo HTTP
+     * @param contenido : Cuerpo de la respuesta
+     * @return respuesta HTTP completa
+     * 
+     */
+    public static Respuesta generaRespuestaCuerpo(int codigo,
+            String contenido) {
+
+        byte[] cuerpo = contenido.getBytes();
+
+        return new Respuesta(
+                ByteBuffer.wrap(generaCabeceraBytes(codigo, cuerpo.length)),
+                ByteBuffer.wrap(cuerpo));
+    }
+
+    /**
+     * Devuelve una respuesta HTTP a partir del codigo HTTP [codigo] cuyo
+     * cuerpo es la cadena [contenido], comprimido con gzip al vuelo si el
+     * cliente lo admite [gzip] y el cuerpo es suficientemente largo. Se
+     * comprime con el nivel mas rapido, ya que cada cuerpo generado se
+     * comprime una sola vez.
+     * 
+     * @param codigo : Codigo HTTP
+     * @param contenido : Cuerpo de la respuesta
+     * @param gzip : Cierto si el cliente admite gzip (Accept-Encoding)
+     * @return respuesta HTTP completa
+     * 
+     */
+    public static Respuesta generaRespuestaCuerpo(int codigo,
+            String contenido, boolean gzip) {
+
+        byte[] cuerpo = contenido.getBytes();
+        byte[] cabeceras = cabecerasVary;
+
+        if (gzip && cuerpo.length >= MIN_COMPRESION) {
+            byte[] comprimido = CompresionGzip.comprime(
+                    ByteBuffer.wrap(cuerpo), Deflater.BEST_SPEED);
+            if (comprimido.length < cuerpo.length) {
+                cuerpo = comprimido;
+                cabeceras = cabecerasGzip;
+            }
+        }
+
+        return new Respuesta(
+                ByteBuffer.wrap(
+                        generaCabeceraBytes(codigo, cuerpo.length, cabeceras)),
+                ByteBuffer.wrap(cuerpo));
+    }
+
+    /**
+     * Devuelve una respuesta HTTP a partir del codigo HTTP [codigo] cuyo
+     * cuerpo es el contenido del fichero [fichero]. Solo la cabecera se
+     * genera en memoria: el cuerpo se envia tal cual (byte a byte) desde el
+     * fichero al cliente.
      * 
      * @param codigo : Codigo HTTP
      * @param fichero : Fichero cuyo contenido sera incluido en la respuesta
@@ -325,26 +693,166 @@ public class Utiles {
      * @return respuesta HTTP completa
      * 
      */
-    public static String generaRespuesta(int codigo, File fichero) {
+    public static Respuesta generaRespuesta(int codigo, File fichero) {
+        return generaRespuesta(codigo, fichero, sinCabeceras);
+    }
+
+    /**
+     * Devuelve una respuesta HTTP 200 (OK) con el contenido del fichero
+     * [fichero], que se envia desde disco, y los validadores de su version
+     * [version] (ETag y Last-Modified).
+     * 
+     * @param fichero : Fichero cuyo contenido sera incluido en la respuesta
+     *            HTTP
+     * @param version : Version actual del fichero
+     * @return respuesta HTTP completa
+     * 
+     */
+    public static Respuesta generaRespuesta(File fichero,
+            VersionFichero version) {
+        return generaRespuesta(200, fichero, version.getCabeceras());
+    }
+
+    /**
+     * Devuelve una respuesta HTTP 304 (Not Modified), sin cuerpo, con los
+     * validadores de la variante (original o comprimida) de la version
+     * [version] que ya tiene el cliente, segun su cabecera If-None-Match.
+     * 
+     * @param version : Version actual del fichero
+     * @param siNoCoincide : Valor de If-None-Match (o null)
+     * @return respuesta HTTP completa
+     * 
+     */
+    public static Respuesta generaRespuestaNoModificada(
+            VersionFichero version, String siNoCoincide) {
+        return new Respuesta(ByteBuffer.wrap(concatena(
+                ("HTTP/1.1 304 " + textoCodigo(304) + "\n").getBytes(),
+                version.getCabecerasNoModificada(siNoCoincide),
+                "\n".getBytes())), (ByteBuffer) null);
+    }
+
+    /**
+     * Devuelve una respuesta HTTP 416 (Range Not Satisfiable) para un fichero
+     * de [longitud] bytes, que indica al cliente su longitud.
+     * 
+     * @param longitud : Longitud del fichero
+     * @return respuesta HTTP completa
+     * 
+     */
+    public static Respuesta generaRespuestaRangoNoAtendible(long longitud) {
+
+        byte[] cuerpo = generaCuerpo(416, textoCodigo(416)).getBytes();
+        byte[] cabeceras = ("Content-Range: bytes */" + longitud + "\n")
+                .getBytes();
+
+        return new Respuesta(
+                ByteBuffer.wrap(
+                        generaCabeceraBytes(416, cuerpo.length, cabeceras)),
+                ByteBuffer.wrap(cuerpo));
+    }
+
+    /**
+     * Devuelve una respuesta HTTP 206 (Partial Content) con los rangos
+     * [rangos] del fichero [fichero], que se envian desde disco. Un solo
+     * rango se envia como cuerpo con la cabecera Content-Range; varios, como
+     * un cuerpo multipart/byteranges con una parte por rango.
+     * 
+     * @param fichero : Fichero solicitado
+     * @param version : Version actual del fichero
+     * @param rangos : Primer y ultimo byte (incluido) de cada rango, dentro
+     *            del fichero (al menos uno)
+     * @return respuesta HTTP completa
+     * 
+     */
+    public static Respuesta generaRespuestaParcial(File fichero,
+            VersionFichero version, long[][] rangos) {
         try {
-            Scanner lectorFich;
+            // el canal se cierra cuando se termina de enviar la respuesta
+            FileChannel canal = new FileInputStream(fichero).getChannel();
+            long longitud = version.getLongitud();
+
+            // un solo rango: el cuerpo es la region del fichero
+            if (rangos.length == 1) {
+                long[] rango = rangos[0];
+                byte[] cabeceras = concatena(version.getCabeceras(),
+                        ("Content-Range: bytes " + rango[0] + "-" + rango[1]
+                                + "/" + longitud + "\n").getBytes(),
+                        sinCabeceras);
+                return new Respuesta(
+                        ByteBuffer.wrap(generaCabeceraBytes(206,
+                                rango[1] - rango[0] + 1, cabeceras)),
+                        canal, rango[0], rango[1] - rango[0] + 1);
+            }
+
+            // varios rangos: cada parte lleva su propia cabecera, con un
+            // separador derivado de la version
+            String separador = "RANGOS_"
+                    + version.getEtiqueta().replace("\"", "");
+            byte[][] iniciosParte = new byte[rangos.length][];
+            byte[] finPartes = ("\r\n--" + separador + "--\r\n").getBytes();
+            long total = finPartes.length;
+            for (int i = 0; i < rangos.length; i++) {
+                iniciosParte[i] = ("\r\n--" + separador
+                        + "\r\nContent-Range: bytes " + rangos[i][0] + "-"
+                        + rangos[i][1] + "/" + longitud + "\r\n\r\n")
+                                .getBytes();
+                total += iniciosParte[i].length + rangos[i][1] - rangos[i][0]
+                        + 1;
+            }
 
-            lectorFich = new Scanner(fichero);
+            byte[] cabeceras = concatena(version.getCabeceras(),
+                    ("Content-Type: multipart/byteranges; boundary="
+                            + separador + "\n").getBytes(),
+                    sinCabeceras);
 
-            // lee el fichero linea a linea, por lo que se usa el
-            // constructor de cadenas para que el proceso sea mas
-            // eficiente
-            StringBuilder cuerpo = new StringBuilder();
-            while (lectorFich.hasNextLine()) {
-                cuerpo.append(lectorFich.nextLine() + "\n");
+            // la primera parte va junto a la cabecera de la respuesta, y las
+            // demas (que comparten el canal) se encadenan tras ella
+            Respuesta respuesta = new Respuesta(
+                    ByteBuffer.wrap(concatena(
+                            generaCabeceraBytes(206, total, cabeceras),
+                            iniciosParte[0], sinCabeceras)),
+                    canal, rangos[0][0], rangos[0][1] - rangos[0][0] + 1);
+            for (int i = 1; i < rangos.length; i++) {
+                respuesta.encadena(new Respuesta(
+                        ByteBuffer.wrap(iniciosParte[i]), canal, rangos[i][0],
+                        rangos[i][1] - rangos[i][0] + 1));
             }
-            lectorFich.close();
+            respuesta.encadena(new Respuesta(ByteBuffer.wrap(finPartes),
+                    (ByteBuffer) null));
 
-            return generaRespuesta(codigo, cuerpo.toString());
+            return respuesta;
 
         } catch (Exception e) {
             System.err.println("ERROR: " + e.getMessage());
-            return null;
+
+            // ERROR INTERNO DEL SERVIDOR (INTERNAL SERVER ERROR - 500)
+            return generaRespuestaError(500);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que devuelve una respuesta HTTP con codigo [codigo],
+     * las cabeceras adicionales [cabeceras] y el contenido del fichero
+     * [fichero] como cuerpo, que se envia desde disco.
+     * 
+     */
+    private static Respuesta generaRespuesta(int codigo, File fichero,
+            byte[] cabeceras) {
+        try {
+            // el canal se cierra cuando se termina de enviar la respuesta
+            FileChannel canal = new FileInputStream(fichero).getChannel();
+            long longitud = canal.size();
+
+            ByteBuffer cabecera = ByteBuffer
+                    .wrap(generaCabeceraBytes(codigo, longitud, cabeceras));
+
+            return new Respuesta(cabecera, canal, 0, longitud);
+
+        } catch (Exception e) {
+            System.err.println("ERROR: " + e.getMessage());
+
+            // ERROR INTERNO DEL SERVIDOR (INTERNAL SERVER ERROR - 500)
+            return generaRespuestaError(500);
         }
     }
 
@@ -360,15 +868,10 @@ public class Utiles {
      */
     public static String generaRespuesta(int codigo, String contenido) {
 
-        String textoCodigo = "";
         String cuerpo = "";
 
-        // se comienza a generar la respuesta
-        String respuesta = "HTTP/1.1 " + codigo + " ";
-
         // si se contesta con exito
         if (codigo == 200) {
-            textoCodigo = "OK";
 
             // y si se recibe un contenido
             if (contenido != null) {
@@ -378,31 +881,254 @@ public class Utiles {
         }
         // si se contesta con un error
         else {
-            if (codigo == 400) {
-                textoCodigo = "Bad Request";
-            } else if (codigo == 403) {
-                textoCodigo = "Forbidden";
-            } else if (codigo == 404) {
-                textoCodigo = "Not Found";
-            } else if (codigo == 500) {
-                textoCodigo = "Internal Server Error";
-            } else if (codigo == 501) {
-                textoCodigo = "Not Implemented";
-            }
             // el cuerpo se genera dinamicamente
-            cuerpo = generaCuerpo(codigo, textoCodigo);
+            cuerpo = generaCuerpo(codigo, textoCodigo(codigo));
         }
 
-        // se completa la respuesta con el equivalente textual del codigo HTTP
-        respuesta += textoCodigo + "\n";
-
-        respuesta += "Content-Length: " + cuerpo.length() + "\n";
-
-        respuesta += "\n";
+        // la longitud se expresa en bytes (no en caracteres) para que el
+        // cliente sepa donde termina la respuesta en conexiones persistentes
+        String respuesta = generaCabecera(codigo, cuerpo.getBytes().length);
 
         // si no se recibido ni generado un cuerpo, se aade la cadena vacia
         respuesta += cuerpo;
 
         return respuesta;
     }
+
+    /**
+     * Devuelve la linea de estado y las cabeceras de una respuesta HTTP con
+     * codigo [codigo] y un cuerpo de [longitud] bytes.
+     * 
+     * @param codigo : Codigo HTTP
+     * @param longitud : Longitud del cuerpo en bytes
+     * @return cabecera de la respuesta, terminada en una linea vacia
+     * 
+     */
+    public static String generaCabecera(int codigo, long longitud) {
+
+        // se genera la respuesta con el equivalente textual del codigo HTTP
+        String respuesta = "HTTP/1.1 " + codigo + " " + textoCodigo(codigo)
+                + "\n";
+
+        respuesta += "Content-Length: " + longitud + "\n";
+
+        respuesta += "\n";
+
+        return respuesta;
+    }
+
+    /**
+     * Devuelve, ya codificadas en bytes, la linea de estado y las cabeceras
+     * de una respuesta HTTP con codigo [codigo] y un cuerpo de [longitud]
+     * bytes. Equivale a generaCabecera, pero parte del comienzo precalculado
+     * y solo escribe los digitos de la longitud.
+     * 
+     * @param codigo : Codigo HTTP
+     * @param longitud : Longitud del cuerpo en bytes
+     * @return cabecera de la respuesta, terminada en una linea vacia
+     * 
+     */
+    public static byte[] generaCabeceraBytes(int codigo, long longitud) {
+        return generaCabeceraBytes(codigo, longitud, sinCabeceras);
+    }
+
+    /**
+     * Devuelve, ya codificadas en bytes, la linea de estado y las cabeceras
+     * de una respuesta HTTP con codigo [codigo] y un cuerpo de [longitud]
+     * bytes, seguidas de las cabeceras adicionales [cabeceras].
+     * 
+     * @param codigo : Codigo HTTP
+     * @param longitud : Longitud del cuerpo en bytes
+     * @param cabeceras : Cabeceras adicionales codificadas en bytes, cada una
+     *            terminada en fin de linea
+     * @return cabecera de la respuesta, terminada en una linea vacia
+     * 
+     */
+    public static byte[] generaCabeceraBytes(int codigo, long longitud,
+            byte[] cabeceras) {
+
+        int indice = indiceCodigo(codigo);
+
+        // los codigos desconocidos no tienen comienzo precalculado
+        if (indice < 0) {
+            String cabecera = generaCabecera(codigo, longitud);
+            return concatena(
+                    cabecera.substring(0, cabecera.length() - 1).getBytes(),
+                    cabeceras, "\n".getBytes());
+        }
+
+        byte[] inicio = iniciosCabecera[indice];
+
+        // contar los digitos de la longitud
+        int digitos = 1;
+        for (long resto = longitud / 10; resto > 0; resto /= 10) {
+            digitos++;
+        }
+
+        byte[] cabecera = new byte[inicio.length + digitos + 2
+                + cabeceras.length];
+        System.arraycopy(inicio, 0, cabecera, 0, inicio.length);
+
+        // escribir los digitos de derecha a izquierda
+        long resto = longitud;
+        for (int i = inicio.length + digitos - 1; i >= inicio.length; i--) {
+            cabecera[i] = (byte) ('0' + resto % 10);
+            resto /= 10;
+        }
+
+        cabecera[inicio.length + digitos] = '\n';
+        System.arraycopy(cabeceras, 0, cabecera, inicio.length + digitos + 1,
+                cabeceras.length);
+        cabecera[cabecera.length - 1] = '\n';
+
+        return cabecera;
+    }
+
+    /**
+     * Devuelve el equivalente textual del codigo HTTP [codigo].
+     * 
+     * @param codigo : Codigo HTTP
+     * @return texto asociado al codigo (cadena vacia si no se conoce)
+     * 
+     */
+    public static String textoCodigo(int codigo) {
+
+        String textoCodigo = "";
+
+        if (codigo == 200) {
+            textoCodigo = "OK";
+        } else if (codigo == 206) {
+            textoCodigo = "Partial Content";
+        } else if (codigo == 304) {
+            textoCodigo = "Not Modified";
+        } else if (codigo == 400) {
+            textoCodigo = "Bad Request";
+        } else if (codigo == 403) {
+            textoCodigo = "Forbidden";
+        } else if (codigo == 404) {
+            textoCodigo = "Not Found";
+        } else if (codigo == 408) {
+            textoCodigo = "Request Timeout";
+        } else if (codigo == 416) {
+            textoCodigo = "Range Not Satisfiable";
+        } else if (codigo == 429) {
+            textoCodigo = "Too Many Requests";
+        } else if (codigo == 500) {
+            textoCodigo = "Internal Server Error";
+        } else if (codigo == 501) {
+            textoCodigo = "Not Implemented";
+        } else if (codigo == 503) {
+            textoCodigo = "Service Unavailable";
+        }
+
+        return textoCodigo;
+    }
+
+    /**
+     * Metodo auxiliar que devuelve la concatenacion de los vectores [a], [b]
+     * y [c].
+     * 
+     */
+    private static byte[] concatena(byte[] a, byte[] b, byte[] c) {
+        byte[] resultado = new byte[a.length + b.length + c.length];
+        System.arraycopy(a, 0, resultado, 0, a.length);
+        System.arraycopy(b, 0, resultado, a.length, b.length);
+        System.arraycopy(c, 0, resultado, a.length + b.length, c.length);
+        return resultado;
+    }
+
+    /**
+     * Metodo auxiliar que devuelve la posicion del codigo [codigo] en
+     * [codigos], o -1 si no es un codigo conocido.
+     * 
+     */
+    private static int indiceCodigo(int codigo) {
+        for (int i = 0; i < codigos.length; i++) {
+            if (codigos[i] == codigo) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Metodo auxiliar que calcula el comienzo de la cabecera de cada codigo
+     * conocido.
+     * 
+     */
+    private static byte[][] generaIniciosCabecera() {
+        byte[][] inicios = new byte[codigos.length][];
+        for (int i = 0; i < codigos.length; i++) {
+            inicios[i] = ("HTTP/1.1 " + codigos[i] + " "
+                    + textoCodigo(codigos[i]) + "\nContent-Length: ")
+                            .getBytes();
+        }
+        return inicios;
+    }
+
+    /**
+     * Metodo auxiliar que calcula la respuesta completa de cada codigo de
+     * error conocido (los de exito y redireccion quedan a null).
+     * 
+     */
+    private static ByteBuffer[] generaRespuestasError() {
+        ByteBuffer[] respuestas = new ByteBuffer[codigos.length];
+        for (int i = 0; i < codigos.length; i++) {
+            if (codigos[i] >= 400) {
+                byte[] bytes = generaRespuesta(codigos[i]).getBytes();
+                ByteBuffer respuesta = ByteBuffer.allocateDirect(bytes.length);
+                respuesta.put(bytes).flip();
+                respuestas[i] = respuesta.asReadOnlyBuffer();
+            }
+        }
+        return respuestas;
+    }
+
+    /**
+     * Metodo auxiliar que devuelve la entidad HTML que sustituye al caracter
+     * [c] (o null si se deja igual).
+     * 
+     */
+    private static String entidad(char c) {
+        return c < entidades.length ? entidades[c] : null;
+    }
+
+    /**
+     * Metodo auxiliar que calcula la tabla de entidades HTML de
+     * codificarHTML.
+     * 
+     */
+    private static String[] generaEntidades() {
+        String[] entidades = new String[256];
+        entidades['<'] = "&lt;";
+        entidades['>'] = "&gt;";
+        entidades['&'] = "&amp;";
+        entidades[''] = "&ntilde;";
+        entidades[''] = "&Ntilde;";
+        entidades[''] = "&aacute;";
+        entidades[''] = "&eacute;";
+        entidades[''] = "&iacute;";
+        entidades[''] = "&oacute;";
+        entidades[''] = "&uacute;";
+        entidades[''] = "&auml;";
+        entidades[''] = "&euml;";
+        entidades[''] = "&iuml;";
+        entidades[''] = "&ouml;";
+        entidades[''] = "&uuml;";
+        entidades[''] = "&Aacute;";
+        entidades[''] = "&Eacute;";
+        entidades[''] = "&Iacute;";
+        entidades[''] = "&Oacute;";
+        entidades[''] = "&Uacute;";
+        entidades[''] = "&Auml;";
+        entidades[''] = "&Euml;";
+        entidades[''] = "&Iuml;";
+        entidades[''] = "&Ouml;";
+        entidades[''] = "&Uuml;";
+        entidades[''] = "&iexcl;";
+        entidades[''] = "&iquest;";
+        entidades[''] = "&raquo;";
+        entidades[''] = "&laquo;";
+        return entidades;
+    }
 }
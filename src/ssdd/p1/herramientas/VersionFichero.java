@@ -0,0 +1,237 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: VersionFichero.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Version de un fichero servido por GET y sus validadores HTTP.
+ */
+
+package ssdd.p1.herramientas;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Version de un fichero (fecha de modificacion y longitud) junto con sus
+ * validadores HTTP: la etiqueta ETag, derivada de la longitud y de la fecha
+ * de modificacion, y la fecha Last-Modified. Ambos se calculan una sola vez
+ * por version, ya codificados como cabeceras, y permiten responder a las
+ * peticiones condicionales (If-None-Match e If-Modified-Since) con 304 y
+ * decidir si se atiende una peticion parcial con If-Range.
+ *
+ * La variante comprimida con gzip de cada version es otra representacion del
+ * fichero, por lo que tiene su propia etiqueta (con el sufijo "-gz") y sus
+ * propias cabeceras; ambas indican con Vary que la respuesta depende de la
+ * cabecera Accept-Encoding de la peticion.
+ *
+ * Es inmutable, por lo que puede compartirse entre varios hilos.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class VersionFichero {
+
+    /** Formato de las fechas HTTP (RFC 1123, siempre en GMT) */
+    private static final DateTimeFormatter FORMATO_FECHA = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    /** Fecha de modificacion del fichero (en milisegundos) */
+    private final long modificado;
+
+    /** Longitud del fichero */
+    private final long longitud;
+
+    /** Etiqueta de la version, entre comillas */
+    private final String etiqueta;
+
+    /** Etiqueta de la variante comprimida con gzip, entre comillas */
+    private final String etiquetaGzip;
+
+    /** Fecha de modificacion en formato HTTP */
+    private final String fecha;
+
+    /**
+     * Cabeceras ETag, Last-Modified, Accept-Ranges y Vary, cada una terminada
+     * en fin de linea y codificadas en bytes
+     */
+    private final byte[] cabeceras;
+
+    /**
+     * Cabeceras de la variante comprimida con gzip: las mismas, con su
+     * etiqueta, y Content-Encoding
+     */
+    private final byte[] cabecerasGzip;
+
+    /**
+     * Metodo constructor de la clase
+     *
+     * @param modificado : Fecha de modificacion del fichero (en milisegundos)
+     * @param longitud : Longitud del fichero
+     *
+     */
+    public VersionFichero(long modificado, long longitud) {
+        this.modificado = modificado;
+        this.longitud = longitud;
+        String base = Long.toHexString(modificado) + "-"
+                + Long.toHexString(longitud);
+        this.etiqueta = "\"" + base + "\"";
+        this.etiquetaGzip = "\"" + base + "-gz\"";
+        this.fecha = FORMATO_FECHA.format(Instant.ofEpochMilli(modificado));
+        this.cabeceras = ("ETag: " + etiqueta + "\nLast-Modified: " + fecha
+                + "\nAccept-Ranges: bytes\nVary: Accept-Encoding\n")
+                        .getBytes();
+        this.cabecerasGzip = ("ETag: " + etiquetaGzip + "\nLast-Modified: "
+                + fecha + "\nAccept-Ranges: bytes\nVary: Accept-Encoding\n"
+                + "Content-Encoding: gzip\n").getBytes();
+    }
+
+    /**
+     * Devuelve la fecha de modificacion del fichero
+     *
+     * @return fecha de modificacion (en milisegundos)
+     *
+     */
+    public long getModificado() {
+        return modificado;
+    }
+
+    /**
+     * Devuelve la longitud del fichero
+     *
+     * @return longitud en bytes
+     *
+     */
+    public long getLongitud() {
+        return longitud;
+    }
+
+    /**
+     * Devuelve la etiqueta de la version (valor de la cabecera ETag)
+     *
+     * @return etiqueta entre comillas
+     *
+     */
+    public String getEtiqueta() {
+        return etiqueta;
+    }
+
+    /**
+     * Devuelve las cabeceras con los validadores de la version, cada una
+     * terminada en fin de linea
+     *
+     * @return cabeceras codificadas en bytes (no se deben modificar)
+     *
+     */
+    public byte[] getCabeceras() {
+        return cabeceras;
+    }
+
+    /**
+     * Devuelve las cabeceras de la variante comprimida con gzip (validadores
+     * y Content-Encoding), cada una terminada en fin de linea
+     *
+     * @return cabeceras codificadas en bytes (no se deben modificar)
+     *
+     */
+    public byte[] getCabecerasGzip() {
+        return cabecerasGzip;
+    }
+
+    /**
+     * Devuelve las cabeceras de la respuesta 304 a una peticion con la
+     * cabecera If-None-Match [siNoCoincide]: las de la variante comprimida si
+     * el cliente tiene esa variante, o las de la original en caso contrario
+     *
+     * @param siNoCoincide : Valor de If-None-Match (o null)
+     * @return cabeceras codificadas en bytes (no se deben modificar)
+     *
+     */
+    public byte[] getCabecerasNoModificada(String siNoCoincide) {
+        if (siNoCoincide != null && siNoCoincide.contains(etiquetaGzip)) {
+            return cabecerasGzip;
+        }
+        return cabeceras;
+    }
+
+    /**
+     * Comprueba si el cliente ya tiene esta version, segun las cabeceras
+     * If-None-Match e If-Modified-Since de su peticion (la segunda solo se
+     * tiene en cuenta si no se envia la primera)
+     *
+     * @param siNoCoincide : Valor de If-None-Match (o null)
+     * @param siModificadoDesde : Valor de If-Modified-Since (o null)
+     * @return cierto si y solo si se debe responder 304 (Not Modified)
+     *
+     */
+    public boolean noModificada(String siNoCoincide,
+            String siModificadoDesde) {
+
+        if (siNoCoincide != null) {
+            for (String etiquetaCliente : siNoCoincide.split(",")) {
+                if (coincide(etiquetaCliente)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // las fechas HTTP solo tienen precision de segundos
+        long fechaCliente = leeFecha(siModificadoDesde);
+        return fechaCliente >= 0 && modificado / 1000 <= fechaCliente / 1000;
+    }
+
+    /**
+     * Comprueba si el validador de la cabecera If-Range de una peticion
+     * parcial corresponde a esta version (si no, se envia el fichero
+     * completo)
+     *
+     * @param siRango : Valor de If-Range (o null)
+     * @return cierto si no hay validador o si corresponde a esta version
+     *
+     */
+    public boolean admiteRango(String siRango) {
+        if (siRango == null) {
+            return true;
+        } else if (siRango.startsWith("\"")) {
+            return siRango.equals(etiqueta);
+        } else {
+            return siRango.equals(fecha);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que compara una etiqueta enviada por el cliente con las
+     * de esta version (comparacion debil: se ignora el prefijo "W/")
+     *
+     */
+    private boolean coincide(String etiquetaCliente) {
+        etiquetaCliente = etiquetaCliente.trim();
+        if (etiquetaCliente.startsWith("W/")) {
+            etiquetaCliente = etiquetaCliente.substring(2);
+        }
+        return etiquetaCliente.equals("*") || etiquetaCliente.equals(etiqueta)
+                || etiquetaCliente.equals(etiquetaGzip);
+    }
+
+    /**
+     * Metodo auxiliar que interpreta una fecha HTTP
+     *
+     * @return fecha en milisegundos, o -1 si es null o no es valida
+     *
+     */
+    private static long leeFecha(String texto) {
+        if (texto == null) {
+            return -1;
+        }
+        try {
+            return Instant.from(FORMATO_FECHA.parse(texto.trim()))
+                    .toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: BancoServidor.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Pruebas de rendimiento de extremo a extremo del servidor web
+ *  (HTTP).
+ */
+
+package ssdd.p1.pruebas;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ssdd.p1.cliente.GeneradorCarga;
+
+/**
+ * Pruebas de rendimiento de extremo a extremo: el servidor completo en modo
+ * thread (-t), selector (-s) y asincrono (-a, con un hilo por procesador),
+ * cada uno en su propio proceso, bajo la carga de GeneradorCarga por la
+ * interfaz de bucle local (el fichero carga.txt que crean sus POST se borra
+ * al terminar). Las pruebas de las partes criticas del servidor por separado
+ * estan en el subproyecto jmh (BancoComponentes).
+ *
+ * Se debe lanzar desde el directorio pruebasPR1:
+ *
+ * <pre>
+ * cd pruebasPR1; java ssdd.p1.pruebas.BancoServidor [<filtro>]
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class BancoServidor {
+
+    /** Puerto de las pruebas de extremo a extremo */
+    private static final int PUERTO = 8765;
+
+    /** Carga de las pruebas de extremo a extremo (GeneradorCarga) */
+    private static final String[] CARGA = { "localhost",
+            String.valueOf(PUERTO), "2000", "10", "32", "10", "nio" };
+
+    /** Modos del servidor que se comparan de extremo a extremo */
+    private static final String[][] MODOS = { { "-t" }, { "-s" },
+            { "-a", String.valueOf(Runtime.getRuntime()
+                    .availableProcessors()) } };
+
+    public static void main(String[] args) {
+
+        String filtro = args.length > 0 ? args[0] : "";
+
+        try {
+            extremo(filtro);
+        } catch (Exception e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ejecuta las pruebas de extremo a extremo de los modos del servidor
+     * cuyo nombre contiene [filtro]
+     *
+     */
+    private static void extremo(String filtro) throws Exception {
+
+        String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+
+        for (String[] opciones : MODOS) {
+            String modo = String.join(" ", opciones);
+            if (!("servidor " + modo).contains(filtro)) {
+                continue;
+            }
+
+            System.out.println();
+            System.out.println("Servidor " + modo);
+
+            List<String> orden = new ArrayList<String>();
+            orden.add(java);
+            orden.add("-cp");
+            orden.add(System.getProperty("java.class.path"));
+            orden.add("ssdd.p1.servidor.Lanzador");
+            orden.addAll(Arrays.asList(opciones));
+            orden.add(String.valueOf(PUERTO));
+
+            Process servidor = new ProcessBuilder(orden)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            try {
+                esperaServidor();
+                GeneradorCarga.main(CARGA);
+            } finally {
+                servidor.destroy();
+                servidor.waitFor();
+            }
+        }
+
+        new File("carga.txt").delete();
+    }
+
+    /**
+     * Metodo auxiliar que espera (como mucho 10 segundos) a que el servidor
+     * acepte conexiones
+     *
+     */
+    private static void esperaServidor() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress("localhost", PUERTO));
+                socket.close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("El servidor no acepta conexiones");
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: PruebaAnalizadores.java
+ * TIEMPO: 2 horas
+ * DESCRIPCION: Comprobacion de los analizadores HTTP no bloqueantes.
+ */
+
+package ssdd.p1.pruebas;
+
+import java.nio.ByteBuffer;
+
+import ssdd.p1.herramientas.ByteLevelHTTPParser;
+import ssdd.p1.herramientas.HTTPParser;
+import ssdd.p1.herramientas.NonBlockingHTTPParser;
+
+/**
+ * Comprueba que NonBlockingHTTPParser y ByteLevelHTTPParser aceptan y
+ * rechazan las mismas peticiones, completas y partidas en dos lecturas por
+ * cada posicion posible, y dan el mismo resultado. Termina con estado 1 si
+ * encuentra alguna diferencia. (Su rendimiento se compara en el subproyecto
+ * jmh, en BancoAnalizadores, con las peticiones realistas de esta clase.)
+ *
+ * <pre>
+ * java ssdd.p1.pruebas.PruebaAnalizadores
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class PruebaAnalizadores {
+
+    /** Peticion GET tal y como la envia curl */
+    static final String GET_CURL = "GET /quijote1.txt HTTP/1.1\r\n"
+            + "Host: localhost:8000\r\n" + "User-Agent: curl/7.88.1\r\n"
+            + "Accept: */*\r\n\r\n";
+
+    /** Peticion GET tal y como la envia un navegador */
+    static final String GET_NAVEGADOR = "GET /quijote2.txt HTTP/1.1\r\n"
+            + "Host: localhost:8000\r\n" + "Connection: keep-alive\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) "
+            + "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 "
+            + "Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;"
+            + "q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: es-ES,es;q=0.9,en;q=0.8\r\n"
+            + "If-Modified-Since: Thu, 16 Mar 2017 10:00:00 GMT\r\n\r\n";
+
+    /** Peticion POST del formulario post_form.html */
+    static final String POST_FORMULARIO = "POST / HTTP/1.1\r\n"
+            + "Host: localhost:8000\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: 63\r\n\r\n"
+            + "fname=prueba.txt&content=En+un+lugar+de+la+Mancha%2C+de+cuyo+no";
+
+    /** Casos de aceptacion y rechazo */
+    static final String[] CASOS = { GET_CURL, GET_NAVEGADOR, POST_FORMULARIO,
+            "GET / HTTP/1.1\n\n", "GET / HTTP/1.1\r\n\r\n",
+            "\r\n\r\nGET /a HTTP/1.1\r\n\r\n", "  GET   /a   HTTP/1.1  \r\n\r\n",
+            "PUT /a HTTP/1.1\r\n\r\n", "GET /a HTTP/1.0\r\n\r\n",
+            "GET /a\r\n\r\n", "GET\r\n\r\n", "G-T /a HTTP/1.1\r\n\r\n",
+            "GET /a b HTTP/1.1\r\n\r\n", "GET /a HTTP/1.1 x\r\n\r\n",
+            "   \r\n\r\n", "GET /a HTTP/1.1\r\nConnection: close\r\n\r\n",
+            "GET /a HTTP/1.1\r\nConnection:  Close \r\n\r\n",
+            "GET /a HTTP/1.1\r\nConnection: keep-alive\r\n\r\n",
+            "POST /a HTTP/1.1\r\nContent-Length: 0\r\n\r\n",
+            "POST /a HTTP/1.1\r\nContent-Length: 3\r\n\r\nabcGET",
+            "POST /a HTTP/1.1\r\nContent-Length: x\r\n\r\n",
+            "POST /a HTTP/1.1\r\n  Content-Length:  2  \r\n\r\nab",
+            "GET /a HTTP/1.1\r\nX-Larga: " + repite('x', 3000) + "\r\n\r\n",
+            "GET /a HTTP/1.1\r\nHost: x\r\n", "GET /a HT",
+            "GET /a HTTP/1.1\r\nHOST:  a \r\nx\r\nhost:b\r\n\r\n" };
+
+    public static void main(String[] args) {
+
+        int fallos = compruebaCasos();
+        System.out.println("Casos: " + CASOS.length + " (completos y partidos)"
+                + "  Diferencias: " + fallos);
+
+        if (fallos > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Comprueba que ambos analizadores dan el mismo resultado en todos los
+     * casos, tanto recibiendo cada peticion de una vez como partida en dos
+     * lecturas.
+     *
+     * @return numero de diferencias encontradas
+     *
+     */
+    static int compruebaCasos() {
+
+        int diferencias = 0;
+
+        for (String caso : CASOS) {
+            byte[] bytes = caso.getBytes();
+
+            for (int corte = 0; corte <= bytes.length; corte++) {
+
+                // el analizador original no admite "\r\n" partido
+                if (corte > 0 && corte < bytes.length
+                        && bytes[corte - 1] == '\r' && bytes[corte] == '\n') {
+                    continue;
+                }
+
+                String a = resultado(new NonBlockingHTTPParser(), bytes, corte);
+                String b = resultado(new ByteLevelHTTPParser(), bytes, corte);
+
+                if (!a.equals(b)) {
+                    diferencias++;
+                    String texto = caso.replace("\r", "\\r").replace("\n",
+                            "\\n");
+                    System.out.println("DIFERENCIA (corte " + corte + "): "
+                            + texto.substring(0, Math.min(60, texto.length())));
+                    System.out.println("  NonBlocking: " + a);
+                    System.out.println("  ByteLevel:   " + b);
+                }
+            }
+        }
+        return diferencias;
+    }
+
+    /**
+     * Analiza [bytes] en dos lecturas partidas en [corte] y resume el
+     * resultado en una cadena.
+     *
+     */
+    static String resultado(HTTPParser<ByteBuffer> analizador, byte[] bytes,
+            int corte) {
+
+        ByteBuffer primera = ByteBuffer.wrap(bytes, 0, corte);
+        analizador.parseRequest(primera);
+
+        int sobrante = primera.remaining();
+        if (!analizador.isComplete() && !analizador.failed()) {
+            ByteBuffer segunda = ByteBuffer.wrap(bytes, corte,
+                    bytes.length - corte);
+            analizador.parseRequest(segunda);
+            sobrante = segunda.remaining();
+        }
+
+        if (analizador.failed()) {
+            return "400";
+        } else if (!analizador.isComplete()) {
+            return "incompleta";
+        }
+
+        String cuerpo = analizador.getBody() == null ? "-"
+                : new String(analizador.getBody().array());
+
+        return analizador.getMethod() + " " + analizador.getPath() + " "
+                + analizador.isKeepAlive() + " " + cuerpo + " sobran "
+                + sobrante + " host=" + analizador.getHeader("Host")
+                + " connection=" + analizador.getHeader("connection");
+    }
+
+    static String repite(char c, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
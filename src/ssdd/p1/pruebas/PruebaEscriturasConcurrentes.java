@@ -0,0 +1,212 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: PruebaEscriturasConcurrentes.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Prueba de carga de las escrituras concurrentes de ficheros.
+ */
+
+package ssdd.p1.pruebas;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ssdd.p1.herramientas.DecodificadorFormulario;
+
+/**
+ * Lanza [escritores] hilos que envian formularios (como los de
+ * post_form.html) a DecodificadorFormulario a la vez, primero cada uno sobre
+ * su propio fichero y despues todos sobre el mismo, mientras [lectores] hilos
+ * leen los ficheros sin parar. Muestra las escrituras por segundo de cada caso
+ * y comprueba que ningun lector ve nunca un fichero a medio escribir.
+ *
+ * Cada version de un fichero es un unico caracter repetido LONGITUD veces, por
+ * lo que una lectura es correcta si y solo si tiene esa longitud y todos sus
+ * bytes son iguales.
+ *
+ * <pre>
+ * java ssdd.p1.pruebas.PruebaEscriturasConcurrentes [<escritores>] [<escrituras por hilo>] [<lectores>]
+ * </pre>
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class PruebaEscriturasConcurrentes {
+
+    /** Longitud del contenido de cada version de un fichero */
+    static final int LONGITUD = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+
+        int escritores = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int escrituras = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int lectores = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        File directorio = Files.createTempDirectory("escrituras").toFile();
+
+        try {
+            for (int ronda = 0; ronda < 2; ronda++) {
+                // la primera ronda sirve de calentamiento
+                boolean mostrar = ronda == 1;
+                prueba("Ficheros distintos", directorio, escritores,
+                        escrituras, lectores, false, mostrar);
+                prueba("Mismo fichero", directorio, escritores, escrituras,
+                        lectores, true, mostrar);
+            }
+        } finally {
+            for (File fichero : directorio.listFiles()) {
+                fichero.delete();
+            }
+            directorio.delete();
+        }
+    }
+
+    /**
+     * Ejecuta un caso de la prueba y muestra su resultado
+     *
+     * @param mismoFichero : Cierto si todos los escritores usan el mismo
+     *            fichero
+     *
+     */
+    static void prueba(String nombre, final File directorio,
+            final int escritores, final int escrituras, int lectores,
+            final boolean mismoFichero, boolean mostrar) throws Exception {
+
+        final CountDownLatch salida = new CountDownLatch(1);
+        final AtomicLong fallos = new AtomicLong();
+        final AtomicLong lecturas = new AtomicLong();
+        final AtomicLong lecturasErroneas = new AtomicLong();
+        final int numFicheros = mismoFichero ? 1 : escritores;
+
+        // crear una primera version de cada fichero
+        for (int i = 0; i < numFicheros; i++) {
+            envia(new DecodificadorFormulario(directorio), "f" + i + ".txt",
+                    'a');
+        }
+
+        Thread[] hilos = new Thread[escritores];
+        for (int i = 0; i < escritores; i++) {
+            final String fichero = "f" + (mismoFichero ? 0 : i) + ".txt";
+            final char letra = (char) ('a' + i % 26);
+            hilos[i] = new Thread() {
+                @Override
+                public void run() {
+                    DecodificadorFormulario formulario;
+                    formulario = new DecodificadorFormulario(directorio);
+                    try {
+                        salida.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < escrituras; j++) {
+                        if (envia(formulario, fichero, letra) != 200) {
+                            fallos.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            hilos[i].start();
+        }
+
+        final AtomicBoolean terminar = new AtomicBoolean();
+        Thread[] hilosLectores = new Thread[lectores];
+        for (int i = 0; i < lectores; i++) {
+            final int primero = i;
+            hilosLectores[i] = new Thread() {
+                @Override
+                public void run() {
+                    int siguiente = primero;
+                    while (!terminar.get()) {
+                        File fichero = new File(directorio,
+                                "f" + siguiente % numFicheros + ".txt");
+                        siguiente++;
+                        if (!completo(fichero)) {
+                            lecturasErroneas.incrementAndGet();
+                        }
+                        lecturas.incrementAndGet();
+                    }
+                }
+            };
+            hilosLectores[i].start();
+        }
+
+        long inicio = System.nanoTime();
+        salida.countDown();
+        for (Thread hilo : hilos) {
+            hilo.join();
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+
+        terminar.set(true);
+        for (Thread hilo : hilosLectores) {
+            hilo.join();
+        }
+
+        if (mostrar) {
+            System.out.printf(
+                    "%-20s %3d escritores: %8.0f escrituras/s  "
+                            + "fallos: %d  lecturas: %d  incompletas: %d%n",
+                    nombre, escritores, escritores * escrituras / segundos,
+                    fallos.get(), lecturas.get(), lecturasErroneas.get());
+        }
+    }
+
+    /**
+     * Envia al decodificador un formulario que escribe en [fichero] el
+     * caracter [letra] repetido LONGITUD veces, en fragmentos como los que
+     * llegarian por la red
+     *
+     * @return codigo HTTP del resultado
+     *
+     */
+    static int envia(DecodificadorFormulario formulario, String fichero,
+            char letra) {
+
+        byte[] cabecera = ("fname=" + fichero + "&content=").getBytes();
+        ByteBuffer fragmento = ByteBuffer.allocate(4096);
+
+        formulario.inicia("POST", cabecera.length + LONGITUD);
+        formulario.recibe(ByteBuffer.wrap(cabecera));
+
+        for (int enviados = 0; enviados < LONGITUD;) {
+            fragmento.clear();
+            while (fragmento.hasRemaining() && enviados < LONGITUD) {
+                fragmento.put((byte) letra);
+                enviados++;
+            }
+            fragmento.flip();
+            formulario.recibe(fragmento);
+        }
+
+        formulario.termina();
+        return formulario.getCodigo();
+    }
+
+    /**
+     * Devuelve cierto si y solo si el fichero [fichero] contiene una version
+     * completa
+     *
+     */
+    static boolean completo(File fichero) {
+        byte[] datos;
+        try {
+            datos = Files.readAllBytes(fichero.toPath());
+        } catch (IOException e) {
+            return false;
+        }
+        if (datos.length != LONGITUD) {
+            return false;
+        }
+        for (byte b : datos) {
+            if (b != datos[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,15 +3,24 @@
  * NIA: 643821 / 535621
  * FICHERO: Lanzador.java
  * TIEMPO: 30 minutos
- * DESCRIPCION: Lanzador de un servidor web (HTTP) con dos implementaciones:
- *  una usando hilos y otra utilizando un Selector.
+ * DESCRIPCION: Lanzador de un servidor web (HTTP) con varias implementaciones:
+ *  usando hilos (uno por cliente, del sistema o virtual, o un pool acotado),
+ *  utilizando un Selector, utilizando varios Selectores (multi-reactor,
+ *  con un aceptador comun o con SO_REUSEPORT) o utilizando canales
+ *  asincronos (NIO.2).
  */
 
 package ssdd.p1.servidor;
 
+import java.util.Arrays;
+
+import ssdd.p1.herramientas.Utiles;
+
 /**
- * Lanzador de un servidor web (HTTP) con dos implementaciones: una usando hilos
- * y otra utilizando un Selector.
+ * Lanzador de un servidor web (HTTP) con varias implementaciones: usando hilos
+ * (uno por cliente, del sistema o virtual, o un pool acotado), utilizando un
+ * Selector, utilizando varios Selectores o utilizando canales asincronos.
+ * Opcionalmente limita la admision de conexiones (por defecto no se limita).
  * 
  * @author Juan Vela, Marta Frias
  *
@@ -23,53 +32,177 @@ public class Lanzador {
      * 
      */
     private static void uso() {
-        System.out.println("Uso: <modo> <puerto>");
+        System.out.println("Uso: [-l <tasa> <rafaga> <max>] <modo> [<n>] "
+                + "[<cola>] <puerto>");
+        System.out.println("-l : admitir <tasa> conexiones por segundo de "
+                + "cada cliente (con rafagas de <rafaga>) y <max> conexiones "
+                + "abiertas a la vez (0: sin limite; por defecto no se "
+                + "limita)");
         System.out.println("modo:");
         System.out.println("-t : usando threads");
+        System.out.println("-p <n> <cola> : usando <n> threads y una cola de "
+                + "<cola> clientes en espera");
+        System.out.println("-v : usando threads virtuales (Java 21)");
         System.out.println("-s : usando un selector");
+        System.out.println("-m <n> : usando un aceptador y <n> selectores");
+        System.out.println("-r <n> : usando <n> selectores, cada uno con su "
+                + "propio socket servidor (SO_REUSEPORT)");
+        System.out.println("-a <n> : usando canales asincronos (NIO.2) y un "
+                + "grupo de <n> threads");
+    }
+
+    /**
+     * Configura el control de admision con los limites de la opcion -l
+     * (args[1] a args[3]).
+     * 
+     * @return cierto si y solo si los limites son validos
+     * 
+     */
+    private static boolean configuraAdmision(String[] args) {
+
+        if (args.length < 4) {
+            System.err.println("ERROR: Numero de parametros incorrecto.");
+            return false;
+        }
+
+        try {
+            int tasa = Integer.parseInt(args[1]);
+            int rafaga = Integer.parseInt(args[2]);
+            int max = Integer.parseInt(args[3]);
+            if (tasa < 0 || rafaga < 0 || max < 0) {
+                System.err.println("ERROR: Limites de admision no validos.");
+                return false;
+            }
+
+            Utiles.admision.configura(tasa, rafaga, max);
+            System.out.println("Control de admision: "
+                    + (tasa > 0 ? tasa + " conexiones/s por cliente "
+                            + "(rafagas de " + rafaga + ")"
+                            : "sin limite por cliente")
+                    + ", " + (max > 0 ? max + " conexiones abiertas"
+                            : "sin limite de conexiones abiertas"));
+            return true;
+
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: Limites de admision no validos.");
+            return false;
+        }
     }
 
     /**
      * En funcion de los parametros introducidos, se inicia una u otra version
-     * del servidor HTTP (hilos o selector). Si surge algun error se informa de
+     * del servidor HTTP (hilos, pool de hilos, hilos virtuales, selector,
+     * multi-selector, multi-selector con SO_REUSEPORT o asincrono). Si surge algun error se informa de
      * ello por pantalla, adjuntando unas breves instrucciones de uso.
      * 
      */
     public static void main(String[] args) {
 
+        // limites de admision (opcionales, delante del modo)
+        if (args.length > 0 && args[0].equals("-l")) {
+            if (!configuraAdmision(args)) {
+                uso();
+                return;
+            }
+            args = Arrays.copyOfRange(args, 4, args.length);
+        }
+
         // si se recibe el numero adecuado de parametros
-        if (args.length == 2) {
+        if (args.length >= 2 && args.length <= 4) {
 
             try {
 
                 // obtener el puerto en el que debe escuchar el servidor
-                int puerto = Integer.parseInt(args[1]);
+                // (siempre es el ultimo parametro)
+                int puerto = Integer.parseInt(args[args.length - 1]);
 
                 // determinar el modo de funcionamiento del servidor:
 
                 // con un hilo por cada cliente
-                if (args[0].equals("-t")) {
+                if (args[0].equals("-t") && args.length == 2) {
                     System.out.println("Iniciando servidor en modo thread");
                     ServidorHilosLanzador.iniciar(puerto);
                 }
+                // con un numero fijo de hilos y una cola acotada
+                else if (args[0].equals("-p") && args.length == 4) {
+                    int hilos = Integer.parseInt(args[1]);
+                    int cola = Integer.parseInt(args[2]);
+                    if (hilos > 0 && cola > 0) {
+                        System.out.println("Iniciando servidor en modo pool "
+                                + "con " + hilos + " threads y cola de "
+                                + cola);
+                        ServidorHilosLanzador.iniciar(puerto, hilos, cola);
+                    } else {
+                        System.err.println(
+                                "ERROR: Tamano del pool o de la cola no valido.");
+                        uso();
+                    }
+                }
+                // con un hilo virtual por cada cliente
+                else if (args[0].equals("-v") && args.length == 2) {
+                    System.out.println(
+                            "Iniciando servidor en modo thread virtual");
+                    ServidorHilosLanzador.iniciarVirtual(puerto);
+                }
                 // con un selector sobre todos los clientes
-                else if (args[0].equals("-s")) {
+                else if (args[0].equals("-s") && args.length == 2) {
                     System.out.println("Iniciando servidor en modo selector");
                     ServidorSelector.iniciar(puerto);
                 }
+                // con un aceptador y varios selectores (reactores)
+                else if (args[0].equals("-m") && args.length == 3) {
+                    int reactores = Integer.parseInt(args[1]);
+                    if (reactores > 0) {
+                        System.out.println("Iniciando servidor en modo "
+                                + "multi-selector con " + reactores
+                                + " reactores");
+                        ServidorSelector.iniciar(puerto, reactores);
+                    } else {
+                        System.err.println(
+                                "ERROR: Numero de reactores no valido.");
+                        uso();
+                    }
+                }
+                // con varios selectores que aceptan cada uno a sus clientes
+                else if (args[0].equals("-r") && args.length == 3) {
+                    int reactores = Integer.parseInt(args[1]);
+                    if (reactores > 0) {
+                        System.out.println("Iniciando servidor en modo "
+                                + "reuse-port con " + reactores
+                                + " reactores");
+                        ServidorSelector.iniciarReusePort(puerto, reactores);
+                    } else {
+                        System.err.println(
+                                "ERROR: Numero de reactores no valido.");
+                        uso();
+                    }
+                }
+                // con canales asincronos atendidos por un grupo de hilos
+                else if (args[0].equals("-a") && args.length == 3) {
+                    int hilos = Integer.parseInt(args[1]);
+                    if (hilos > 0) {
+                        System.out.println("Iniciando servidor en modo "
+                                + "asincrono con " + hilos + " threads");
+                        ServidorAsincrono.iniciar(puerto, hilos);
+                    } else {
+                        System.err.println(
+                                "ERROR: Numero de threads no valido.");
+                        uso();
+                    }
+                }
                 // error en cualquier otro caso
                 else {
                     System.err.println("ERROR: Opcion no valida.");
                     uso();
                 }
             }
-            // si el puerto no es un numero
+            // si el puerto (o algun otro parametro numerico) no es un numero
             catch (NumberFormatException e) {
                 System.err.println("ERROR: El puerto no es valido.");
                 uso();
             }
         }
-        // si se introducen mas o menos de dos parametros
+        // si se introduce un numero de parametros incorrecto
         else {
             System.err.println("ERROR: Numero de parametros incorrecto.");
             uso();
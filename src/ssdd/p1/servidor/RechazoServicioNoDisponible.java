@@ -0,0 +1,82 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: RechazoServicioNoDisponible.java
+ * TIEMPO: 30 minutos
+ * DESCRIPCION: Politica de rechazo del pool de hilos del servidor web (HTTP).
+ */
+
+package ssdd.p1.servidor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ssdd.p1.herramientas.Respuesta;
+import ssdd.p1.herramientas.Utiles;
+
+/**
+ * Politica de rechazo que se aplica cuando todos los hilos del pool estan
+ * ocupados y su cola de espera esta llena: se responde al cliente con un 503
+ * (Service Unavailable) y se cierra la conexion, sin llegar a leer la
+ * peticion.
+ * 
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class RechazoServicioNoDisponible implements RejectedExecutionHandler {
+
+    /** Numero de clientes rechazados desde que se inicio el servidor */
+    private final AtomicLong rechazados = new AtomicLong();
+
+    /**
+     * Metodo que se ejecuta (en el hilo aceptador) cuando el pool no puede
+     * atender a un nuevo cliente.
+     * 
+     */
+    @Override
+    public void rejectedExecution(Runnable tarea, ThreadPoolExecutor pool) {
+
+        rechazados.incrementAndGet();
+
+        // solo se sabe contestar a las tareas que atienden clientes HTTP
+        if (tarea instanceof ServidorHilosEjecutable) {
+
+            Socket cliente = ((ServidorHilosEjecutable) tarea).getCliente();
+
+            try {
+                // SERVICIO NO DISPONIBLE (SERVICE UNAVAILABLE - 503)
+                OutputStream salidaCliente = cliente.getOutputStream();
+                Respuesta respuesta = Utiles.generaRespuestaError(503);
+                respuesta.escribe(Channels.newChannel(salidaCliente));
+                salidaCliente.flush();
+                Utiles.metricas.respuesta(respuesta, true);
+            } catch (IOException e) {
+                System.err.println("ERROR: " + e.getMessage());
+            } finally {
+                // el cliente ya se habia admitido
+                Utiles.admision.libera();
+                try {
+                    cliente.close();
+                } catch (IOException e) {
+                    System.err.println("ERROR: Fallo cerrando conexion. "
+                            + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Devuelve el numero de clientes rechazados
+     * 
+     * @return numero de clientes rechazados
+     * 
+     */
+    public long getRechazados() {
+        return rechazados.get();
+    }
+}
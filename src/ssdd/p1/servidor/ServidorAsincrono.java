@@ -0,0 +1,933 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: ServidorAsincrono.java
+ * TIEMPO: 6 horas
+ * DESCRIPCION: Servidor web (HTTP) usando canales asincronos (NIO.2) y un
+ *  grupo de hilos de tamano fijo (proactor).
+ */
+
+package ssdd.p1.servidor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ssdd.p1.herramientas.ByteLevelHTTPParser;
+import ssdd.p1.herramientas.ColaSalida;
+import ssdd.p1.herramientas.ControlAdmision;
+import ssdd.p1.herramientas.DecodificadorFormulario;
+import ssdd.p1.herramientas.HTTPParser;
+import ssdd.p1.herramientas.Respuesta;
+import ssdd.p1.herramientas.RuedaTemporizadores.Temporizador;
+import ssdd.p1.herramientas.Utiles;
+
+/**
+ * Servidor HTTP sencillo utilizando canales asincronos (NIO.2). En lugar de
+ * esperar a que un canal este preparado (selector), se inician las lecturas y
+ * escrituras y el sistema avisa cuando terminan: los manejadores de
+ * finalizacion (CompletionHandler) se ejecutan en los hilos de un grupo de
+ * canales de tamano fijo, que atiende a todas las conexiones.
+ *
+ * Cada conexion tiene como mucho una lectura y una escritura en curso, cuyos
+ * manejadores pueden ejecutarse a la vez en hilos distintos, por lo que todo
+ * su estado se protege con el cerrojo de la propia conexion. Las peticiones
+ * se analizan y se responden igual que en el modo selector: mismo analizador,
+ * misma cola de salida, mismas escrituras en disco fuera de los hilos del
+ * grupo y mismos plazos, vigilados por un VigilantePlazos.
+ *
+ * Los canales asincronos no admiten FileChannel.transferTo, por lo que las
+ * respuestas se copian en un bufer de envio por conexion (del pool comun)
+ * antes de escribirlas.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class ServidorAsincrono extends ServidorHTTP {
+
+    /**
+     * Estado de una conexion: el de su peticion y sus respuestas (igual que
+     * en el modo selector) y el de sus operaciones asincronas
+     *
+     */
+    private static class Conexion {
+
+        /** Canal asociado al cliente */
+        AsynchronousSocketChannel canal;
+
+        /** Analizador, formulario, bufer de lectura, cola de salida y plazos */
+        Utiles util;
+
+        /** Bufer con lo que se esta enviando (o null) */
+        ByteBuffer envio;
+
+        /** Cierto si hay una lectura en curso (posee el bufer de lectura) */
+        boolean leyendo;
+
+        /** Cierto si hay una escritura en curso (posee el bufer de envio) */
+        boolean escribiendo;
+
+        /** Cierto si ya se ha cerrado la conexion */
+        boolean cerrada;
+
+        /** Instante (en milisegundos) en el que vence el plazo actual */
+        long vencimiento;
+    }
+
+    /**
+     * Canal en memoria que copia en un bufer lo que le cabe de lo que se
+     * escribe en el, para volcar la cola de salida en el bufer de envio
+     *
+     */
+    private static class Volcado implements WritableByteChannel {
+
+        /** Bufer en el que se copia (en modo escritura) */
+        private final ByteBuffer destino;
+
+        /**
+         * Metodo constructor de la clase
+         *
+         * @param destino : Bufer en el que se copia
+         *
+         */
+        Volcado(ByteBuffer destino) {
+            this.destino = destino;
+        }
+
+        @Override
+        public int write(ByteBuffer origen) {
+            int copiados = Math.min(origen.remaining(), destino.remaining());
+            if (copiados == origen.remaining()) {
+                destino.put(origen);
+            } else {
+                ByteBuffer parte = origen.duplicate();
+                parte.limit(parte.position() + copiados);
+                destino.put(parte);
+                origen.position(origen.position() + copiados);
+            }
+            return copiados;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Resolucion (en milisegundos) con la que se vigilan los plazos de las
+     * conexiones
+     *
+     */
+    private static final long RESOLUCION_PLAZOS = 250;
+
+    /**
+     * Numero de ranuras de la rueda de temporizadores del vigilante
+     *
+     */
+    private static final int RANURAS_PLAZOS = 128;
+
+    /**
+     * Tiempo (en milisegundos) que se espera a que el cliente reciba la
+     * respuesta 408 antes de cerrar la conexion de todas formas
+     *
+     */
+    private static final long PLAZO_CIERRE = 2000;
+
+    /**
+     * Tamano (en bytes) de los buferes de lectura que se toman del pool
+     *
+     */
+    private static final int TAMANO_BUFER = 4096;
+
+    /**
+     * Tamano (en bytes) de los buferes de envio que se toman del pool
+     *
+     */
+    private static final int TAMANO_ENVIO = 64 * 1024;
+
+    /**
+     * Tamano (en bytes) del bufer con el que se envia la respuesta
+     * precalculada a un cliente no admitido
+     *
+     */
+    private static final int TAMANO_RECHAZO = 512;
+
+    /**
+     * Bytes en memoria de las respuestas pendientes de enviar a un cliente a
+     * partir de los que se deja de leer sus peticiones
+     *
+     */
+    private static final int MAX_BYTES_SALIDA = 256 * 1024;
+
+    /**
+     * Numero de respuestas pendientes de enviar a un cliente a partir del
+     * que se deja de leer sus peticiones
+     *
+     */
+    private static final int MAX_RESPUESTAS_SALIDA = 16;
+
+    /**
+     * Ejecutor de las acciones de los plazos vencidos: el vigilante las
+     * ejecuta con su cerrojo tomado, por lo que no pueden tomar el de una
+     * conexion (cuyos manejadores programan los plazos con el suyo tomado)
+     *
+     */
+    private static final ExecutorService vencimientos = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable tarea) {
+                    Thread hilo = new Thread(tarea, "vencimientos");
+                    hilo.setDaemon(true);
+                    return hilo;
+                }
+            });
+
+    /** Canal servidor, asociado al grupo de hilos */
+    private final AsynchronousServerSocketChannel servidor;
+
+    /** Vigilante de los plazos de todas las conexiones */
+    private final VigilantePlazos vigilante;
+
+    /** Manejador de la aceptacion de un nuevo cliente */
+    private final CompletionHandler<AsynchronousSocketChannel, Void> aceptado;
+
+    /** Manejador de la finalizacion de una lectura */
+    private final CompletionHandler<Integer, Conexion> leido;
+
+    /** Manejador de la finalizacion de una escritura */
+    private final CompletionHandler<Integer, Conexion> escrito;
+
+    /**
+     * Metodo constructor de la clase. Crea el canal servidor en el puerto
+     * [puerto], asociado al grupo [grupo], sin empezar a aceptar clientes.
+     *
+     */
+    private ServidorAsincrono(AsynchronousChannelGroup grupo, int puerto)
+            throws IOException {
+
+        servidor = AsynchronousServerSocketChannel.open(grupo);
+        servidor.bind(new InetSocketAddress(puerto));
+
+        vigilante = new VigilantePlazos(RESOLUCION_PLAZOS, RANURAS_PLAZOS);
+
+        aceptado = new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel cliente,
+                    Void nada) {
+
+                // seguir aceptando mientras se registra este cliente
+                aceptaSiguiente();
+                if (admite(cliente)) {
+                    registra(cliente);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void nada) {
+                if (servidor.isOpen()) {
+                    System.err.println("ERROR: Fallo aceptando nueva conexion");
+                    e.printStackTrace();
+                    aceptaSiguiente();
+                }
+            }
+        };
+
+        leido = new CompletionHandler<Integer, Conexion>() {
+            @Override
+            public void completed(Integer leidos, Conexion conexion) {
+                synchronized (conexion) {
+                    haLeido(conexion, leidos);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Conexion conexion) {
+                synchronized (conexion) {
+                    conexion.leyendo = false;
+                    if (!conexion.cerrada) {
+                        System.err.println("ERROR: " + e.getMessage());
+                    }
+                    cierra(conexion);
+                }
+            }
+        };
+
+        escrito = new CompletionHandler<Integer, Conexion>() {
+            @Override
+            public void completed(Integer escritos, Conexion conexion) {
+                synchronized (conexion) {
+                    haEscrito(conexion);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Conexion conexion) {
+                synchronized (conexion) {
+                    conexion.escribiendo = false;
+                    if (!conexion.cerrada) {
+                        System.err.println("ERROR: " + e.getMessage());
+                    }
+                    cierra(conexion);
+                }
+            }
+        };
+    }
+
+    /**
+     * Metodo que permite iniciar un servidor HTTP cuyo funcionamiento se basa
+     * en canales asincronos atendidos por un grupo de [numHilos] hilos
+     *
+     * @param puerto : Numero de puerto en el que el servidor debe permanecer a
+     *            la escucha de nuevas conexiones
+     * @param numHilos : Numero de hilos del grupo de canales
+     *
+     */
+    public static void iniciar(int puerto, int numHilos) {
+
+        try {
+
+            // crear el grupo de hilos que ejecutan los manejadores
+            AsynchronousChannelGroup grupo = AsynchronousChannelGroup
+                    .withFixedThreadPool(numHilos, new ThreadFactory() {
+                        private final AtomicInteger contador = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable tarea) {
+                            return new Thread(tarea,
+                                    "asincrono-" + contador.getAndIncrement());
+                        }
+                    });
+
+            // crear el servidor y empezar a aceptar clientes (en los hilos
+            // del grupo)
+            ServidorAsincrono servidor = new ServidorAsincrono(grupo, puerto);
+            servidor.aceptaSiguiente();
+
+            // esperar a que termine el grupo
+            grupo.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Metodo auxiliar que inicia la aceptacion del siguiente cliente
+     *
+     */
+    private void aceptaSiguiente() {
+        servidor.accept(null, aceptado);
+    }
+
+    /**
+     * Metodo auxiliar que consulta el control de admision para un cliente
+     * recien aceptado. Si no se admite, le envia el rechazo (con una
+     * escritura asincrona) y al terminar programa el cierre de la conexion.
+     *
+     * @param cliente : Canal asociado al cliente
+     * @return cierto si y solo si se admite al cliente
+     *
+     */
+    private boolean admite(final AsynchronousSocketChannel cliente) {
+
+        int rechazo;
+        try {
+            rechazo = Utiles.admision.admite(
+                    ((InetSocketAddress) cliente.getRemoteAddress())
+                            .getAddress());
+        } catch (IOException e) {
+            // el cliente ya se ha desconectado
+            cierraConexion(cliente);
+            return false;
+        }
+        if (rechazo == ControlAdmision.ADMITIDA) {
+            return true;
+        }
+
+        // la respuesta precalculada cabe entera en un bufer pequeno
+        ByteBuffer bufer = ByteBuffer.allocate(TAMANO_RECHAZO);
+        try {
+            rechaza(rechazo, new Volcado(bufer));
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+        bufer.flip();
+
+        cliente.write(bufer, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer escritos, Void nada) {
+                try {
+                    cliente.shutdownOutput();
+                    cierraRechazado(cliente);
+                } catch (IOException e) {
+                    cierraConexion(cliente);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void nada) {
+                cierraConexion(cliente);
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Metodo auxiliar que prepara el estado de un cliente recien aceptado e
+     * inicia la primera lectura.
+     *
+     * @param cliente : Canal asociado al cliente
+     *
+     */
+    private void registra(AsynchronousSocketChannel cliente) {
+
+        final Conexion conexion = new Conexion();
+        Utiles util = new Utiles();
+        ByteLevelHTTPParser analizador = new ByteLevelHTTPParser();
+
+        // los formularios se escriben en disco a medida que llegan
+        // (en los hilos de disco, fuera del grupo)
+        DecodificadorFormulario formulario = new DecodificadorFormulario(
+                new File("").getAbsoluteFile(), disco);
+        analizador.setBodyReceiver(formulario);
+
+        util.setAnalizador(analizador);
+        util.setFormulario(formulario);
+        util.setSalida(new ColaSalida(MAX_BYTES_SALIDA, MAX_RESPUESTAS_SALIDA));
+
+        conexion.canal = cliente;
+        conexion.util = util;
+
+        Utiles.metricas.conexionAbierta();
+
+        // vigilar los plazos de la conexion, empezando por el de inactividad
+        util.setTemporizador(new Temporizador(new Runnable() {
+            @Override
+            public void run() {
+                vencimientos.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (conexion) {
+
+                            // (salvo que se haya reprogramado mientras
+                            // tanto)
+                            long ahora = System.currentTimeMillis();
+                            if (ahora >= conexion.vencimiento) {
+                                vence(conexion);
+                            }
+                        }
+                    }
+                });
+            }
+        }));
+
+        synchronized (conexion) {
+            util.setFase(FASE_ESPERA);
+            programa(conexion, TIEMPO_INACTIVIDAD);
+            lee(conexion);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que inicia una lectura del cliente a continuacion de lo
+     * que quede sin analizar en el bufer de lectura. Se invoca con el cerrojo
+     * de la conexion tomado.
+     *
+     * @param conexion : Conexion con el cliente
+     *
+     */
+    private void lee(Conexion conexion) {
+
+        Utiles util = conexion.util;
+        ByteBuffer bufer = util.getBuffer();
+
+        // si ya habia un bufer, conservar lo que el analizador no haya
+        // consumido todavia
+        if (bufer != null) {
+            bufer.compact();
+        }
+
+        // si no, tomar un bufer directo del pool comun
+        else {
+            bufer = Utiles.poolBuferes.toma(TAMANO_BUFER);
+            util.setBuffer(bufer);
+        }
+
+        // el bufer pertenece a la lectura hasta que termine
+        conexion.leyendo = true;
+        conexion.canal.read(bufer, conexion, leido);
+    }
+
+    /**
+     * Metodo auxiliar que se ejecuta cuando termina una lectura. Se invoca
+     * con el cerrojo de la conexion tomado.
+     *
+     * @param conexion : Conexion con el cliente
+     * @param leidos : Bytes leidos (-1 si el cliente ha cerrado la conexion)
+     *
+     */
+    private void haLeido(Conexion conexion, int leidos) {
+
+        conexion.leyendo = false;
+
+        // la conexion puede haberse cerrado mientras tanto
+        if (conexion.cerrada) {
+            cierra(conexion);
+            return;
+        }
+
+        // cambiar el bufer a modo lectura
+        conexion.util.getBuffer().flip();
+
+        // si el cliente ha cerrado la conexion
+        if (leidos < 0) {
+            cierra(conexion);
+            return;
+        }
+
+        Utiles.metricas.recibidos(leidos);
+
+        // analizar peticiones y enviar sus respuestas
+        avanza(conexion, leidos);
+    }
+
+    /**
+     * Metodo auxiliar que vuelca en el bufer de envio todo lo que quepa de
+     * las respuestas pendientes e inicia su escritura. Se invoca con el
+     * cerrojo de la conexion tomado y sin ninguna escritura en curso.
+     *
+     * @param conexion : Conexion con el cliente
+     *
+     */
+    private void envia(Conexion conexion) {
+
+        if (conexion.envio == null) {
+            conexion.envio = Utiles.poolBuferes.toma(TAMANO_ENVIO);
+        }
+
+        ByteBuffer envio = conexion.envio;
+        envio.clear();
+
+        try {
+            conexion.util.getSalida().escribe(new Volcado(envio));
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            cierra(conexion);
+            return;
+        }
+
+        envio.flip();
+
+        // el bufer pertenece a la escritura hasta que termine
+        conexion.escribiendo = true;
+        conexion.canal.write(envio, conexion, escrito);
+    }
+
+    /**
+     * Metodo auxiliar que se ejecuta cuando termina una escritura. Se invoca
+     * con el cerrojo de la conexion tomado.
+     *
+     * @param conexion : Conexion con el cliente
+     *
+     */
+    private void haEscrito(Conexion conexion) {
+
+        conexion.escribiendo = false;
+
+        // la conexion puede haberse cerrado mientras tanto
+        if (conexion.cerrada) {
+            cierra(conexion);
+            return;
+        }
+
+        // si el cliente no ha admitido todo, seguir enviando lo que queda
+        if (conexion.envio.hasRemaining()) {
+            actualizaPlazo(conexion, 0);
+            conexion.escribiendo = true;
+            conexion.canal.write(conexion.envio, conexion, escrito);
+            return;
+        }
+
+        // devolver el bufer de envio al pool para que las conexiones
+        // inactivas no retengan ninguno
+        if (conexion.util.getSalida().isVacia()) {
+            Utiles.poolBuferes.devuelve(conexion.envio);
+            conexion.envio = null;
+        }
+
+        // seguir enviando y, si se ha hecho sitio en la cola, analizar las
+        // peticiones que esperaban en el bufer
+        avanza(conexion, 0);
+    }
+
+    /**
+     * Metodo auxiliar que avanza todo lo posible con un cliente: analiza las
+     * peticiones que haya en el bufer de lectura mientras quepan sus
+     * respuestas en la cola de salida, inicia el envio de lo pendiente si no
+     * habia ninguna escritura en curso e inicia una lectura si se pueden
+     * generar mas respuestas. Se invoca con el cerrojo de la conexion tomado.
+     *
+     * @param conexion : Conexion con el cliente
+     * @param leidos : Bytes que se acaban de leer del cliente
+     *
+     */
+    private void avanza(Conexion conexion, int leidos) {
+
+        Utiles util = conexion.util;
+        ColaSalida salida = util.getSalida();
+
+        // (el bufer de lectura no se puede tocar mientras se lee en el)
+        if (!conexion.leyendo) {
+            procesa(conexion);
+        }
+
+        // un manejador ejecutado en este mismo hilo puede haber cerrado la
+        // conexion
+        if (conexion.cerrada) {
+            return;
+        }
+
+        actualizaPlazo(conexion, leidos);
+
+        if (!conexion.escribiendo && !salida.isVacia()) {
+            envia(conexion);
+            if (conexion.cerrada) {
+                return;
+            }
+        }
+
+        // si ya se ha enviado todo y se debe cerrar la conexion
+        if (salida.isVacia() && !conexion.escribiendo && util.getCerrar()) {
+            cierra(conexion);
+            return;
+        }
+
+        if (!conexion.leyendo && !util.getCerrar() && !util.isEsperando()
+                && !salida.isLlena()) {
+            lee(conexion);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que analiza los datos pendientes del bufer de lectura y
+     * encola la respuesta de cada peticion completa (igual que en el modo
+     * selector, incluidas las peticiones encadenadas). Se invoca con el
+     * cerrojo de la conexion tomado y sin ninguna lectura en curso.
+     *
+     * @param conexion : Conexion con el cliente
+     *
+     */
+    private void procesa(Conexion conexion) {
+
+        Utiles util = conexion.util;
+        HTTPParser<ByteBuffer> analizador = util.getAnalizador();
+        ColaSalida salida = util.getSalida();
+
+        // tras una peticion que cierra la conexion no se analiza nada mas, y
+        // mientras se espera al disco tampoco (las respuestas deben enviarse
+        // en orden)
+        while (!util.getCerrar() && !util.isEsperando() && !salida.isLlena()) {
+
+            ByteBuffer bufer = util.getBuffer();
+
+            // analizar peticion (si hay algo pendiente de analizar)
+            if (bufer != null && bufer.hasRemaining()) {
+
+                // si empieza una nueva peticion, anotar cuando
+                if (!analizador.isStarted()) {
+                    util.setInicio(System.nanoTime());
+                }
+
+                analizador.parseRequest(bufer);
+            }
+
+            // PETICION FALLIDA (400 BAD REQUEST)
+            if (analizador.failed()) {
+                Utiles.metricas.peticionRecibida(util.getInicio());
+                salida.anade(respuesta(util, Utiles.generaRespuestaError(400)));
+
+                // tras un error no se puede saber donde empieza la siguiente
+                // peticion, por lo que se cierra la conexion
+                util.setCerrar(true);
+            }
+
+            // PETICION COMPLETA
+            else if (analizador.isComplete()) {
+
+                Utiles.metricas.peticionRecibida(util.getInicio());
+
+                // METODO GET
+                if (analizador.getMethod().equals("GET")) {
+                    salida.anade(respuesta(util, httpGet(analizador)));
+                }
+
+                // METODO POST
+                else if (analizador.getMethod().equals("POST")) {
+
+                    // la respuesta se prepara cuando se haya terminado de
+                    // escribir el fichero
+                    esperaFormulario(conexion, true);
+                    return;
+                }
+
+                // METODO NO IMPLEMENTADO (501 NOT IMPLEMENTED)
+                else {
+                    salida.anade(respuesta(util,
+                            Utiles.generaRespuestaError(501)));
+                }
+
+                util.setCerrar(!analizador.isKeepAlive());
+
+                // preparar el analizador para la siguiente peticion
+                analizador.reset();
+            }
+
+            // PETICION INCOMPLETA Y DISCO SATURADO
+            else if (util.getFormulario().isSaturado()) {
+
+                // dejar de leer hasta que se vacien las escrituras pendientes
+                esperaFormulario(conexion, false);
+                return;
+            }
+
+            // PETICION INCOMPLETA
+            else {
+
+                // seguir esperando datos del cliente
+                return;
+            }
+        }
+    }
+
+    /**
+     * Metodo auxiliar que anota en la respuesta [respuesta] el instante en el
+     * que empezo su peticion, para medir su tiempo total
+     *
+     * @param util : Datos del cliente
+     * @param respuesta : Respuesta a la peticion en curso
+     * @return la misma respuesta
+     *
+     */
+    private static Respuesta respuesta(Utiles util, Respuesta respuesta) {
+        respuesta.setInicio(util.getInicio());
+        return respuesta;
+    }
+
+    /**
+     * Metodo auxiliar que deja de leer peticiones de un cliente hasta que se
+     * completen las escrituras en disco pendientes de su formulario (las
+     * respuestas ya encoladas se siguen enviando). Despues encola la
+     * respuesta (si la peticion POST esta completa) y vuelve a atender al
+     * cliente. Se invoca con el cerrojo de la conexion tomado.
+     *
+     * @param conexion : Conexion con el cliente
+     * @param completa : Cierto si la peticion POST esta completa
+     *
+     */
+    private void esperaFormulario(final Conexion conexion,
+            final boolean completa) {
+
+        final Utiles util = conexion.util;
+
+        util.setEsperando(true);
+
+        // (la accion puede ejecutarse en este mismo hilo, si no quedaba
+        // nada pendiente, o en un hilo de disco)
+        util.getFormulario().cuandoEscrito(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (conexion) {
+
+                    // la conexion puede haberse cerrado (o haber vencido su
+                    // plazo) mientras tanto
+                    if (conexion.cerrada || util.getFase() == FASE_CIERRE) {
+                        return;
+                    }
+
+                    util.setEsperando(false);
+
+                    if (completa) {
+                        HTTPParser<ByteBuffer> analizador = util
+                                .getAnalizador();
+                        util.getSalida().anade(respuesta(util,
+                                httpPost(analizador, util.getFormulario())));
+                        util.setCerrar(!analizador.isKeepAlive());
+                        analizador.reset();
+                    }
+
+                    avanza(conexion, 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Metodo auxiliar que reprograma el temporizador de una conexion segun la
+     * fase en la que se encuentre, con las mismas reglas que el modo
+     * selector. Se invoca con el cerrojo de la conexion tomado.
+     *
+     * @param conexion : Conexion con el cliente
+     * @param leidos : Bytes que se acaban de leer del cliente
+     *
+     */
+    private void actualizaPlazo(Conexion conexion, int leidos) {
+
+        Utiles util = conexion.util;
+
+        // tras vencer un plazo solo queda enviar el 408 y cerrar
+        if (util.getFase() == FASE_CIERRE) {
+            return;
+        }
+
+        // mientras se envian respuestas (o se espera al disco) el plazo
+        // depende del cliente solo en la medida en que lee lo que se le envia
+        int fase;
+        if (!util.getSalida().isVacia() || conexion.escribiendo
+                || util.isEsperando()) {
+            fase = FASE_RESPUESTA;
+        } else {
+            fase = fase(util.getAnalizador());
+        }
+
+        // nueva fase: nuevo plazo
+        if (fase != util.getFase()) {
+            util.setFase(fase);
+            util.setProgreso(0);
+            programa(conexion, plazo(fase));
+        }
+
+        // misma fase: solo se renueva el plazo si hay progreso suficiente
+        else if (fase == FASE_CUERPO) {
+            util.setProgreso(util.getProgreso() + leidos);
+            if (util.getProgreso() >= MIN_PROGRESO_CUERPO) {
+                util.setProgreso(0);
+                programa(conexion, PLAZO_CUERPO);
+            }
+        } else if (fase != FASE_CABECERAS) {
+            programa(conexion, plazo(fase));
+        }
+    }
+
+    /**
+     * Metodo auxiliar que programa el temporizador de una conexion para que
+     * venza dentro de [plazo] milisegundos. Se invoca con el cerrojo de la
+     * conexion tomado.
+     *
+     */
+    private void programa(Conexion conexion, long plazo) {
+        conexion.vencimiento = System.currentTimeMillis() + plazo;
+        vigilante.programa(conexion.util.getTemporizador(), plazo);
+    }
+
+    /**
+     * Metodo auxiliar que se ejecuta cuando vence el plazo de una conexion.
+     * Si se estaba recibiendo una peticion se responde 408 antes de cerrarla;
+     * si estaba inactiva se cierra sin mas. Se invoca con el cerrojo de la
+     * conexion tomado.
+     *
+     * @param conexion : Conexion con el cliente
+     *
+     */
+    private void vence(Conexion conexion) {
+
+        // la conexion puede haberse cerrado
+        if (conexion.cerrada) {
+            return;
+        }
+
+        Utiles util = conexion.util;
+
+        // PLAZO VENCIDO (408 REQUEST TIMEOUT)
+        if (util.getFase() == FASE_CABECERAS
+                || util.getFase() == FASE_CUERPO) {
+
+            util.getSalida().anade(Utiles.generaRespuestaError(408));
+            util.setCerrar(true);
+            util.setFase(FASE_CIERRE);
+
+            // enviar la respuesta, con un plazo corto para que un cliente
+            // que no lee tampoco retenga la conexion
+            avanza(conexion, 0);
+            if (!conexion.cerrada) {
+                programa(conexion, PLAZO_CIERRE);
+            }
+        }
+
+        // CONEXION INACTIVA
+        else {
+            cierra(conexion);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que cierra la conexion con el cliente y libera sus
+     * recursos. Los buferes de una lectura o escritura en curso no se
+     * devuelven al pool hasta que termina (con error, al cerrar el canal), ya
+     * que hasta entonces los puede usar el sistema. Se invoca con el cerrojo
+     * de la conexion tomado, tantas veces como se quiera.
+     *
+     * @param conexion : Conexion con el cliente
+     *
+     */
+    private void cierra(Conexion conexion) {
+
+        Utiles util = conexion.util;
+
+        // devolver al pool los buferes que ya no use ninguna operacion
+        if (!conexion.leyendo && util.getBuffer() != null) {
+            Utiles.poolBuferes.devuelve(util.getBuffer());
+            util.setBuffer(null);
+        }
+        if (!conexion.escribiendo && conexion.envio != null) {
+            Utiles.poolBuferes.devuelve(conexion.envio);
+            conexion.envio = null;
+        }
+
+        // la conexion puede estar ya cerrada
+        if (conexion.cerrada) {
+            return;
+        }
+
+        conexion.cerrada = true;
+
+        // dejar de vigilar sus plazos
+        vigilante.cancela(util.getTemporizador());
+
+        // liberar las respuestas que quedasen por enviar
+        util.getSalida().vacia();
+
+        // descartar el formulario que se estuviese recibiendo
+        util.getFormulario().descarta();
+
+        Utiles.metricas.conexionCerrada();
+        Utiles.admision.libera();
+
+        // cerrar conexion con el cliente (las operaciones en curso terminan
+        // con error)
+        try {
+            conexion.canal.close();
+        } catch (IOException e) {
+            System.err.println("ERROR: Fallo cerrando conexion. "
+                    + e.getMessage());
+        }
+    }
+}
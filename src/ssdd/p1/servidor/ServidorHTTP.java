@@ -8,13 +8,24 @@
 
 package ssdd.p1.servidor;
 
+import java.io.Closeable;
 import java.io.File;
-import java.net.URLDecoder;
-import java.nio.ByteBuffer;
-import java.util.regex.Matcher;
-
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ssdd.p1.herramientas.CacheRutas;
+import ssdd.p1.herramientas.CompresionGzip;
+import ssdd.p1.herramientas.DecodificadorFormulario;
 import ssdd.p1.herramientas.HTTPParser;
+import ssdd.p1.herramientas.RangosBytes;
+import ssdd.p1.herramientas.Respuesta;
+import ssdd.p1.herramientas.RuedaTemporizadores.Temporizador;
 import ssdd.p1.herramientas.Utiles;
+import ssdd.p1.herramientas.VersionFichero;
 
 /**
  * Abstraccion del comportamiento de un servidor web (HTTP) a la hora de
@@ -27,168 +38,322 @@ import ssdd.p1.herramientas.Utiles;
 public abstract class ServidorHTTP {
 
     /**
-     * Metodo que gestiona una peticion HTTP de tipo GET.
+     * Tiempo maximo (en milisegundos) que una conexion persistente puede
+     * permanecer abierta sin recibir ni enviar datos
+     * 
+     */
+    protected static final int TIEMPO_INACTIVIDAD = 15000;
+
+    /**
+     * Ruta en la que se sirven las metricas del servidor (en lugar de buscar
+     * un fichero)
+     * 
+     */
+    protected static final String RUTA_METRICAS = "/_metrics";
+
+    /**
+     * Tiempo maximo (en milisegundos) para recibir las cabeceras de una
+     * peticion desde que llega su primer byte. No se renueva aunque lleguen
+     * mas datos, para que un cliente que las envia byte a byte (slowloris) no
+     * pueda retener la conexion indefinidamente
+     * 
+     */
+    protected static final int PLAZO_CABECERAS = 10000;
+
+    /**
+     * Tiempo maximo (en milisegundos) para recibir los siguientes
+     * MIN_PROGRESO_CUERPO bytes del cuerpo de una peticion
+     * 
+     */
+    protected static final int PLAZO_CUERPO = 10000;
+
+    /**
+     * Bytes del cuerpo que se deben recibir para renovar el plazo PLAZO_CUERPO
+     * (es decir, velocidad minima de subida admitida)
+     * 
+     */
+    protected static final int MIN_PROGRESO_CUERPO = 64 * 1024;
+
+    /**
+     * Fases de una conexion a efectos de sus plazos: esperando una nueva
+     * peticion, recibiendo sus cabeceras, recibiendo su cuerpo, preparando o
+     * enviando su respuesta y cerrando tras vencer un plazo
+     * 
+     */
+    protected static final int FASE_ESPERA = 0;
+    protected static final int FASE_CABECERAS = 1;
+    protected static final int FASE_CUERPO = 2;
+    protected static final int FASE_RESPUESTA = 3;
+    protected static final int FASE_CIERRE = 4;
+
+    /**
+     * Tiempo (en milisegundos) que se mantiene abierta la conexion de un
+     * cliente no admitido despues de enviarle el rechazo: si se cerrase en el
+     * acto, su peticion sin leer haria que el sistema respondiese con un RST
+     * que puede llegar antes de que el cliente lea el rechazo
+     * 
+     */
+    private static final int PLAZO_RECHAZO = 1000;
+
+    /** Vigilante que cierra las conexiones de los clientes no admitidos */
+    private static final VigilantePlazos vigilanteRechazos =
+            new VigilantePlazos(250, 16);
+
+    /**
+     * Numero de hilos que realizan las escrituras en disco de los formularios
+     * recibidos por POST, comunes a todas las conexiones de los modos
+     * selector y asincrono
+     * 
+     */
+    private static final int NUM_HILOS_DISCO = 4;
+
+    /**
+     * Ejecutor de las escrituras en disco, para que un disco lento no bloquee
+     * a los reactores (ni a los hilos del grupo asincrono)
+     * 
+     */
+    protected static final ExecutorService disco = Executors
+            .newFixedThreadPool(NUM_HILOS_DISCO, new ThreadFactory() {
+                private final AtomicInteger contador = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable tarea) {
+                    Thread hilo = new Thread(tarea,
+                            "disco-" + contador.getAndIncrement());
+                    hilo.setDaemon(true);
+                    return hilo;
+                }
+            });
+
+    /**
+     * Devuelve la fase (FASE_ESPERA, FASE_CABECERAS o FASE_CUERPO) en la que
+     * se encuentra la peticion que esta recibiendo el analizador [analizador]
+     * 
+     * @param analizador : Analizador HTTP
+     * @return fase de la peticion
+     * 
+     */
+    protected static int fase(HTTPParser<?> analizador) {
+        if (analizador.isReadingBody()) {
+            return FASE_CUERPO;
+        } else if (analizador.isStarted()) {
+            return FASE_CABECERAS;
+        } else {
+            return FASE_ESPERA;
+        }
+    }
+
+    /**
+     * Devuelve el plazo (en milisegundos) asociado a la fase [fase]
+     * 
+     * @param fase : Fase de la conexion
+     * @return plazo de la fase
+     * 
+     */
+    protected static int plazo(int fase) {
+        if (fase == FASE_CABECERAS) {
+            return PLAZO_CABECERAS;
+        } else if (fase == FASE_CUERPO) {
+            return PLAZO_CUERPO;
+        } else {
+            return TIEMPO_INACTIVIDAD;
+        }
+    }
+
+    /**
+     * Envia a un cliente recien aceptado que no se admite la respuesta
+     * precalculada del codigo [codigo] (429 o 503, segun
+     * ControlAdmision.admite), sin leer su peticion. El canal no se cierra.
+     * 
+     * @param codigo : Codigo HTTP del rechazo
+     * @param canal : Canal por el que se envia la respuesta (debe admitirla
+     *            entera en una escritura)
+     * 
+     */
+    protected static void rechaza(int codigo, WritableByteChannel canal)
+            throws IOException {
+        Respuesta respuesta = Utiles.generaRespuestaError(codigo);
+        boolean enviada = false;
+        try {
+            enviada = respuesta.escribe(canal);
+        } finally {
+            Utiles.metricas.respuesta(respuesta, enviada);
+            respuesta.cierra();
+        }
+    }
+
+    /**
+     * Cierra la conexion [conexion] de un cliente no admitido PLAZO_RECHAZO
+     * milisegundos despues de enviarle el rechazo (y de cerrar su salida, para
+     * que el cliente vea el final de la respuesta). Mientras tanto no se lee
+     * nada de ella.
+     * 
+     * @param conexion : Conexion con el cliente
+     * 
+     */
+    protected static void cierraRechazado(final Closeable conexion) {
+        vigilanteRechazos.programa(new Temporizador(new Runnable() {
+            @Override
+            public void run() {
+                cierraConexion(conexion);
+            }
+        }), PLAZO_RECHAZO);
+    }
+
+    /**
+     * Cierra la conexion [conexion], informando si falla
+     * 
+     * @param conexion : Conexion con el cliente
+     * 
+     */
+    protected static void cierraConexion(Closeable conexion) {
+        try {
+            conexion.close();
+        } catch (IOException e) {
+            System.err.println("ERROR: Fallo cerrando conexion. "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Metodo que gestiona una peticion HTTP de tipo GET. Atiende las
+     * peticiones condicionales (If-None-Match, If-Modified-Since) con 304 si
+     * el cliente ya tiene la version actual del fichero, y las peticiones de
+     * uno o varios rangos (Range, If-Range) con 206. Si el cliente admite gzip
+     * (Accept-Encoding), envia la variante comprimida del fichero (generada
+     * una sola vez por version y guardada en la cache) cuando compensa; los
+     * rangos se refieren siempre al fichero sin comprimir. La ruta (tambien
+     * si no existe o no se permite) se resuelve con la cache de rutas, para
+     * no consultar el disco en cada peticion.
      * 
      * @param analizador : Analizador HTTP
      * @return Respuesta HTTP para enviar al cliente
      * 
      */
     @SuppressWarnings("rawtypes")
-    protected final static String httpGet(HTTPParser analizador) {
+    protected final static Respuesta httpGet(HTTPParser analizador) {
+
+        boolean gzip = CompresionGzip
+                .acepta(analizador.getHeader("Accept-Encoding"));
+
+        // METRICAS DEL SERVIDOR (antes de buscar ningun fichero)
+        if (analizador.getPath().equals(RUTA_METRICAS)) {
+            return Utiles.generaRespuestaCuerpo(200,
+                    Utiles.metricas.informe(), gzip);
+        }
 
-        File rutaRaiz = new File("");
-        File fichero = new File(
-                rutaRaiz.getAbsolutePath() + analizador.getPath());
+        // resolver la ruta del fichero solicitado (de la cache si se ha
+        // resuelto hace poco)
+        CacheRutas.Resolucion resolucion = Utiles.cacheRutas
+                .resuelve(analizador.getPath());
 
         // si no existe el fichero solicitado
-        if (!fichero.exists()) {
+        if (resolucion.getCodigo() == 404) {
 
             // NO ENCONTRADO (NOT FOUND - 404)
-            return Utiles.generaRespuesta(404);
+            return Utiles.generaRespuestaError(404);
+        }
+
+        // si es un directorio o esta alojado en la zona restringida
+        if (resolucion.getCodigo() == 403) {
 
+            // NO PERMITIDO (FORBIDDEN - 403)
+            return Utiles.generaRespuestaError(403);
         }
 
-        // si existe el fichero solicitado
-        else {
+        // si el fichero solicitado es un fichero (y no un directorio), y
+        // ademas esta alojado en la zona permitida
+        File fichero = resolucion.getFichero();
+        VersionFichero version = resolucion.getVersion();
 
-            // analiza la ruta del fichero solicitado con el objetivo de
-            // determinar si esta alojado en la zona permitida
-            Matcher analizadorSintactico = Utiles.patronRutaFichero
-                    .matcher(analizador.getPath());
+        // si el cliente ya tiene la version actual
+        String siNoCoincide = analizador.getHeader("If-None-Match");
+        if (version.noModificada(siNoCoincide,
+                analizador.getHeader("If-Modified-Since"))) {
 
-            // si el fichero solicitado es un fichero (y no un directorio), y
-            // ademas esta alojado en la zona permitida
-            if (fichero.isFile() && analizadorSintactico.matches()) {
+            // NO MODIFICADO (NOT MODIFIED - 304)
+            return Utiles.generaRespuestaNoModificada(version,
+                    siNoCoincide);
+        }
 
-                // CORRECTO (OK - 200)
-                return Utiles.generaRespuesta(200, fichero);
+        // si pide solo algunos rangos de la version actual
+        String rango = analizador.getHeader("Range");
+        if (rango != null && version
+                .admiteRango(analizador.getHeader("If-Range"))) {
 
-            }
+            // (null si la cabecera no es valida: se ignora)
+            long[][] rangos = RangosBytes.analiza(rango,
+                    version.getLongitud());
 
-            // si es un directorio o esta alojado en la zona restringida
-            else {
+            // RANGO NO ATENDIBLE (RANGE NOT SATISFIABLE - 416)
+            if (rangos != null && rangos.length == 0) {
+                return Utiles.generaRespuestaRangoNoAtendible(
+                        version.getLongitud());
+            }
 
-                // NO PERMITIDO (FORBIDDEN - 403)
-                return Utiles.generaRespuesta(403);
+            // CONTENIDO PARCIAL (PARTIAL CONTENT - 206)
+            if (rangos != null) {
+                return Utiles.generaRespuestaParcial(fichero, version,
+                        rangos);
             }
         }
+
+        // CORRECTO (OK - 200)
+        // (de la cache si esta guardado y no ha cambiado, comprimido
+        // si el cliente lo admite y compensa)
+        Respuesta respuesta = null;
+        if (gzip) {
+            respuesta = Utiles.cacheFicheros.obtieneGzip(fichero,
+                    version);
+        }
+        if (respuesta == null) {
+            respuesta = Utiles.cacheFicheros.obtiene(fichero, version);
+        }
+
+        // si es demasiado grande para la cache se envia desde disco
+        if (respuesta == null) {
+            respuesta = Utiles.generaRespuesta(fichero, version);
+        }
+
+        return respuesta;
     }
 
     /**
-     * Metodo que gestiona una peticion HTTP de tipo POST.
+     * Metodo que gestiona una peticion HTTP de tipo POST. El formulario ya se
+     * ha decodificado (y su contenido se ha escrito en disco) a medida que se
+     * recibia el cuerpo de la peticion. La pagina de exito se comprime al
+     * vuelo si el cliente admite gzip (Accept-Encoding).
      * 
      * @param analizador : Analizador HTTP
+     * @param formulario : Decodificador que ha recibido el cuerpo
      * @return Respuesta HTTP para enviar al cliente
      * 
      */
     @SuppressWarnings("rawtypes")
-    protected final static String httpPost(HTTPParser analizador) {
-
-        // obtiene el cuerpo de la peticion
-        // (contiene los datos enviados por el cliente)
-        ByteBuffer bodyBuf = analizador.getBody();
-        String body = "";
-
-        // si el bufer del cuerpo tiene un vector de respaldo
-        if (bodyBuf.hasArray()) {
-            body = new String(bodyBuf.array());
-
-            // separar los parametros antes de decodificar por si se
-            // incluye el caracter '&' en el contenido de alguno
-            String[] params = body.split("&");
-
-            // si y solo si se envian dos parametros
-            if (params.length == 2) {
-
-                try {
-
-                    // convertir parametros a texto plano
-                    params[0] = URLDecoder.decode(params[0], "UTF-8");
-                    params[1] = URLDecoder.decode(params[1], "UTF-8");
-
-                    // separar nombres de parametros de su contenido
-                    String nomP1 = params[0].substring(0,
-                            params[0].indexOf("="));
-                    String nomP2 = params[1].substring(0,
-                            params[1].indexOf("="));
-
-                    // si y solo si el nombre de los dos parametros coinciden
-                    // con los esperados
-                    if (nomP1.compareTo("fname") == 0
-                            && nomP2.compareTo("content") == 0) {
-
-                        // obtener nombre del fichero
-                        String contP1 = params[0]
-                                .substring(params[0].indexOf("=") + 1);
-
-                        // analiza la ruta del fichero solicitado con el
-                        // objetivo de determinar si esta alojado en la zona
-                        // permitida
-                        Matcher matcher = Utiles.patronRutaFichero
-                                .matcher(contP1);
-
-                        // si el fichero solicitado esta alojado en la zona
-                        // permitida
-                        if (matcher.matches()) {
-
-                            // obtener contenido del fichero
-                            String contP2 = params[1]
-                                    .substring(params[1].indexOf("=") + 1);
-
-                            // escribir contenido en el fichero
-                            Utiles.escribeFichero(contP1, contP2);
-
-                            // recodificar el contenido para que se muestre
-                            // correctamente en la web
-                            contP2 = Utiles.codificarHTML(contP2);
-
-                            return Utiles.generaRespuesta(200,
-                                    Utiles.generaCuerpoExito(contP1, contP2));
-                        }
-
-                        // si el fichero solicitado esta alojado en la zona
-                        // restringida
-                        else {
-
-                            // NO PERMITIDO (FORBIDDEN - 403)
-                            return Utiles.generaRespuesta(403);
-                        }
-                    }
-
-                    // si los nombres de los dos parametros NO coinciden con los
-                    // esperados
-                    else {
-
-                        // BAD REQUEST (400)
-                        return Utiles.generaRespuesta(400);
-                    }
-                }
+    protected final static Respuesta httpPost(HTTPParser analizador,
+            DecodificadorFormulario formulario) {
 
-                // (no deberia ocurrir) si no se encuentra la codificacion UTF-8
-                catch (Exception e) {
-                    
-                    System.err.println("ERROR: " + e.getMessage());
-                    e.printStackTrace();
+        // si el formulario es valido y se ha escrito el fichero
+        if (formulario.getCodigo() == 200) {
 
-                    // ERROR INTERNO DEL SERVIDOR (INTERNAL SERVER ERROR - 500)
-                    return Utiles.generaRespuesta(500);
-                }
+            // recodificar el contenido para que se muestre correctamente en
+            // la web (solo el principio si es demasiado largo)
+            String contenido = Utiles.codificarHTML(formulario.getPrevista());
+            if (formulario.isRecortado()) {
+                contenido += "\n[...]";
             }
 
-            // si el numero de los parametros no es exactamente dos
-            else {
-
-                // BAD REQUEST (400)
-                return Utiles.generaRespuesta(400);
-            }
+            // CORRECTO (OK - 200)
+            return Utiles.generaRespuestaCuerpo(200,
+                    Utiles.generaCuerpoExito(formulario.getFichero(),
+                            contenido),
+                    CompresionGzip
+                            .acepta(analizador.getHeader("Accept-Encoding")));
         }
 
-        // (no deberia ocurrir) si el bufer del cuerpo no tiene un vector de
-        // respaldo
+        // BAD REQUEST (400), FORBIDDEN (403) o INTERNAL SERVER ERROR (500)
         else {
-
-            // ERROR INTERNO DEL SERVIDOR (INTERNAL SERVER ERROR - 500)
-            return Utiles.generaRespuesta(500);
+            return Utiles.generaRespuestaError(formulario.getCodigo());
         }
     }
 
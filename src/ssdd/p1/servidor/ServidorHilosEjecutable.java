@@ -8,10 +8,19 @@
 
 package ssdd.p1.servidor;
 
-import java.io.PrintWriter;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 import ssdd.p1.herramientas.BlockingHTTPParser;
+import ssdd.p1.herramientas.DecodificadorFormulario;
+import ssdd.p1.herramientas.Respuesta;
+import ssdd.p1.herramientas.RuedaTemporizadores.Temporizador;
 import ssdd.p1.herramientas.Utiles;
 
 /**
@@ -22,9 +31,41 @@ import ssdd.p1.herramientas.Utiles;
  */
 public class ServidorHilosEjecutable extends ServidorHTTP implements Runnable {
 
+    /**
+     * Periodo (en milisegundos) con el que el vigilante comprueba si una
+     * conexion ha empezado a recibir una nueva peticion
+     * 
+     */
+    private static final int PERIODO_VIGILANCIA = 1000;
+
+    /** Vigilante de los plazos, comun a todas las conexiones */
+    private static final VigilantePlazos vigilante = new VigilantePlazos(250,
+            128);
+
     /** Atributo que hace referencia al socket asociado al cliente */
     private Socket cliente;
 
+    /** Analizador HTTP de la conexion */
+    private volatile BlockingHTTPParser analizador;
+
+    /** Numero de peticiones que se han empezado a analizar */
+    private volatile int numPeticion;
+
+    /** Cierto mientras se prepara o envia una respuesta */
+    private volatile boolean atendiendo;
+
+    /** Cierto si ha vencido el plazo de la peticion actual */
+    private volatile boolean vencido;
+
+    /**
+     * Fase, peticion y bytes del cuerpo observados por el vigilante la ultima
+     * vez que programo el temporizador (solo los usa el hilo vigilante)
+     * 
+     */
+    private int faseVista = FASE_ESPERA;
+    private int peticionVista = -1;
+    private long progresoVisto;
+
     /**
      * Metodo constructor de la clase ServidorThreadHTTP
      * 
@@ -34,60 +75,219 @@ public class ServidorHilosEjecutable extends ServidorHTTP implements Runnable {
     }
 
     /**
-     * Metodo que se ejecuta en el hilo. De forma secuencial analiza la
-     * peticion, la sirve (responde) y termina.
+     * Devuelve el socket asociado al cliente
+     * 
+     * @return socket asociado al cliente
+     * 
+     */
+    public Socket getCliente() {
+        return cliente;
+    }
+
+    /**
+     * Metodo que se ejecuta en el hilo. De forma secuencial analiza las
+     * peticiones que lleguen por la conexion y las sirve (responde) hasta que
+     * el cliente cierra la conexion, pide cerrarla o permanece inactivo mas de
+     * TIEMPO_INACTIVIDAD milisegundos.
      * 
      */
     @Override
     public void run() {
+        DecodificadorFormulario formulario = null;
+        Utiles.metricas.conexionAbierta();
         try {
-            PrintWriter salidaCliente = new PrintWriter(
-                    cliente.getOutputStream(), true);
+            OutputStream salidaCliente = cliente.getOutputStream();
+            WritableByteChannel canalCliente = Channels
+                    .newChannel(salidaCliente);
+            Respuesta respuesta = null;
 
-            BlockingHTTPParser analizador = new BlockingHTTPParser();
+            // plazo maximo de espera en cada lectura
+            cliente.setSoTimeout(TIEMPO_INACTIVIDAD);
 
-            // analizar peticion
-            analizador.parseRequest(cliente.getInputStream());
+            // el analizador lee en bloques, por lo que puede quedarse con el
+            // principio de la siguiente peticion: se reutiliza para todas las
+            // peticiones de la conexion
+            InputStream entradaCliente = new FilterInputStream(
+                    cliente.getInputStream()) {
 
-            // PETICION FALLIDA
-            if (analizador.failed()) {
-                salidaCliente.append(Utiles.generaRespuesta(400));
-            }
+                // contar los bytes recibidos
+                @Override
+                public int read(byte[] b, int off, int len)
+                        throws IOException {
+                    int leidos = super.read(b, off, len);
+                    if (leidos > 0) {
+                        Utiles.metricas.recibidos(leidos);
+                    }
+                    return leidos;
+                }
+            };
+            analizador = new BlockingHTTPParser();
+
+            // los formularios se escriben en disco a medida que llegan
+            formulario = new DecodificadorFormulario(
+                    new File("").getAbsoluteFile());
+            analizador.setBodyReceiver(formulario);
+
+            // el vigilante comprueba periodicamente en que fase esta la
+            // conexion (el plazo de inactividad lo vigila SO_TIMEOUT)
+            vigilante.programa(temporizador, PERIODO_VIGILANCIA);
+
+            boolean mantener = true;
 
-            // PETICION COMPLETA
-            else if (analizador.isComplete()) {
+            while (mantener) {
 
-                // METODO GET
-                if (analizador.getMethod().equals("GET")) {
-                    salidaCliente.append(httpGet(analizador));
+                // analizar peticion
+                analizador.reset();
+                numPeticion++;
+                atendiendo = false;
+                analizador.parseRequest(entradaCliente);
+                atendiendo = true;
+
+                if (analizador.isComplete() || analizador.failed()) {
+                    Utiles.metricas
+                            .peticionRecibida(analizador.getStartTime());
+                }
+
+                // PLAZO VENCIDO (408 REQUEST TIMEOUT); el vigilante ha
+                // cerrado la entrada, por lo que el analisis ha fallado
+                if (vencido) {
+                    respuesta = Utiles.generaRespuestaError(408);
+                    mantener = false;
+                }
+
+                // CONEXION TERMINADA (cerrada por el cliente o inactiva)
+                else if (analizador.isEndOfStream()) {
+                    mantener = false;
+                }
+
+                // PETICION FALLIDA
+                else if (analizador.failed()) {
+                    respuesta = Utiles.generaRespuestaError(400);
+                    mantener = false;
                 }
 
-                // METODO POST
-                else if (analizador.getMethod().equals("POST")) {
-                    salidaCliente.append(httpPost(analizador));
+                // PETICION COMPLETA
+                else if (analizador.isComplete()) {
+
+                    // METODO GET
+                    if (analizador.getMethod().equals("GET")) {
+                        respuesta = httpGet(analizador);
+                    }
+
+                    // METODO POST
+                    else if (analizador.getMethod().equals("POST")) {
+                        respuesta = httpPost(analizador, formulario);
+                    }
+
+                    // METODO NO IMPLEMENTADO (501)
+                    else {
+                        respuesta = Utiles.generaRespuestaError(501);
+                    }
+
+                    mantener = analizador.isKeepAlive();
                 }
 
-                // METODO NO IMPLEMENTADO (501)
+                // REQUEST NO COMPLETA
                 else {
-                    salidaCliente.append(Utiles.generaRespuesta(501));
+                    // No deberia ocurrir por ser una conexion bloqueante
                 }
-            }
 
-            // REQUEST NO COMPLETA
-            else {
-                // No deberia ocurrir por ser una conexion bloqueante
+                // envia la respuesta (el canal es bloqueante, por lo que se
+                // envia completa)
+                if (respuesta != null) {
+                    boolean enviada = false;
+                    respuesta.setInicio(analizador.getStartTime());
+                    try {
+                        respuesta.escribe(canalCliente);
+                        enviada = true;
+                    } finally {
+                        Utiles.metricas.respuesta(respuesta, enviada);
+                        respuesta.cierra();
+                        respuesta = null;
+                    }
+                }
+
+                // fuerza escritura de lo que quede
+                salidaCliente.flush();
             }
 
-            // fuerza escritura de lo que quede y finaliza el escritor
-            salidaCliente.flush();
+            // finaliza el escritor
             salidaCliente.close();
 
-            // cierra conexion
-            cliente.close();
-
         } catch (Exception e) {
             System.err.println("ERROR: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+
+            // dejar de vigilar la conexion
+            vigilante.cancela(temporizador);
+
+            // cierra conexion (tambien si ha fallado la atencion al cliente)
+            if (cliente != null) {
+                cierraConexion(cliente);
+            }
+
+            Utiles.metricas.conexionCerrada();
+            Utiles.admision.libera();
+
+            // descartar el formulario que se estuviese recibiendo
+            if (formulario != null) {
+                formulario.descarta();
+            }
         }
     }
+
+    /**
+     * Temporizador de la conexion. Su accion se ejecuta en el hilo vigilante:
+     * si la conexion ha cambiado de fase desde la ultima vez (o ha progresado
+     * lo suficiente en el cuerpo) programa el siguiente plazo y, si no, da el
+     * plazo por vencido y cierra la entrada del socket para despertar al hilo
+     * de la conexion, que respondera 408.
+     * 
+     */
+    private final Temporizador temporizador = new Temporizador(new Runnable() {
+        @Override
+        public void run() {
+
+            int peticion = numPeticion;
+            int fase = atendiendo ? FASE_RESPUESTA : fase(analizador);
+
+            // nueva fase: nuevo plazo
+            if (fase != faseVista || peticion != peticionVista) {
+                faseVista = fase;
+                peticionVista = peticion;
+                progresoVisto = analizador.getBodyRead();
+
+                // las fases sin plazo propio se vuelven a comprobar
+                // periodicamente
+                if (fase == FASE_CABECERAS || fase == FASE_CUERPO) {
+                    vigilante.programa(temporizador, plazo(fase));
+                } else {
+                    vigilante.programa(temporizador, PERIODO_VIGILANCIA);
+                }
+            }
+
+            // misma fase sin plazo propio
+            else if (fase == FASE_ESPERA || fase == FASE_RESPUESTA) {
+                vigilante.programa(temporizador, PERIODO_VIGILANCIA);
+            }
+
+            // cuerpo con progreso suficiente: se renueva el plazo
+            else if (fase == FASE_CUERPO && analizador.getBodyRead()
+                    - progresoVisto >= MIN_PROGRESO_CUERPO) {
+                progresoVisto = analizador.getBodyRead();
+                vigilante.programa(temporizador, PLAZO_CUERPO);
+            }
+
+            // PLAZO VENCIDO
+            else {
+                vencido = true;
+                try {
+                    cliente.shutdownInput();
+                } catch (IOException e) {
+                    System.err.println("ERROR: " + e.getMessage());
+                }
+            }
+        }
+    });
 }
@@ -3,23 +3,43 @@
  * NIA: 643821 / 535621
  * FICHERO: ServidorThreadLanzador.java
  * TIEMPO: 30 minutos
- * DESCRIPCION: Servidor web (HTTP) usando hilos.
+ * DESCRIPCION: Servidor web (HTTP) usando hilos, ya sea uno por cliente (del
+ *  sistema o virtual) o un conjunto acotado de hilos con una cola de espera
+ *  acotada.
  */
 
 package ssdd.p1.servidor;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ssdd.p1.herramientas.ControlAdmision;
+import ssdd.p1.herramientas.Utiles;
 
 /**
- * Servidor HTTP sencillo utilizando un hilo por cada nuevo cliente
+ * Servidor HTTP sencillo utilizando un hilo (del sistema o virtual) por cada
+ * nuevo cliente, o bien un conjunto (pool) acotado de hilos
  * 
  * @author Juan Vela, Marta Frias
  *
  */
 public class ServidorHilosLanzador {
 
+    /** Periodo (en milisegundos) con el que se muestran las metricas del pool */
+    private static final long PERIODO_METRICAS = 10000;
+
     /**
      * Metodo que permite iniciar un servidor HTTP cuyo funcionamiento se basa
      * en hilos
@@ -30,6 +50,111 @@ public class ServidorHilosLanzador {
      */
     public static void iniciar(int puerto) {
 
+        // cada cliente se atiende en un hilo nuevo
+        atiende(puerto, new Executor() {
+            @Override
+            public void execute(Runnable hijo) {
+                Thread thread = new Thread(hijo);
+                thread.start();
+            }
+        });
+    }
+
+    /**
+     * Metodo que permite iniciar un servidor HTTP cuyo funcionamiento se basa
+     * en un numero fijo de hilos. Los clientes que llegan con todos los hilos
+     * ocupados esperan en una cola acotada; si la cola esta llena se les
+     * responde con un 503 (Service Unavailable).
+     * 
+     * @param puerto : Numero de puerto en el que el servidor debe permanecer a
+     *            la escucha de nuevas conexiones
+     * @param numHilos : Numero de hilos que atienden a los clientes
+     * @param capacidadCola : Numero maximo de clientes en espera
+     * 
+     */
+    public static void iniciar(int puerto, int numHilos, int capacidadCola) {
+
+        final RechazoServicioNoDisponible rechazo = new RechazoServicioNoDisponible();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(numHilos,
+                numHilos, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacidadCola), rechazo);
+
+        // mostrar periodicamente las metricas del pool (solo si han cambiado)
+        Timer temporizador = new Timer("metricas-pool", true);
+        temporizador.schedule(new TimerTask() {
+
+            private long ultimasAtendidas = -1;
+            private long ultimosRechazos = -1;
+
+            @Override
+            public void run() {
+                long atendidas = pool.getCompletedTaskCount();
+                long rechazos = rechazo.getRechazados();
+
+                if (atendidas != ultimasAtendidas
+                        || rechazos != ultimosRechazos) {
+                    System.out.println("Pool: activos=" + pool.getActiveCount()
+                            + "/" + pool.getMaximumPoolSize() + " en cola="
+                            + pool.getQueue().size() + " max. hilos="
+                            + pool.getLargestPoolSize() + " atendidos="
+                            + atendidas + " rechazados=" + rechazos);
+                    ultimasAtendidas = atendidas;
+                    ultimosRechazos = rechazos;
+                }
+            }
+        }, PERIODO_METRICAS, PERIODO_METRICAS);
+
+        atiende(puerto, pool);
+
+        temporizador.cancel();
+        pool.shutdown();
+    }
+
+    /**
+     * Metodo que permite iniciar un servidor HTTP que atiende a cada cliente
+     * en un hilo virtual (Java 21 o superior). Mantiene el mismo codigo
+     * bloqueante que el modo con hilos, pero admite muchos mas clientes
+     * simultaneos porque un hilo virtual bloqueado no ocupa un hilo del
+     * sistema operativo.
+     * 
+     * @param puerto : Numero de puerto en el que el servidor debe permanecer a
+     *            la escucha de nuevas conexiones
+     * 
+     */
+    public static void iniciarVirtual(int puerto) {
+
+        ExecutorService ejecutor;
+
+        try {
+
+            // se obtiene por reflexion para poder compilar con versiones
+            // anteriores de Java
+            Method fabrica = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            ejecutor = (ExecutorService) fabrica.invoke(null);
+
+        } catch (Exception e) {
+            System.err.println("ERROR: Esta version de Java no dispone de "
+                    + "hilos virtuales (se necesita Java 21 o superior).");
+            return;
+        }
+
+        atiende(puerto, ejecutor);
+
+        ejecutor.shutdown();
+    }
+
+    /**
+     * Metodo auxiliar que acepta clientes y cede la atencion de cada uno de
+     * ellos al ejecutor [ejecutor]
+     * 
+     * @param puerto : Numero de puerto en el que el servidor debe permanecer a
+     *            la escucha de nuevas conexiones
+     * @param ejecutor : Ejecutor en el que se atiende a cada cliente
+     * 
+     */
+    private static void atiende(int puerto, Executor ejecutor) {
+
         ServerSocket servidor = null;
         Socket cliente = null;
 
@@ -48,16 +173,23 @@ public class ServidorHilosLanzador {
                 // se bloquea en espera de nuevos clientes
                 cliente = servidor.accept();
 
+                // si llega un cliente sin errores y no se admite, se le
+                // responde con el rechazo sin ocupar ningun hilo
+                int rechazo = cliente == null ? ControlAdmision.ADMITIDA
+                        : Utiles.admision.admite(cliente.getInetAddress());
+                if (rechazo != ControlAdmision.ADMITIDA) {
+                    rechaza(cliente, rechazo);
+                }
+
                 // si llega un cliente sin errores
-                if (cliente != null) {
+                else if (cliente != null) {
 
                     // asigna cliente a nuevo hilo
                     ServidorHilosEjecutable hijo = new ServidorHilosEjecutable(
                             cliente);
 
-                    // comienza la ejecucion del nuevo hilo
-                    Thread thread = new Thread(hijo);
-                    thread.start();
+                    // comienza la ejecucion del hilo
+                    ejecutor.execute(hijo);
                 }
             }
 
@@ -69,4 +201,25 @@ public class ServidorHilosLanzador {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Metodo auxiliar que responde a un cliente no admitido con el rechazo
+     * [rechazo] (429 o 503) y programa el cierre de la conexion
+     * 
+     * @param cliente : Socket asociado al cliente
+     * @param rechazo : Codigo HTTP del rechazo
+     * 
+     */
+    private static void rechaza(Socket cliente, int rechazo) {
+        try {
+            OutputStream salidaCliente = cliente.getOutputStream();
+            ServidorHTTP.rechaza(rechazo, Channels.newChannel(salidaCliente));
+            salidaCliente.flush();
+            cliente.shutdownOutput();
+            ServidorHTTP.cierraRechazado(cliente);
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            ServidorHTTP.cierraConexion(cliente);
+        }
+    }
 }
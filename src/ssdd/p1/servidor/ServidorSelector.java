@@ -3,13 +3,17 @@
  * NIA: 643821 / 535621
  * FICHERO: ServidorSelector.java
  * TIEMPO: 20 horas
- * DESCRIPCION: Servidor web (HTTP) usando un Selector.
+ * DESCRIPCION: Servidor web (HTTP) usando un Selector, o varios selectores
+ *  (reactores) en hilos separados alimentados por un unico aceptador o
+ *  escuchando cada uno en su propio socket (SO_REUSEPORT).
  */
 
 package ssdd.p1.servidor;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -17,17 +21,117 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Set;
-
-import ssdd.p1.herramientas.NonBlockingHTTPParser;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ssdd.p1.herramientas.ByteLevelHTTPParser;
+import ssdd.p1.herramientas.ColaSalida;
+import ssdd.p1.herramientas.ControlAdmision;
+import ssdd.p1.herramientas.DecodificadorFormulario;
+import ssdd.p1.herramientas.HTTPParser;
+import ssdd.p1.herramientas.Respuesta;
+import ssdd.p1.herramientas.RuedaTemporizadores;
+import ssdd.p1.herramientas.RuedaTemporizadores.Temporizador;
 import ssdd.p1.herramientas.Utiles;
 
 /**
- * Servidor HTTP sencillo utilizando la clase Selector (secuencial)
+ * Servidor HTTP sencillo utilizando la clase Selector. Cada instancia es un
+ * reactor: un hilo con su propio selector que atiende a sus conexiones de
+ * principio a fin. En modo secuencial hay un unico reactor que ademas acepta
+ * a los clientes; en modo multi-reactor un aceptador reparte las conexiones
+ * entre varios reactores por turno rotatorio; y en modo reuse-port cada
+ * reactor acepta a sus clientes en su propio socket servidor.
  * 
  * @author Juan Vela, Marta Frias
  *
  */
-public class ServidorSelector extends ServidorHTTP {
+public class ServidorSelector extends ServidorHTTP implements Runnable {
+
+    /**
+     * Resolucion (en milisegundos) de la rueda de temporizadores con la que
+     * se vigilan los plazos de las conexiones
+     * 
+     */
+    private static final long RESOLUCION_PLAZOS = 250;
+
+    /**
+     * Numero de ranuras de la rueda de temporizadores (una vuelta cubre
+     * RESOLUCION_PLAZOS * RANURAS_PLAZOS milisegundos, mas que cualquier
+     * plazo)
+     * 
+     */
+    private static final int RANURAS_PLAZOS = 128;
+
+    /**
+     * Tiempo (en milisegundos) que se espera a que el cliente reciba la
+     * respuesta 408 antes de cerrar la conexion de todas formas
+     * 
+     */
+    private static final long PLAZO_CIERRE = 2000;
+
+    /**
+     * Tamano (en bytes) de los buferes de lectura que se toman del pool
+     * 
+     */
+    private static final int TAMANO_BUFER = 4096;
+
+    /**
+     * Numero maximo de clientes que se aceptan seguidos en cada vuelta del
+     * selector
+     * 
+     */
+    private static final int MAX_ACEPTADOS = 64;
+
+    /**
+     * Bytes en memoria de las respuestas pendientes de enviar a un cliente a
+     * partir de los que se deja de leer sus peticiones
+     * 
+     */
+    private static final int MAX_BYTES_SALIDA = 256 * 1024;
+
+    /**
+     * Numero de respuestas pendientes de enviar a un cliente a partir del
+     * que se deja de leer sus peticiones
+     * 
+     */
+    private static final int MAX_RESPUESTAS_SALIDA = 16;
+
+    /** Selector propio del reactor */
+    private Selector selector;
+
+    /**
+     * Conexiones aceptadas por el hilo aceptador que aun no se han registrado
+     * en el selector del reactor (solo se registran desde su propio hilo)
+     * 
+     */
+    private ConcurrentLinkedQueue<SocketChannel> pendientes;
+
+    /**
+     * Tareas enviadas desde otros hilos que se deben ejecutar en el hilo del
+     * reactor (p. ej. completar una peticion cuando termina su escritura en
+     * disco)
+     * 
+     */
+    private ConcurrentLinkedQueue<Runnable> tareas;
+
+    /**
+     * Rueda de temporizadores que vigila los plazos de las conexiones del
+     * reactor
+     * 
+     */
+    private RuedaTemporizadores rueda;
+
+    /**
+     * Metodo constructor de la clase. Crea un reactor con un selector nuevo y
+     * sin conexiones.
+     * 
+     */
+    private ServidorSelector() throws IOException {
+        selector = Selector.open();
+        pendientes = new ConcurrentLinkedQueue<SocketChannel>();
+        tareas = new ConcurrentLinkedQueue<Runnable>();
+        rueda = new RuedaTemporizadores(RESOLUCION_PLAZOS, RANURAS_PLAZOS,
+                System.currentTimeMillis());
+    }
 
     /**
      * Metodo que permite iniciar un servidor HTTP cuyo funcionamiento se basa
@@ -41,23 +145,176 @@ public class ServidorSelector extends ServidorHTTP {
 
         try {
 
-            boolean finalizar = false;
-
             // crear el socket servidor en el puerto [puerto]
             // y configurarlo como NO BLOQUEANTE
             ServerSocketChannel servidor = ServerSocketChannel.open();
             servidor.configureBlocking(false);
             servidor.socket().bind(new InetSocketAddress(puerto));
 
-            // crear un selector y registrar el socket del servidor en dicho
+            // crear un reactor y registrar el socket del servidor en su
             // selector con la operacion aceptar (clientes)
-            Selector selector = Selector.open();
-            servidor.register(selector, SelectionKey.OP_ACCEPT);
+            ServidorSelector reactor = new ServidorSelector();
+            servidor.register(reactor.selector, SelectionKey.OP_ACCEPT);
+
+            // atender a los clientes en el hilo actual
+            reactor.run();
+
+            // cerrar el servidor
+            servidor.close();
+
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Metodo que permite iniciar un servidor HTTP con un hilo aceptador y
+     * [numReactores] hilos reactores, cada uno con su propio selector. Las
+     * conexiones aceptadas se reparten entre los reactores por turno
+     * rotatorio.
+     * 
+     * @param puerto : Numero de puerto en el que el servidor debe permanecer a
+     *            la escucha de nuevas conexiones
+     * @param numReactores : Numero de hilos reactores
+     * 
+     */
+    public static void iniciar(int puerto, int numReactores) {
+
+        try {
+
+            boolean finalizar = false;
+
+            // crear el socket servidor en el puerto [puerto] antes de lanzar
+            // los reactores, para no dejarlos en marcha si el puerto esta
+            // ocupado; el aceptador tiene su propio hilo, por lo que puede ser
+            // BLOQUEANTE
+            ServerSocketChannel servidor = ServerSocketChannel.open();
+            servidor.socket().bind(new InetSocketAddress(puerto));
+
+            // crear y lanzar los reactores
+            ServidorSelector[] reactores = new ServidorSelector[numReactores];
+            for (int i = 0; i < numReactores; i++) {
+                reactores[i] = new ServidorSelector();
+                new Thread(reactores[i], "reactor-" + i).start();
+            }
+
+            int siguiente = 0;
+
+            while (!finalizar) {
+
+                SocketChannel cliente = null;
+
+                try {
+
+                    // se bloquea en espera de nuevos clientes
+                    cliente = servidor.accept();
+
+                    // ceder el cliente (si se admite) al siguiente reactor
+                    if (admite(cliente)) {
+                        reactores[siguiente].entrega(cliente);
+                        siguiente = (siguiente + 1) % numReactores;
+                    }
+
+                } catch (IOException e) {
+                    // un fallo con un cliente no detiene al aceptador
+                    System.err.println("ERROR: Fallo aceptando nueva conexion");
+                    e.printStackTrace();
+                    if (cliente != null) {
+                        cierraConexion(cliente);
+                    }
+                }
+            }
+
+            // cerrar el servidor
+            servidor.close();
+
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Metodo que permite iniciar un servidor HTTP con [numReactores] hilos
+     * reactores que escuchan todos en el mismo puerto, cada uno con su propio
+     * socket servidor (SO_REUSEPORT) y su propio selector. El nucleo reparte
+     * las conexiones entrantes entre los sockets, por lo que no hay un unico
+     * aceptador que limite el numero de conexiones por segundo.
+     * 
+     * @param puerto : Numero de puerto en el que el servidor debe permanecer a
+     *            la escucha de nuevas conexiones
+     * @param numReactores : Numero de hilos reactores
+     * 
+     */
+    public static void iniciarReusePort(int puerto, int numReactores) {
+
+        try {
+
+            Thread[] hilos = new Thread[numReactores];
+
+            for (int i = 0; i < numReactores; i++) {
+
+                // crear un socket servidor NO BLOQUEANTE por reactor, todos
+                // en el puerto [puerto]
+                ServerSocketChannel servidor = ServerSocketChannel.open();
+                if (!servidor.supportedOptions()
+                        .contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    System.err.println("ERROR: El sistema no admite "
+                            + "SO_REUSEPORT");
+                    servidor.close();
+                    return;
+                }
+                servidor.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                servidor.configureBlocking(false);
+                servidor.socket().bind(new InetSocketAddress(puerto));
+
+                // cada reactor acepta a sus propios clientes
+                ServidorSelector reactor = new ServidorSelector();
+                servidor.register(reactor.selector, SelectionKey.OP_ACCEPT);
+
+                hilos[i] = new Thread(reactor, "reactor-" + i);
+                hilos[i].start();
+            }
+
+            // esperar a que terminen los reactores
+            for (Thread hilo : hilos) {
+                hilo.join();
+            }
+
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            System.err.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Bucle de eventos del reactor: atiende las operaciones de su selector
+     * hasta que se cierre.
+     * 
+     */
+    @Override
+    public void run() {
+
+        try {
+
+            boolean finalizar = false;
 
             while (!finalizar) {
 
-                // se bloquea en espera de nuevas operaciones
-                int numOperacionesDisponibles = selector.select();
+                // se bloquea en espera de nuevas operaciones (como mucho
+                // hasta el siguiente intervalo de la rueda de temporizadores)
+                int numOperacionesDisponibles = selector
+                        .select(RESOLUCION_PLAZOS);
+
+                // registrar las conexiones entregadas por el aceptador
+                // (despiertan al selector sin generar operaciones)
+                registraPendientes();
+
+                // ejecutar las tareas enviadas desde otros hilos
+                ejecutaTareas();
 
                 // si se reciben operaciones
                 // (puede desbloquearse sin recibir operaciones)
@@ -75,7 +332,8 @@ public class ServidorSelector extends ServidorHTTP {
                         // si la operacion consiste en aceptar un nuevo cliente
                         if (operacion.isAcceptable()) {
 
-                            acepta(servidor, selector);
+                            acepta((ServerSocketChannel) operacion.channel(),
+                                    selector);
                         }
 
                         // si la operacion consiste en recibir informacion de un
@@ -96,11 +354,13 @@ public class ServidorSelector extends ServidorHTTP {
                         iteradorOps.remove();
                     }
                 }
+
+                // atender las conexiones cuyo plazo ha vencido
+                rueda.avanza(System.currentTimeMillis());
             }
 
-            // cerrar el servidor
+            // cerrar el selector
             selector.close();
-            servidor.close();
 
         } catch (IOException e) {
             System.err.println("ERROR: " + e.getMessage());
@@ -109,35 +369,107 @@ public class ServidorSelector extends ServidorHTTP {
     }
 
     /**
-     * Metodo auxiliar que acepta nuevos clientes
+     * Cede una conexion ya aceptada a este reactor. Puede invocarse desde
+     * cualquier hilo.
+     * 
+     * @param cliente : Canal asociado al cliente
+     * 
+     */
+    private void entrega(SocketChannel cliente) {
+        pendientes.add(cliente);
+        selector.wakeup();
+    }
+
+    /**
+     * Ejecuta la tarea [tarea] en el hilo del reactor. Puede invocarse desde
+     * cualquier hilo.
+     * 
+     * @param tarea : Tarea a ejecutar
+     * 
+     */
+    private void ejecuta(Runnable tarea) {
+        tareas.add(tarea);
+        selector.wakeup();
+    }
+
+    /**
+     * Metodo auxiliar que ejecuta las tareas enviadas al reactor. Solo se
+     * invoca desde el hilo del reactor.
+     * 
+     */
+    private void ejecutaTareas() {
+
+        Runnable tarea = tareas.poll();
+
+        while (tarea != null) {
+            tarea.run();
+            tarea = tareas.poll();
+        }
+    }
+
+    /**
+     * Metodo auxiliar que registra en el selector las conexiones entregadas
+     * por el aceptador. Solo se invoca desde el hilo del reactor.
+     * 
+     */
+    private void registraPendientes() {
+
+        SocketChannel cliente = pendientes.poll();
+
+        while (cliente != null) {
+            registraAdmitido(cliente, selector);
+            cliente = pendientes.poll();
+        }
+    }
+
+    /**
+     * Metodo auxiliar que registra en el selector [selector] un cliente ya
+     * admitido. Si falla, cierra la conexion y libera su plaza en el control
+     * de admision.
+     * 
+     * @param cliente : Canal asociado al cliente
+     * @param selector : Selector en el que registrar al cliente
+     * 
+     */
+    private void registraAdmitido(SocketChannel cliente, Selector selector) {
+        try {
+            registra(cliente, selector);
+        } catch (IOException e) {
+            System.err.println("ERROR: Fallo registrando nueva conexion");
+            e.printStackTrace();
+            cierraConexion(cliente);
+            Utiles.admision.libera();
+        }
+    }
+
+    /**
+     * Metodo auxiliar que acepta los nuevos clientes que esten esperando
+     * (como mucho MAX_ACEPTADOS por llamada, para no desatender al resto)
      * 
      * @param servidor : Canal asociado al servidor
      * @param selector : Selector del servidor
      * 
      */
-    private static void acepta(ServerSocketChannel servidor,
+    private void acepta(ServerSocketChannel servidor,
             Selector selector) {
 
         SocketChannel cliente;
-        Utiles util = new Utiles();
-        NonBlockingHTTPParser analizador = new NonBlockingHTTPParser();
 
         try {
 
             // aceptar nuevo cliente
+            // (puede no haber ningun cliente si otro lo ha aceptado antes)
             cliente = servidor.accept();
 
-            // configurar el socket cliente como NO BLOQUEANTE
-            cliente.configureBlocking(false);
-
-            // iniciar fase de lectura
-            // (registrar operacion de leer en el selector)
-            SelectionKey operacion = cliente.register(selector,
-                    SelectionKey.OP_READ);
+            for (int i = 1; cliente != null; i++) {
+                if (admite(cliente)) {
+                    registraAdmitido(cliente, selector);
+                }
 
-            // adjuntar los datos necesarios a la operacion
-            util.setAnalizador(analizador);
-            operacion.attach(util);
+                // aceptar los siguientes sin esperar a otra vuelta del
+                // selector
+                cliente = i < MAX_ACEPTADOS ? servidor.accept() : null;
+            }
 
         } catch (IOException e) {
             System.err.println("ERROR: Fallo aceptando nueva conexion");
@@ -145,6 +477,82 @@ public class ServidorSelector extends ServidorHTTP {
         }
     }
 
+    /**
+     * Metodo auxiliar que consulta el control de admision para un cliente
+     * recien aceptado (todavia bloqueante). Si no se admite, le responde con
+     * el rechazo y programa el cierre de la conexion.
+     * 
+     * @param cliente : Canal asociado al cliente
+     * @return cierto si y solo si se admite al cliente
+     * 
+     */
+    private static boolean admite(SocketChannel cliente) {
+
+        int rechazo = Utiles.admision
+                .admite(cliente.socket().getInetAddress());
+        if (rechazo == ControlAdmision.ADMITIDA) {
+            return true;
+        }
+
+        try {
+            rechaza(rechazo, cliente);
+            cliente.shutdownOutput();
+            cierraRechazado(cliente);
+        } catch (IOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            cierraConexion(cliente);
+        }
+        return false;
+    }
+
+    /**
+     * Metodo auxiliar que registra un cliente recien aceptado en un selector
+     * para iniciar la fase de lectura, adjuntando su propio estado.
+     * 
+     * @param cliente : Canal asociado al cliente
+     * @param selector : Selector en el que registrar al cliente
+     * 
+     */
+    private void registra(SocketChannel cliente, Selector selector)
+            throws IOException {
+
+        Utiles util = new Utiles();
+        ByteLevelHTTPParser analizador = new ByteLevelHTTPParser();
+
+        // los formularios se escriben en disco a medida que llegan
+        // (en los hilos de disco, fuera del reactor)
+        DecodificadorFormulario formulario = new DecodificadorFormulario(
+                new File("").getAbsoluteFile(), disco);
+        analizador.setBodyReceiver(formulario);
+
+        // configurar el socket cliente como NO BLOQUEANTE
+        cliente.configureBlocking(false);
+
+        // iniciar fase de lectura
+        // (registrar operacion de leer en el selector)
+        final SelectionKey operacion = cliente.register(selector,
+                SelectionKey.OP_READ);
+
+        // adjuntar los datos necesarios a la operacion
+        util.setAnalizador(analizador);
+        util.setFormulario(formulario);
+        util.setSalida(new ColaSalida(MAX_BYTES_SALIDA, MAX_RESPUESTAS_SALIDA));
+        operacion.attach(util);
+
+        Utiles.metricas.conexionAbierta();
+
+        // vigilar los plazos de la conexion, empezando por el de inactividad
+        util.setTemporizador(new Temporizador(new Runnable() {
+            @Override
+            public void run() {
+                vence(operacion);
+            }
+        }));
+        util.setFase(FASE_ESPERA);
+        rueda.programa(util.getTemporizador(),
+                System.currentTimeMillis() + TIEMPO_INACTIVIDAD);
+    }
+
     /**
      * Metodo auxiliar que lee y procesa peticiones HTTP cuando el canal esta
      * preparado para leer.
@@ -153,7 +561,7 @@ public class ServidorSelector extends ServidorHTTP {
      * @param selector : Selector del servidor
      * 
      */
-    private static void lee(SelectionKey operacion, Selector selector) {
+    private void lee(SelectionKey operacion, Selector selector) {
 
         try {
 
@@ -165,143 +573,446 @@ public class ServidorSelector extends ServidorHTTP {
 
                 // obtener los datos adjuntos
                 Utiles util = (Utiles) operacion.attachment();
-                NonBlockingHTTPParser analizador = util.getAnalizador();
                 ByteBuffer bufer;
 
                 // si ya habia un bufer creado
                 if (util.getBuffer() != null) {
 
-                    // obtener el bufer y reutilizarlo
+                    // obtener el bufer y reutilizarlo, conservando lo que el
+                    // analizador no haya consumido todavia
                     bufer = util.getBuffer();
+                    bufer.compact();
                 }
 
                 // si no habia ningun bufer creado
                 else {
 
-                    // crear un nuevo buffer
-                    bufer = ByteBuffer.allocate(1024);
+                    // tomar un bufer directo del pool comun
+                    bufer = Utiles.poolBuferes.toma(TAMANO_BUFER);
                     util.setBuffer(bufer);
                 }
 
-                // limpiar y reiniciar el bufer
-                bufer.clear();
-
                 // recibir datos del cliente y escribirlos en el bufer
-                cliente.read(bufer);
+                int leidos = cliente.read(bufer);
 
                 // cambiar el bufer a modo lectura
                 bufer.flip();
 
-                // analizar peticion
-                analizador.parseRequest(bufer);
+                // si el cliente ha cerrado la conexion
+                if (leidos < 0) {
+                    cierra(operacion);
+                    return;
+                }
 
-                // PETICION FALLIDA (400 BAD REQUEST)
-                if (analizador.failed()) {
-                    util.setRespuesta(Utiles.generaRespuesta(400));
+                Utiles.metricas.recibidos(leidos);
 
-                    // iniciar fase de escritura
-                    // (registrar operacion de escribir en el selector)
-                    SelectionKey nuevaOperacion = cliente.register(selector,
-                            SelectionKey.OP_WRITE);
+                // analizar peticiones y enviar sus respuestas
+                atiende(operacion);
 
-                    // adjuntar los datos necesarios a la nueva operacion
-                    nuevaOperacion.attach(util);
-                }
+                actualizaPlazo(operacion, leidos);
+            }
+        } catch (Exception e) {
+            System.err.println("ERROR: " + e.getMessage());
+            cierra(operacion);
+        }
+    }
 
-                // PETICION COMPLETA
-                else if (analizador.isComplete()) {
+    /**
+     * Metodo auxiliar que avanza todo lo posible con un cliente: analiza las
+     * peticiones que haya en el bufer de lectura mientras quepan sus
+     * respuestas en la cola de salida y envia lo que el canal admita de
+     * ellas. Despues ajusta las operaciones de interes: solo se lee si se
+     * pueden generar mas respuestas, y solo se espera a poder escribir si
+     * queda algo pendiente de enviar.
+     * 
+     * @param operacion : Operacion asociada al cliente
+     * 
+     */
+    private void atiende(SelectionKey operacion) {
 
-                    // METODO GET
-                    if (analizador.getMethod().equals("GET")) {
-                        util.setRespuesta(httpGet(analizador));
-                    }
+        Utiles util = (Utiles) operacion.attachment();
+        ColaSalida salida = util.getSalida();
+        SocketChannel cliente = (SocketChannel) operacion.channel();
 
-                    // METODO POST
-                    else if (analizador.getMethod().equals("POST")) {
-                        util.setRespuesta(httpPost(analizador));
-                    }
+        boolean seguir = true;
 
-                    // METODO NO IMPLEMENTADO (501 NOT IMPLEMENTED)
-                    else {
-                        util.setRespuesta(Utiles.generaRespuesta(501));
-                    }
+        while (seguir) {
+
+            // analizar peticiones mientras quepan sus respuestas
+            procesa(operacion);
+
+            seguir = false;
 
-                    // iniciar fase de escritura
-                    // (registrar operacion de escribir en el selector)
-                    SelectionKey nuevaOperacion = cliente.register(selector,
-                            SelectionKey.OP_WRITE);
+            // enviar directamente lo que admita el canal, sin esperar a la
+            // siguiente vuelta del selector
+            if (!salida.isVacia()) {
 
-                    // adjuntar los datos necesarios a la nueva operacion
-                    nuevaOperacion.attach(util);
+                boolean llena = salida.isLlena();
+
+                try {
+                    salida.escribe(cliente);
+                } catch (IOException e) {
+                    System.err.println("ERROR: " + e.getMessage());
+                    cierra(operacion);
+                    return;
                 }
+
+                // si se ha hecho sitio en la cola, se puede seguir analizando
+                // las peticiones que esperaban en el bufer
+                seguir = llena && !salida.isLlena();
             }
-        } catch (Exception e) {
-            System.err.println("ERROR: " + e.getMessage());
         }
+
+        // si ya se ha enviado todo y se debe cerrar la conexion
+        if (salida.isVacia() && util.getCerrar()) {
+
+            // dar por terminada la operacion y cerrar la conexion
+            cierra(operacion);
+            return;
+        }
+
+        int interes = 0;
+        if (!salida.isVacia()) {
+            interes |= SelectionKey.OP_WRITE;
+        }
+        if (!util.getCerrar() && !util.isEsperando() && !salida.isLlena()) {
+            interes |= SelectionKey.OP_READ;
+        }
+        operacion.interestOps(interes);
     }
 
     /**
-     * Metodo auxiliar del metodo serverSelector que escribe peticiones HTTP
-     * cuando el canal esta preparado para escribir.
+     * Metodo auxiliar que analiza los datos pendientes del bufer de lectura y
+     * encola la respuesta de cada peticion completa. Los bytes que sigan a una
+     * peticion (peticiones encadenadas o "pipelining") se analizan a
+     * continuacion, salvo que la cola de salida este llena, en cuyo caso se
+     * quedan en el bufer hasta que se envien las respuestas pendientes.
      * 
-     * @param operacion : Operacion a realizar
+     * @param operacion : Operacion asociada al cliente
      * 
      */
-    private static void escribe(SelectionKey operacion) {
+    private void procesa(SelectionKey operacion) {
 
-        // obtener el cliente a partir de la operacion
-        SocketChannel cliente = (SocketChannel) operacion.channel();
+        // obtener los datos adjuntos
+        Utiles util = (Utiles) operacion.attachment();
+        HTTPParser<ByteBuffer> analizador = util.getAnalizador();
+        ColaSalida salida = util.getSalida();
 
-        // sie el cliente no tiene errores
-        if (cliente != null) {
+        // tras una peticion que cierra la conexion no se analiza nada mas, y
+        // mientras se espera al disco tampoco (las respuestas deben enviarse
+        // en orden)
+        while (!util.getCerrar() && !util.isEsperando() && !salida.isLlena()) {
 
-            // obtener los datos adjuntos
-            Utiles util = (Utiles) operacion.attachment();
+            ByteBuffer bufer = util.getBuffer();
 
-            // si hay informacion que enviar al cliente
-            if (util.quedaCuerpo()) {
+            // analizar peticion (si no hay bufer no hay nada pendiente de
+            // analizar)
+            if (bufer != null) {
 
-                // obtener el bufer y reutilizarlo
-                ByteBuffer bufer = util.getBuffer();
+                // si empieza una nueva peticion, anotar cuando
+                if (!analizador.isStarted() && bufer.hasRemaining()) {
+                    util.setInicio(System.nanoTime());
+                }
 
-                // limpiar y reiniciar el bufer
-                bufer.clear();
+                analizador.parseRequest(bufer);
 
-                // obtener una porcion de respuesta
-                String cuerpo = util.getCuerpo(bufer.capacity());
+                // si ya se ha consumido todo lo leido, devolver el bufer al
+                // pool para que las conexiones inactivas no retengan ninguno
+                if (!bufer.hasRemaining()) {
+                    Utiles.poolBuferes.devuelve(bufer);
+                    util.setBuffer(null);
+                }
+            }
 
-                // escribir en el bufer
-                bufer.put(cuerpo.getBytes());
+            // PETICION FALLIDA (400 BAD REQUEST)
+            if (analizador.failed()) {
+                Utiles.metricas.peticionRecibida(util.getInicio());
+                salida.anade(respuesta(util, Utiles.generaRespuestaError(400)));
 
-                // cambia el bufer a modo lectura
-                bufer.flip();
+                // tras un error no se puede saber donde empieza la siguiente
+                // peticion, por lo que se cierra la conexion
+                util.setCerrar(true);
+            }
 
-                try {
+            // PETICION COMPLETA
+            else if (analizador.isComplete()) {
 
-                    // enviar al cliente los datos leidos del bufer
-                    cliente.write(bufer);
+                Utiles.metricas.peticionRecibida(util.getInicio());
 
-                } catch (IOException e) {
-                    System.err.println("ERROR: " + e.getMessage());
-                    e.printStackTrace();
+                // METODO GET
+                if (analizador.getMethod().equals("GET")) {
+                    salida.anade(respuesta(util, httpGet(analizador)));
+                }
+
+                // METODO POST
+                else if (analizador.getMethod().equals("POST")) {
+
+                    // la respuesta se prepara cuando se haya terminado de
+                    // escribir el fichero
+                    esperaFormulario(operacion, true);
+                    return;
                 }
+
+                // METODO NO IMPLEMENTADO (501 NOT IMPLEMENTED)
+                else {
+                    salida.anade(respuesta(util,
+                            Utiles.generaRespuestaError(501)));
+                }
+
+                util.setCerrar(!analizador.isKeepAlive());
+
+                // preparar el analizador para la siguiente peticion
+                analizador.reset();
             }
 
-            // si no queda nada por devolver, y por lo tanto se ha terminado de
-            // atender la operacion
+            // PETICION INCOMPLETA Y DISCO SATURADO
+            else if (util.getFormulario().isSaturado()) {
+
+                // dejar de leer hasta que se vacien las escrituras pendientes
+                esperaFormulario(operacion, false);
+                return;
+            }
+
+            // PETICION INCOMPLETA
             else {
 
-                // dar por terminada la operacion
-                operacion.cancel();
+                // seguir esperando datos del cliente
+                return;
+            }
+        }
+    }
 
-                // cerrar conexion con el cliente
-                try {
-                    cliente.close();
-                } catch (IOException e) {
-                    System.err.println("ERROR: Fallo cerrando conexion. "
-                            + e.getMessage());
-                }
+    /**
+     * Metodo auxiliar que anota en la respuesta [respuesta] el instante en el
+     * que empezo su peticion, para medir su tiempo total
+     * 
+     * @param util : Datos adjuntos del cliente
+     * @param respuesta : Respuesta a la peticion en curso
+     * @return la misma respuesta
+     * 
+     */
+    private static Respuesta respuesta(Utiles util, Respuesta respuesta) {
+        respuesta.setInicio(util.getInicio());
+        return respuesta;
+    }
+
+    /**
+     * Metodo auxiliar que deja de leer peticiones de un cliente hasta que se
+     * completen las escrituras en disco pendientes de su formulario (las
+     * respuestas ya encoladas se siguen enviando). Despues, en el hilo del
+     * reactor, encola la respuesta (si la peticion POST esta completa) y
+     * vuelve a atender al cliente.
+     * 
+     * @param operacion : Operacion asociada al cliente
+     * @param completa : Cierto si la peticion POST esta completa
+     * 
+     */
+    private void esperaFormulario(final SelectionKey operacion,
+            final boolean completa) {
+
+        final Utiles util = (Utiles) operacion.attachment();
+
+        util.setEsperando(true);
+
+        util.getFormulario().cuandoEscrito(new Runnable() {
+            @Override
+            public void run() {
+                ejecuta(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        // la conexion puede haberse cerrado (o haber vencido
+                        // su plazo) mientras tanto
+                        if (!operacion.isValid()
+                                || util.getFase() == FASE_CIERRE) {
+                            return;
+                        }
+
+                        util.setEsperando(false);
+
+                        if (completa) {
+                            HTTPParser<ByteBuffer> analizador = util
+                                    .getAnalizador();
+                            util.getSalida().anade(respuesta(util,
+                                    httpPost(analizador,
+                                            util.getFormulario())));
+                            util.setCerrar(!analizador.isKeepAlive());
+                            analizador.reset();
+                        }
+
+                        atiende(operacion);
+
+                        actualizaPlazo(operacion, 0);
+                    }
+                });
             }
+        });
+    }
+
+    /**
+     * Metodo auxiliar que continua enviando las respuestas pendientes cuando
+     * el canal esta preparado para escribir.
+     * 
+     * @param operacion : Operacion a realizar
+     * 
+     */
+    private void escribe(SelectionKey operacion) {
+
+        // si el cliente no tiene errores
+        if (operacion.channel() != null) {
+
+            // enviar lo pendiente y, si se ha hecho sitio en la cola,
+            // analizar las peticiones que esperaban en el bufer
+            atiende(operacion);
+
+            actualizaPlazo(operacion, 0);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que reprograma el temporizador de una conexion segun la
+     * fase en la que se encuentre tras leer o escribir en ella. El plazo de
+     * las cabeceras empieza con el primer byte de la peticion y no se renueva;
+     * el del cuerpo se renueva cada MIN_PROGRESO_CUERPO bytes recibidos; el de
+     * inactividad se renueva con cada lectura o escritura.
+     * 
+     * @param operacion : Operacion asociada al cliente
+     * @param leidos : Bytes que se acaban de leer del cliente
+     * 
+     */
+    private void actualizaPlazo(SelectionKey operacion, int leidos) {
+
+        // la conexion puede haberse cerrado
+        if (!operacion.isValid()) {
+            return;
+        }
+
+        Utiles util = (Utiles) operacion.attachment();
+
+        // tras vencer un plazo solo queda enviar el 408 y cerrar
+        if (util.getFase() == FASE_CIERRE) {
+            return;
+        }
+
+        // mientras se envian respuestas (o se espera al disco) el plazo
+        // depende del cliente solo en la medida en que lee lo que se le envia
+        int fase;
+        if (!util.getSalida().isVacia() || util.isEsperando()) {
+            fase = FASE_RESPUESTA;
+        } else {
+            fase = fase(util.getAnalizador());
+        }
+
+        long ahora = System.currentTimeMillis();
+
+        // nueva fase: nuevo plazo
+        if (fase != util.getFase()) {
+            util.setFase(fase);
+            util.setProgreso(0);
+            rueda.programa(util.getTemporizador(), ahora + plazo(fase));
+        }
+
+        // misma fase: solo se renueva el plazo si hay progreso suficiente
+        else if (fase == FASE_CUERPO) {
+            util.setProgreso(util.getProgreso() + leidos);
+            if (util.getProgreso() >= MIN_PROGRESO_CUERPO) {
+                util.setProgreso(0);
+                rueda.programa(util.getTemporizador(), ahora + PLAZO_CUERPO);
+            }
+        } else if (fase != FASE_CABECERAS) {
+            rueda.programa(util.getTemporizador(), ahora + plazo(fase));
+        }
+    }
+
+    /**
+     * Metodo auxiliar que se ejecuta cuando vence el plazo de una conexion.
+     * Si se estaba recibiendo una peticion se responde 408 antes de cerrarla;
+     * si estaba inactiva se cierra sin mas.
+     * 
+     * @param operacion : Operacion asociada al cliente
+     * 
+     */
+    private void vence(SelectionKey operacion) {
+
+        // la conexion puede haberse cerrado
+        if (!operacion.isValid()) {
+            return;
+        }
+
+        Utiles util = (Utiles) operacion.attachment();
+
+        // PLAZO VENCIDO (408 REQUEST TIMEOUT)
+        if (util.getFase() == FASE_CABECERAS
+                || util.getFase() == FASE_CUERPO) {
+
+            util.getSalida().anade(Utiles.generaRespuestaError(408));
+            util.setCerrar(true);
+            util.setFase(FASE_CIERRE);
+
+            // enviar la respuesta, con un plazo corto para que un cliente
+            // que no lee tampoco retenga la conexion
+            atiende(operacion);
+            if (operacion.isValid()) {
+                rueda.programa(util.getTemporizador(),
+                        System.currentTimeMillis() + PLAZO_CIERRE);
+            }
+        }
+
+        // CONEXION INACTIVA
+        else {
+            cierra(operacion);
+        }
+    }
+
+    /**
+     * Metodo auxiliar que da por terminada la operacion y cierra la conexion
+     * con el cliente.
+     * 
+     * @param operacion : Operacion asociada al cliente
+     * 
+     */
+    private void cierra(SelectionKey operacion) {
+
+        // la conexion puede estar ya cerrada
+        if (!operacion.channel().isOpen()) {
+            return;
+        }
+
+        // dar por terminada la operacion
+        operacion.cancel();
+
+        Utiles util = (Utiles) operacion.attachment();
+
+        // dejar de vigilar sus plazos
+        if (util != null && util.getTemporizador() != null) {
+            rueda.cancela(util.getTemporizador());
+        }
+
+        // liberar las respuestas que quedasen por enviar
+        if (util != null && util.getSalida() != null) {
+            util.getSalida().vacia();
+        }
+
+        // descartar el formulario que se estuviese recibiendo
+        if (util != null && util.getFormulario() != null) {
+            util.getFormulario().descarta();
+        }
+
+        // devolver el bufer de lectura al pool
+        if (util != null && util.getBuffer() != null) {
+            Utiles.poolBuferes.devuelve(util.getBuffer());
+            util.setBuffer(null);
+        }
+
+        Utiles.metricas.conexionCerrada();
+        Utiles.admision.libera();
+
+        // cerrar conexion con el cliente
+        try {
+            operacion.channel().close();
+        } catch (IOException e) {
+            System.err.println("ERROR: Fallo cerrando conexion. "
+                    + e.getMessage());
         }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * AUTORES: Juan Vela Garcia / Marta Frias Zapater
+ * NIA: 643821 / 535621
+ * FICHERO: VigilantePlazos.java
+ * TIEMPO: 1 hora
+ * DESCRIPCION: Hilo que vigila los plazos de las conexiones del servidor con
+ *  threads.
+ */
+
+package ssdd.p1.servidor;
+
+import ssdd.p1.herramientas.RuedaTemporizadores;
+import ssdd.p1.herramientas.RuedaTemporizadores.Temporizador;
+
+/**
+ * Hilo (demonio) que hace avanzar una rueda de temporizadores compartida por
+ * todas las conexiones del servidor con threads. Cada conexion programa en
+ * ella su temporizador, cuya accion se ejecuta en este hilo y por tanto no
+ * debe bloquearse.
+ *
+ * Puede usarse desde varios hilos a la vez.
+ *
+ * @author Juan Vela, Marta Frias
+ *
+ */
+public class VigilantePlazos implements Runnable {
+
+    /** Rueda de temporizadores (protegida por el cerrojo del vigilante) */
+    private final RuedaTemporizadores rueda;
+
+    /** Duracion (en milisegundos) de cada intervalo de la rueda */
+    private final long resolucion;
+
+    /**
+     * Metodo constructor de la clase. Crea la rueda y lanza el hilo que la
+     * hace avanzar.
+     *
+     * @param resolucion : Duracion (en milisegundos) de cada intervalo
+     * @param numRanuras : Numero de ranuras de la rueda (potencia de dos)
+     *
+     */
+    public VigilantePlazos(long resolucion, int numRanuras) {
+        this.resolucion = resolucion;
+        this.rueda = new RuedaTemporizadores(resolucion, numRanuras,
+                System.currentTimeMillis());
+
+        Thread hilo = new Thread(this, "vigilante-plazos");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Programa (o reprograma) el temporizador [temporizador] para que venza
+     * dentro de [plazo] milisegundos
+     *
+     * @param temporizador : Temporizador
+     * @param plazo : Plazo (en milisegundos)
+     *
+     */
+    public synchronized void programa(Temporizador temporizador, long plazo) {
+        rueda.programa(temporizador, System.currentTimeMillis() + plazo);
+    }
+
+    /**
+     * Cancela el temporizador [temporizador]. Al volver se garantiza que su
+     * accion no se esta ejecutando ni se va a ejecutar.
+     *
+     * @param temporizador : Temporizador
+     *
+     */
+    public synchronized void cancela(Temporizador temporizador) {
+        rueda.cancela(temporizador);
+    }
+
+    /**
+     * Bucle del hilo vigilante: avanza la rueda una vez por intervalo.
+     *
+     */
+    @Override
+    public void run() {
+
+        boolean finalizar = false;
+
+        while (!finalizar) {
+            try {
+                Thread.sleep(resolucion);
+            } catch (InterruptedException e) {
+                finalizar = true;
+            }
+
+            synchronized (this) {
+                rueda.avanza(System.currentTimeMillis());
+            }
+        }
+    }
+}